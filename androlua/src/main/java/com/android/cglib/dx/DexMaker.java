@@ -23,8 +23,10 @@ import static com.android.cglib.dx.rop.code.AccessFlags.ACC_CONSTRUCTOR;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -196,6 +198,10 @@ import com.android.cglib.dx.rop.type.StdTypeList;
  * }</pre>
  */
 public final class DexMaker {
+    /** constructor of InMemoryDexClassLoader, null before API 26 */
+    private static Constructor<?> inMemoryConstructor;
+    private static boolean inMemoryChecked;
+
     private final Map<TypeId<?>, TypeDeclaration> types
             = new LinkedHashMap<TypeId<?>, TypeDeclaration>();
 
@@ -425,9 +431,9 @@ public final class DexMaker {
         /*
          * This implementation currently dumps the dex to the filesystem. It
          * jars the emitted .dex for the benefit of Gingerbread and earlier
-         * devices, which can't load .dex files directly.
-         *
-         * TODO: load the dex from memory where supported.
+         * devices, which can't load .dex files directly. See
+         * generateAndLoadInMemory() to load the dex from memory where
+         * supported.
          */
         //noinspection ResultOfMethodCallIgnored
         result.createNewFile();
@@ -442,6 +448,69 @@ public final class DexMaker {
         return generateClassLoader(result, dexCache, parent);
     }
 
+    /**
+     * Generates a dex file and loads its types into the current process
+     * without writing it, on API 26 and later. The dex is then not compiled
+     * by dex2oat on the loading thread, and every type declared with this
+     * maker, as many as needed, shares the one class loader. On earlier
+     * versions this falls back to {@link #generateAndLoad(ClassLoader, File)}.
+     *
+     * @param parent the parent ClassLoader to be used when loading our
+     *     generated types
+     * @param dexCache the directory used when falling back to a file, as for
+     *     {@link #generateAndLoad(ClassLoader, File)}
+     */
+    public ClassLoader generateAndLoadInMemory(ClassLoader parent, File dexCache) throws IOException {
+        if (!isInMemorySupported()) {
+            return generateAndLoad(parent, dexCache);
+        }
+        return loadInMemory(generate(), parent);
+    }
+
+    /**
+     * Returns true if dex files can be loaded from memory, on API 26 and
+     * later.
+     */
+    public static boolean isInMemorySupported() {
+        return getInMemoryConstructor() != null;
+    }
+
+    /**
+     * Loads a dex file from memory.
+     *
+     * @throws UnsupportedOperationException before API 26
+     */
+    public static ClassLoader loadInMemory(byte[] dex, ClassLoader parent) {
+        Constructor<?> constructor = getInMemoryConstructor();
+        if (constructor == null) {
+            throw new UnsupportedOperationException("loadInMemory() requires API 26");
+        }
+        try {
+            return (ClassLoader) constructor.newInstance(ByteBuffer.wrap(dex), parent);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InstantiationException e) {
+            throw new AssertionError();
+        } catch (IllegalAccessException e) {
+            throw new AssertionError();
+        }
+    }
+
+    private static synchronized Constructor<?> getInMemoryConstructor() {
+        if (!inMemoryChecked) {
+            inMemoryChecked = true;
+            try {
+                inMemoryConstructor = Class.forName("dalvik.system.InMemoryDexClassLoader")
+                        .getConstructor(ByteBuffer.class, ClassLoader.class);
+            } catch (ClassNotFoundException e) {
+                inMemoryConstructor = null;
+            } catch (NoSuchMethodException e) {
+                inMemoryConstructor = null;
+            }
+        }
+        return inMemoryConstructor;
+    }
+
     private static class TypeDeclaration {
         private final TypeId<?> type;
 
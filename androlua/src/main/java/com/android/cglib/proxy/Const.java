@@ -5,6 +5,8 @@ public class Const {
 	public static final String SUBCLASS_SUFFIX = "_Enhancer";
 	
 	public static final String SUBCLASS_INVOKE_SUPER_SUFFIX = "_Super";
+
+	public static final String METHOD_PROXIES = "methodProxies_Enhancer";
 	
 	public static Class getPackedType(Class primitive) {
 		if (primitive == boolean.class) {
@@ -5,6 +5,12 @@ import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 
 import com.android.cglib.dx.Code;
 import com.android.cglib.dx.Comparison;
@@ -17,6 +23,11 @@ import com.android.cglib.dx.TypeId;
 import android.content.Context;
 
 public class Enhancer {
+
+	/**
+	 * Subclasses generated together by preload()
+	 */
+	private static final int PRELOAD_BATCH = 8;
 	
 	private Context context;
 	private Class<?> superclass;
@@ -35,33 +46,262 @@ public class Enhancer {
 		this.interceptor = interceptor;
 	}
 
+	/**
+	 * Returns the subclass of the superclass, made once for each set of
+	 * overridden methods and kept in this process and under dexfiles.
+	 */
 	public Class<?> create() {
+		List<Constructor<?>> constructors = getConstructors();
+		List<Method> methods = getMethods();
+		String key = EnhancerCache.key(superclass, constructors, methods);
+
 		String superClsName = superclass.getName().replace(".", "/");
-		String subClsName = superClsName + Const.SUBCLASS_SUFFIX+"_"+hashCode();
+		String subClsName = superClsName + Const.SUBCLASS_SUFFIX + "_" + key;
+
+		Class<?> cls = EnhancerCache.get(subClsName);
+		if (cls != null && cls.getSuperclass() == superclass)
+			return cls;
+
+		File dexDir = context.getExternalFilesDir("dexfiles");
+		File cacheDir = EnhancerCache.getDirectory(dexDir);
+		ClassLoader parent = Enhancer.class.getClassLoader();
+		synchronized (EnhancerCache.class) {
+			EnhancerCache.record(dexDir, superclass, methods);
+			cls = EnhancerCache.load(cacheDir, key, subClsName, parent);
+			if (cls != null && cls.getSuperclass() == superclass) {
+				EnhancerCache.put(subClsName, initMethodProxies(cls, methods));
+				return cls;
+			}
 
-		TypeId<?> superType = TypeId.get("L" + superClsName + ";");
-		TypeId<?> subType = TypeId.get("L" + subClsName + ";");
-		TypeId<?> interfaceTypeId = TypeId.get(EnhancerInterface.class);
+			DexMaker dexMaker = new DexMaker();
+			declare(dexMaker, subClsName, constructors, methods);
+			try {
+				cls = EnhancerCache.store(cacheDir, key, subClsName, superclass, dexMaker.generate(), parent);
+				EnhancerCache.put(subClsName, initMethodProxies(cls, methods));
+				return cls;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (ClassNotFoundException e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
 
-		String cacheDir = context.getExternalFilesDir("dexfiles").getAbsolutePath();
-//		System.out.println("[Enhancer::create()] Create class extends from \"" + superclass.getName() + "\" stored in " + cacheDir);
+	/**
+	 * Returns the subclasses made by several enhancers, in the same order.
+	 * Those not made yet in this process are generated together into one
+	 * dex, loaded by one class loader: from memory on API 26 and later,
+	 * otherwise from a jar under dexfiles. From memory they are generated
+	 * without holding the lock of create(), only taken to publish them.
+	 */
+	public static Class<?>[] create(Context context, Enhancer... enhancers) {
+		Class<?>[] classes = new Class<?>[enhancers.length];
+		String[] names = new String[enhancers.length];
+		List<List<Method>> methodLists = new ArrayList<List<Method>>();
+		DexMaker dexMaker = null;
+		HashSet<String> declared = new HashSet<String>();
+		for (int i = 0; i < enhancers.length; i++) {
+			Enhancer enhancer = enhancers[i];
+			List<Constructor<?>> constructors = enhancer.getConstructors();
+			List<Method> methods = enhancer.getMethods();
+			String key = EnhancerCache.key(enhancer.superclass, constructors, methods);
+			String subClsName = enhancer.superclass.getName().replace(".", "/") + Const.SUBCLASS_SUFFIX + "_" + key;
+			methodLists.add(methods);
+
+			Class<?> cls = EnhancerCache.get(subClsName);
+			if (cls != null && cls.getSuperclass() == enhancer.superclass) {
+				classes[i] = cls;
+				continue;
+			}
+			names[i] = subClsName;
+			if (declared.add(subClsName)) {
+				if (dexMaker == null)
+					dexMaker = new DexMaker();
+				enhancer.declare(dexMaker, subClsName, constructors, methods);
+			}
+		}
+		if (dexMaker == null)
+			return classes;
 
-		DexMaker dexMaker = new DexMaker();
-		dexMaker.declare(subType, superClsName + ".proxy", Modifier.PUBLIC, superType, interfaceTypeId);
-		generateFieldsAndMethods(dexMaker, superType, subType);
 		try {
-			ClassLoader loader = dexMaker.generateAndLoad(Enhancer.class.getClassLoader(), new File(cacheDir));
-			return loader.loadClass(subClsName);//superclass.getName() + Const.SUBCLASS_SUFFIX);
+			File cacheDir = context.getExternalFilesDir("dexfiles");
+			ClassLoader parent = Enhancer.class.getClassLoader();
+			ClassLoader loader = null;
+			if (DexMaker.isInMemorySupported())
+				loader = dexMaker.generateAndLoadInMemory(parent, cacheDir);
+			synchronized (EnhancerCache.class) {
+				if (loader == null)
+					loader = dexMaker.generateAndLoad(parent, cacheDir);
+				for (int i = 0; i < enhancers.length; i++) {
+					if (classes[i] != null)
+						continue;
+					// declared once when given twice, or made meanwhile by create()
+					Class<?> cls = EnhancerCache.get(names[i]);
+					if (cls == null || cls.getSuperclass() != enhancers[i].superclass) {
+						cls = initMethodProxies(loader.loadClass(names[i].replace('/', '.')), methodLists.get(i));
+						EnhancerCache.put(names[i], cls);
+					}
+					classes[i] = cls;
+				}
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (ClassNotFoundException e) {
 			e.printStackTrace();
 		}
-		return null;
+		return classes;
+	}
+
+	/**
+	 * Makes the subclasses listed in the manifest by earlier processes, so
+	 * that create() finds them already made rather than generating them on
+	 * first use. On API 26 and later they are generated a few at a time
+	 * into a dex loaded from memory, otherwise their jars are loaded. An
+	 * entry failing to be made is removed from the manifest. Meant to be
+	 * run once at startup, off the main thread.
+	 *
+	 * @return the number of subclasses made
+	 */
+	public static int preload(Context context) {
+		File dexDir = context.getExternalFilesDir("dexfiles");
+		if (dexDir == null)
+			return 0;
+		ClassLoader loader = Enhancer.class.getClassLoader();
+		List<String[]> entries = new ArrayList<String[]>();
+		List<Enhancer> enhancers = new ArrayList<Enhancer>();
+		for (String[] entry : EnhancerCache.getManifest(dexDir)) {
+			Class<?> superclass;
+			try {
+				superclass = Class.forName(entry[0], false, loader);
+			} catch (Throwable e) {
+				// gone or broken with an update of the app
+				EnhancerCache.forget(dexDir, entry);
+				continue;
+			}
+			final HashSet<String> signatures = new HashSet<String>(Arrays.asList(entry).subList(1, entry.length));
+			Enhancer enhancer = new Enhancer(context);
+			enhancer.setSuperclass(superclass);
+			enhancer.setMethodFilter(new MethodFilter() {
+				@Override
+				public boolean filter(Method method, String name) {
+					return signatures.contains(EnhancerCache.signature(method));
+				}
+			});
+			entries.add(entry);
+			enhancers.add(enhancer);
+		}
+
+		int count = 0;
+		int batch = DexMaker.isInMemorySupported() ? PRELOAD_BATCH : 1;
+		for (int i = 0; i < enhancers.size(); i += batch) {
+			int end = Math.min(i + batch, enhancers.size());
+			if (end - i > 1) {
+				try {
+					for (Class<?> cls : create(context, enhancers.subList(i, end).toArray(new Enhancer[end - i]))) {
+						if (cls != null)
+							count++;
+					}
+					continue;
+				} catch (Throwable e) {
+					// made again one by one to find the failing entry
+				}
+			}
+			for (int j = i; j < end; j++) {
+				try {
+					if (enhancers.get(j).create() != null)
+						count++;
+				} catch (Throwable e) {
+					e.printStackTrace();
+					EnhancerCache.forget(dexDir, entries.get(j));
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Declares the subclass named subClsName in dexMaker
+	 */
+	private void declare(DexMaker dexMaker, String subClsName, List<Constructor<?>> constructors, List<Method> methods) {
+		String superClsName = superclass.getName().replace(".", "/");
+		TypeId<?> superType = TypeId.get("L" + superClsName + ";");
+		TypeId<?> subType = TypeId.get("L" + subClsName + ";");
+		TypeId<?> interfaceTypeId = TypeId.get(EnhancerInterface.class);
+
+		dexMaker.declare(subType, superClsName + ".proxy", Modifier.PUBLIC, superType, interfaceTypeId);
+		generateFieldsAndMethods(dexMaker, superType, subType, constructors, methods);
+	}
+
+	/**
+	 * Sets the method proxy table of a subclass just loaded, before any
+	 * instance is made. The generated methods pass their proxy from it.
+	 */
+	private static Class<?> initMethodProxies(Class<?> cls, List<Method> methods) {
+		MethodProxy[] proxies = new MethodProxy[methods.size()];
+		for (int i = 0; i < proxies.length; i++) {
+			Method method = methods.get(i);
+			proxies[i] = new MethodProxy(cls, method.getName(), method.getParameterTypes());
+		}
+		try {
+			cls.getField(Const.METHOD_PROXIES).set(null, proxies);
+		} catch (Exception e) {
+			throw new ProxyException(e);
+		}
+		return cls;
+	}
+
+	/**
+	 * Returns the constructors of the superclass the subclass has
+	 */
+	private List<Constructor<?>> getConstructors() {
+		List<Constructor<?>> list = new ArrayList<Constructor<?>>();
+		for (Constructor<?> constructor : superclass.getDeclaredConstructors()) {
+			if((constructor.getModifiers()&Modifier.STATIC)!=0||(constructor.getModifiers()&Modifier.FINAL)!=0)
+				continue;
+			list.add(constructor);
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the methods of the superclass the subclass overrides, those
+	 * that are abstract or pass the method filter
+	 */
+	private List<Method> getMethods() {
+		List<Method> list = new ArrayList<Method>();
+		String methodName = null;
+		Method[] methods = superclass.getMethods();
+		for (Method method : methods) {
+			methodName = method.getName();
+			if (methodName.contains(Const.SUBCLASS_SUFFIX)) {
+				continue ;
+			}
+			if (methodName.contains(Const.SUBCLASS_INVOKE_SUPER_SUFFIX)) {
+				continue ;
+			}
+			if((method.getModifiers()&Modifier.STATIC)!=0||(method.getModifiers()&Modifier.FINAL)!=0||(method.getModifiers()&Modifier.NATIVE)!=0)
+				continue;
+			// bridges of covariant returns, DexMaker can not declare them
+			if(method.isBridge()||method.isSynthetic())
+				continue;
+			if((method.getModifiers()&Modifier.ABSTRACT)==0&&methodFilter!=null&&!methodFilter.filter(method,methodName))
+				continue;
+			list.add(method);
+		}
+		// the generated methods index the proxy table in this order
+		Collections.sort(list, new Comparator<Method>() {
+			@Override
+			public int compare(Method a, Method b) {
+				return EnhancerCache.signature(a).compareTo(EnhancerCache.signature(b));
+			}
+		});
+		return list;
 	}
 
 	@SuppressWarnings({ "unchecked", "rawtypes" })
- 	private <S> void generateFieldsAndMethods(DexMaker dexMaker, TypeId<?> superType, TypeId<S> subType) {
+ 	private <S> void generateFieldsAndMethods(DexMaker dexMaker, TypeId<?> superType, TypeId<S> subType,
+											  List<Constructor<?>> constructors, List<Method> methods) {
 		TypeId<MethodInterceptor> methodInterceptorType = TypeId.get(MethodInterceptor.class);
 		TypeId<MethodProxyExecuter> methodProxyExecuterType = TypeId.get(MethodProxyExecuter.class);
 		TypeId<Class> classType = TypeId.get(Class.class);
@@ -73,6 +313,8 @@ public class Enhancer {
 		// generate fields
 		FieldId<S, MethodInterceptor> fieldId = subType.getField(methodInterceptorType, "methodInterceptor");
 		dexMaker.declare(fieldId, Modifier.PRIVATE, null);
+		FieldId<S, MethodProxy[]> proxiesFieldId = subType.getField(TypeId.get(MethodProxy[].class), Const.METHOD_PROXIES);
+		dexMaker.declare(proxiesFieldId, Modifier.PUBLIC | Modifier.STATIC, null);
 		
 		// generate methods
 		// constructor
@@ -82,11 +324,7 @@ public class Enhancer {
 		code.returnVoid();*/
 
 
-		Constructor<?>[] constructors = superclass.getDeclaredConstructors();
 		for (Constructor constructor : constructors) {
-
-			if((constructor.getModifiers()&Modifier.STATIC)!=0||(constructor.getModifiers()&Modifier.FINAL)!=0)
-				continue;
 			try{
 				hookConstructor(dexMaker,superType,subType,constructor,fieldId);
 			}catch (Exception e){
@@ -115,22 +353,10 @@ public class Enhancer {
 		code.returnValue(retObjLocal);
 
 		// override super's methods
-		String methodName = null;
-		Method[] methods = superclass.getMethods();
-	    for (Method method : methods) {
-			methodName = method.getName();
-			if (methodName.contains(Const.SUBCLASS_SUFFIX)) {
-				continue ;
-			}
-			if (methodName.contains(Const.SUBCLASS_INVOKE_SUPER_SUFFIX)) {
-				continue ;
-			}
-			if((method.getModifiers()&Modifier.STATIC)!=0||(method.getModifiers()&Modifier.FINAL)!=0||(method.getModifiers()&Modifier.NATIVE)!=0)
-				continue;
-			if((method.getModifiers()&Modifier.ABSTRACT)==0&&methodFilter!=null&&!methodFilter.filter(method,methodName))
-            	continue;
+		for (int i = 0; i < methods.size(); i++) {
+			Method method = methods.get(i);
 			try{
-				hookMethod(dexMaker,superType,subType,method,methodName,fieldId);
+				hookMethod(dexMaker,superType,subType,method,method.getName(),i,fieldId,proxiesFieldId);
 			}catch (Exception e){
 				e.printStackTrace();
 			}
@@ -232,12 +458,12 @@ public class Enhancer {
 	}
 
 
-	private void hookMethod(DexMaker dexMaker, TypeId<?> superType, TypeId<?> subType, Method method, String methodName, FieldId<?, MethodInterceptor> fieldId) {
+	private void hookMethod(DexMaker dexMaker, TypeId<?> superType, TypeId<?> subType, Method method, String methodName, int index,
+							FieldId<?, MethodInterceptor> fieldId, FieldId<?, MethodProxy[]> proxiesFieldId) {
 		TypeId<MethodInterceptor> methodInterceptorType = TypeId.get(MethodInterceptor.class);
 		TypeId<MethodProxyExecuter> methodProxyExecuterType = TypeId.get(MethodProxyExecuter.class);
-		TypeId<Class> classType = TypeId.get(Class.class);
-		TypeId<Class[]> classesType = TypeId.get(Class[].class);
-		TypeId<String> stringType = TypeId.get(String.class);
+		TypeId<MethodProxy> methodProxyType = TypeId.get(MethodProxy.class);
+		TypeId<MethodProxy[]> methodProxiesType = TypeId.get(MethodProxy[].class);
 		TypeId<Object> objectType = TypeId.get(Object.class);
 		TypeId<Object[]> objectsType = TypeId.get(Object[].class);
 
@@ -274,29 +500,27 @@ public class Enhancer {
 
 		Local<Integer> intLocal = code.newLocal(TypeId.INT);
 		Local<MethodInterceptor> methodInterceptorLocal = code.newLocal(methodInterceptorType);
-		Local<String> methodNameLocal = code.newLocal(TypeId.get(String.class));
-		Local<Class> tmpClassLocal = code.newLocal(classType);
-		Local<Class> subClassLocal = code.newLocal(classType);
-		Local<Class[]> argsTypeLocal = code.newLocal(classesType);
+		Local<MethodProxy[]> methodProxiesLocal = code.newLocal(methodProxiesType);
+		Local<MethodProxy> methodProxyLocal = code.newLocal(methodProxyType);
 		Local<Object[]> argsValueLocal = code.newLocal(objectsType);
 		Local tmpNumberLocal = code.newLocal(objectType);
 		Local<Object> retObjLocal = code.newLocal(TypeId.OBJECT);
 
+		// the proxy of the method is taken from the table of the class,
+		// rather than made from its name and argument types on each call
 		Local thisLocal = code.getThis(subType);
 		code.iget(fieldId, methodInterceptorLocal, thisLocal);
-		code.loadConstant(methodNameLocal, methodName);
-		code.invokeVirtual(subType.getMethod(classType, "getClass"), subClassLocal, thisLocal);
+		code.sget(proxiesFieldId, methodProxiesLocal);
+		code.loadConstant(intLocal, index);
+		code.aget(methodProxyLocal, methodProxiesLocal, intLocal);
 
 		MethodId methodId;
 		if (hasParams) {
 			code.loadConstant(intLocal, argsClass.length);
-			code.newArray(argsTypeLocal, intLocal);
 			code.newArray(argsValueLocal, intLocal);
 
 			for (int i=0; i<argsClass.length; i++) {
 				code.loadConstant(intLocal, i);
-				code.loadConstant(tmpClassLocal, argsClass[i]);
-				code.aput(argsTypeLocal, intLocal, tmpClassLocal);
 
 				if (argsClass[i].isPrimitive()) {
 					TypeId packedClassType = TypeId.get(Const.getPackedType(argsClass[i]));
@@ -309,12 +533,11 @@ public class Enhancer {
 			}
 		} else {
 			// must add below code, or "bad method" error will occurs.
-			code.loadConstant(argsTypeLocal, null);
 			code.loadConstant(argsValueLocal, null);
 		}
 
-		methodId = methodProxyExecuterType.getMethod(TypeId.OBJECT, MethodProxyExecuter.EXECUTE_INTERCEPTOR, methodInterceptorType, classType, stringType, classesType, objectsType, objectType);
-		code.invokeStatic(methodId, isVoid ? null : retObjLocal, methodInterceptorLocal, subClassLocal, methodNameLocal, argsTypeLocal, argsValueLocal, thisLocal);
+		methodId = methodProxyExecuterType.getMethod(TypeId.OBJECT, MethodProxyExecuter.EXECUTE_INTERCEPTOR, methodInterceptorType, methodProxyType, objectsType, objectType);
+		code.invokeStatic(methodId, isVoid ? null : retObjLocal, methodInterceptorLocal, methodProxyLocal, argsValueLocal, thisLocal);
 
 		if (isVoid) {
 			code.returnVoid();
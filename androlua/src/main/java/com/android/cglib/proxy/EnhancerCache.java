@@ -0,0 +1,385 @@
+package com.android.cglib.proxy;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.android.cglib.dx.DexMaker;
+import com.android.cglib.dx.dex.DexFormat;
+
+import dalvik.system.DexClassLoader;
+
+/**
+ * Cache of the classes generated by {@link Enhancer}.
+ * <p>
+ * A generated class is named after a digest of what it is made of: its
+ * superclass, the constructors and methods it overrides, and the version of
+ * the generator. Making the same subclass again, from another Enhancer or
+ * after a restart, gives the same name, found in this process or in the jar
+ * written the first time without generating it again.
+ * <p>
+ * The jars are kept in their own directory with an index holding the cache
+ * version and the superclass of each jar. A new version clears the directory,
+ * and the jars used least recently are deleted past {@link #MAX_ENTRIES}.
+ * <p>
+ * The classes made are also listed in a manifest, by superclass and
+ * overridden methods, which does not depend on the version. The next
+ * process makes them all at once with {@link Enhancer#preload}.
+ */
+class EnhancerCache {
+
+	/**
+	 * Changes each time the generated code changes
+	 */
+	static final int VERSION = 2;
+
+	static final int MAX_ENTRIES = 64;
+
+	private static final String DIRECTORY = "enhancer";
+
+	private static final String INDEX = "enhancer.idx";
+
+	private static final String KEY_VERSION = "version";
+
+	private static final String MANIFEST = "enhancer.manifest";
+
+	private static final ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+	private static Properties index;
+
+	private static LinkedHashSet<String> manifest;
+
+	private EnhancerCache() {
+	}
+
+	/**
+	 * Returns the digest of a subclass of superclass overriding constructors
+	 * and methods, the same whatever their order
+	 */
+	static String key(Class<?> superclass, List<Constructor<?>> constructors, List<Method> methods) {
+		ArrayList<String> members = new ArrayList<String>();
+		for (Constructor<?> constructor : constructors) {
+			members.add("<init>" + descriptor(constructor.getParameterTypes(), void.class));
+		}
+		for (Method method : methods) {
+			members.add(signature(method));
+		}
+		Collections.sort(members);
+
+		StringBuilder buf = new StringBuilder();
+		buf.append(VERSION).append(';').append(superclass.getName());
+		for (String member : members) {
+			buf.append(';').append(member);
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(buf.toString().getBytes("UTF-8"));
+			StringBuilder key = new StringBuilder();
+			for (int i = 0; i < 10; i++) {
+				key.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+				key.append(Character.forDigit(digest[i] & 0xf, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new ProxyException(e.getMessage());
+		} catch (IOException e) {
+			throw new ProxyException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the name, parameter types and return type of a method
+	 */
+	static String signature(Method method) {
+		return method.getName() + descriptor(method.getParameterTypes(), method.getReturnType());
+	}
+
+	private static String descriptor(Class<?>[] parameterTypes, Class<?> returnType) {
+		StringBuilder buf = new StringBuilder("(");
+		for (Class<?> type : parameterTypes) {
+			buf.append(type.getName()).append(',');
+		}
+		return buf.append(')').append(returnType.getName()).toString();
+	}
+
+	/**
+	 * Returns the class of a name made in this process, or null
+	 */
+	static Class<?> get(String name) {
+		return classes.get(name);
+	}
+
+	/**
+	 * Keeps a class made in this process, once its method proxy table is set
+	 */
+	static void put(String name, Class<?> cls) {
+		classes.put(name, cls);
+	}
+
+	/**
+	 * Returns the directory of the jars, under cacheDir
+	 */
+	static File getDirectory(File cacheDir) {
+		File dir = new File(cacheDir, DIRECTORY);
+		if (!dir.exists())
+			dir.mkdirs();
+		return dir;
+	}
+
+	/**
+	 * Loads a class from the jar written for key before, or returns null
+	 * when there is none. The class is not kept until {@link #put}.
+	 */
+	static synchronized Class<?> load(File dir, String key, String name, ClassLoader parent) {
+		File jar = new File(dir, key + ".jar");
+		if (!readIndex(dir).containsKey(key) || !jar.exists())
+			return null;
+		try {
+			Class<?> cls = new DexClassLoader(jar.getPath(), dir.getPath(), null, parent).loadClass(name.replace('/', '.'));
+			jar.setLastModified(System.currentTimeMillis());
+			return cls;
+		} catch (ClassNotFoundException e) {
+			// written by another version, made again
+			remove(dir, key);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the dex of a class to the jar of key, loads the class and adds
+	 * it to the index. The class is loaded from memory where supported, the
+	 * jar being for the next processes. The class is not kept until
+	 * {@link #put}.
+	 */
+	static synchronized Class<?> store(File dir, String key, String name, Class<?> superclass,
+									   byte[] dex, ClassLoader parent) throws IOException, ClassNotFoundException {
+		File jar = new File(dir, key + ".jar");
+		File tmp = new File(dir, key + ".tmp");
+		JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(tmp));
+		try {
+			JarEntry entry = new JarEntry(DexFormat.DEX_IN_JAR_NAME);
+			entry.setSize(dex.length);
+			jarOut.putNextEntry(entry);
+			jarOut.write(dex);
+			jarOut.closeEntry();
+		} finally {
+			jarOut.close();
+		}
+		jar.delete();
+		if (!tmp.renameTo(jar))
+			throw new IOException("can not write " + jar);
+		jar.setReadOnly();
+
+		ClassLoader loader;
+		if (DexMaker.isInMemorySupported())
+			loader = DexMaker.loadInMemory(dex, parent);
+		else
+			loader = new DexClassLoader(jar.getPath(), dir.getPath(), null, parent);
+		Class<?> cls = loader.loadClass(name.replace('/', '.'));
+
+		Properties properties = readIndex(dir);
+		properties.setProperty(key, superclass.getName());
+		evict(dir, properties);
+		writeIndex(dir, properties);
+		return cls;
+	}
+
+	/**
+	 * Adds a subclass of superclass overriding methods to the manifest
+	 * under dir, if not listed yet. The oldest entries are dropped past
+	 * MAX_ENTRIES.
+	 */
+	static synchronized void record(File dir, Class<?> superclass, List<Method> methods) {
+		StringBuilder buf = new StringBuilder(superclass.getName());
+		for (Method method : methods) {
+			buf.append('\t').append(signature(method));
+		}
+		String line = buf.toString();
+		LinkedHashSet<String> entries = readManifest(dir);
+		if (entries.contains(line))
+			return;
+		entries.add(line);
+		Iterator<String> it = entries.iterator();
+		while (entries.size() > MAX_ENTRIES) {
+			it.next();
+			it.remove();
+		}
+		writeManifest(dir, entries);
+	}
+
+	/**
+	 * Removes an entry of the manifest under dir, as returned by
+	 * {@link #getManifest}, so that a subclass failing to be made is not
+	 * tried again by the next processes
+	 */
+	static synchronized void forget(File dir, String[] entry) {
+		StringBuilder buf = new StringBuilder(entry[0]);
+		for (int i = 1; i < entry.length; i++) {
+			buf.append('\t').append(entry[i]);
+		}
+		LinkedHashSet<String> entries = readManifest(dir);
+		if (entries.remove(buf.toString()))
+			writeManifest(dir, entries);
+	}
+
+	/**
+	 * Returns the entries of the manifest under dir, each the name of a
+	 * superclass followed by the signatures of the methods overridden
+	 */
+	static synchronized List<String[]> getManifest(File dir) {
+		List<String[]> list = new ArrayList<String[]>();
+		for (String line : readManifest(dir)) {
+			list.add(line.split("\t"));
+		}
+		return list;
+	}
+
+	private static LinkedHashSet<String> readManifest(File dir) {
+		if (manifest != null)
+			return manifest;
+		LinkedHashSet<String> entries = new LinkedHashSet<String>();
+		File file = new File(dir, MANIFEST);
+		if (file.exists()) {
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.length() > 0)
+						entries.add(line);
+				}
+			} catch (IOException e) {
+				entries.clear();
+			} finally {
+				close(reader);
+			}
+		}
+		manifest = entries;
+		return entries;
+	}
+
+	private static void writeManifest(File dir, LinkedHashSet<String> entries) {
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(new File(dir, MANIFEST));
+			for (String entry : entries) {
+				out.write((entry + "\n").getBytes("UTF-8"));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			close(out);
+		}
+	}
+
+	/**
+	 * Deletes the jars used least recently past MAX_ENTRIES
+	 */
+	private static void evict(File dir, Properties properties) {
+		List<String> keys = new ArrayList<String>(properties.stringPropertyNames());
+		keys.remove(KEY_VERSION);
+		if (keys.size() <= MAX_ENTRIES)
+			return;
+		final File base = dir;
+		Collections.sort(keys, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				long ta = new File(base, a + ".jar").lastModified();
+				long tb = new File(base, b + ".jar").lastModified();
+				return ta < tb ? -1 : (ta == tb ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < keys.size() - MAX_ENTRIES; i++) {
+			deleteFiles(dir, keys.get(i));
+			properties.remove(keys.get(i));
+		}
+	}
+
+	private static void remove(File dir, String key) {
+		Properties properties = readIndex(dir);
+		deleteFiles(dir, key);
+		properties.remove(key);
+		writeIndex(dir, properties);
+	}
+
+	private static void deleteFiles(File dir, String key) {
+		new File(dir, key + ".jar").delete();
+		// optimized dex written by DexClassLoader next to the jar
+		new File(dir, key + ".dex").delete();
+	}
+
+	/**
+	 * Returns the index, read the first time. An index of another version
+	 * is discarded with all the jars.
+	 */
+	private static Properties readIndex(File dir) {
+		if (index != null)
+			return index;
+		Properties properties = new Properties();
+		File file = new File(dir, INDEX);
+		if (file.exists()) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				properties.load(in);
+			} catch (IOException e) {
+				properties.clear();
+			} finally {
+				close(in);
+			}
+		}
+		if (!String.valueOf(VERSION).equals(properties.getProperty(KEY_VERSION))) {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					f.delete();
+				}
+			}
+			properties.clear();
+			properties.setProperty(KEY_VERSION, String.valueOf(VERSION));
+			writeIndex(dir, properties);
+		}
+		index = properties;
+		return properties;
+	}
+
+	private static void writeIndex(File dir, Properties properties) {
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(new File(dir, INDEX));
+			properties.store(out, null);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			close(out);
+		}
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.android.cglib.proxy;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 public class MethodProxy {
@@ -7,6 +8,11 @@ public class MethodProxy {
 	private Class subClass;
 	private String methodName;
 	private Class[] argsType;
+
+	// looked up on first use and kept, the proxies of an enhanced class
+	// live as long as the class
+	private Method originalMethod;
+	private Method proxyMethod;
 	
 	@SuppressWarnings("rawtypes")
 	public MethodProxy(Class subClass, String methodName, Class[] argsType) {
@@ -21,24 +27,45 @@ public class MethodProxy {
 	
 	@SuppressWarnings("unchecked")
 	public Method getOriginalMethod() {
+		Method method = originalMethod;
+		if (method != null)
+			return method;
 		try {
-			return subClass.getMethod(methodName, argsType);
+			method = subClass.getMethod(methodName, argsType);
 		} catch (NoSuchMethodException e) {
 			throw new ProxyException(e.getMessage());
 		}
+		originalMethod = method;
+		return method;
 	}
 
 	@SuppressWarnings("unchecked")
 	public Method getProxyMethod() {
+		Method method = proxyMethod;
+		if (method != null)
+			return method;
 		try {
-			return subClass.getMethod(methodName + Const.SUBCLASS_INVOKE_SUPER_SUFFIX, argsType);
+			method = subClass.getMethod(methodName + Const.SUBCLASS_INVOKE_SUPER_SUFFIX, argsType);
 		} catch (NoSuchMethodException e) {
 			throw new ProxyException(e.getMessage());
 		}
+		method.setAccessible(true);
+		proxyMethod = method;
+		return method;
 	}
 	
 	public Object invokeSuper(Object object, Object[] argsValue) {
-		return ((EnhancerInterface) object).executeSuperMethod_Enhancer(methodName, argsType, argsValue);
+		if (!subClass.isInstance(object))
+			return ((EnhancerInterface) object).executeSuperMethod_Enhancer(methodName, argsType, argsValue);
+		try {
+			return getProxyMethod().invoke(object, argsValue);
+		} catch (InvocationTargetException e) {
+			e.printStackTrace();
+			throw new ProxyException(e.getCause());
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+			throw new ProxyException(e);
+		}
 	}
 
 }
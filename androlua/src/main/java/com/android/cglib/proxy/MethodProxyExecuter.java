@@ -8,6 +8,26 @@ public class MethodProxyExecuter {
     public static final String EXECUTE_INTERCEPTOR = "executeInterceptor";
     public static final String EXECUTE_METHOD = "executeMethod";
 
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * Called by the overridden methods of an enhanced class with their proxy
+     * from the table of the class
+     */
+    public static Object executeInterceptor(MethodInterceptor interceptor, MethodProxy methodProxy,
+                                            Object[] argsValue, Object object) {
+        if (argsValue == null)
+            argsValue = NO_ARGS;
+        if (interceptor == null)
+            return methodProxy.invokeSuper(object, argsValue);
+        try {
+            return interceptor.intercept(object, argsValue, methodProxy);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new ProxyException(e.getMessage());
+        }
+    }
+
     @SuppressWarnings({"rawtypes"})
     public static Object executeInterceptor(MethodInterceptor interceptor, Class<?> superClass, String methodName,
                                             Class[] argsType, Object[] argsValue, Object object) {
@@ -27,7 +27,9 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.os.StrictMode;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
@@ -74,6 +76,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -118,6 +121,12 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
 
     private LuaBroadcastReceiver mReceiver;
 
+    /**
+     * Releases the references of collected LuaObjects when the main thread
+     * is idle, removed once the activity is destroyed
+     */
+    private MessageQueue.IdleHandler mRefReleaser;
+
     private String luaLpath;
 
     private String luaMdDir;
@@ -904,6 +913,8 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
     protected void onDestroy() {
         if (mReceiver != null)
             unregisterReceiver(mReceiver);
+        if (mRefReleaser != null)
+            Looper.myQueue().removeIdleHandler(mRefReleaser);
 
         for (LuaGcable obj : gclist) {
             obj.gc();
@@ -1459,6 +1470,7 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
         L.pushString(luaCpath);
         L.setField(-2, "cpath");
         L.pop(1);
+        LuaBytecodeCache.getInstance(this).installSearcher(L);
 
         JavaFunction set = new JavaFunction(L) {
             @Override
@@ -1494,6 +1506,18 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
         };
         call.register("call");
 
+        if (mRefReleaser != null)
+            Looper.myQueue().removeIdleHandler(mRefReleaser);
+        mRefReleaser = new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (L.isClosed())
+                    return false;
+                L.releaseRefs();
+                return true;
+            }
+        };
+        Looper.myQueue().addIdleHandler(mRefReleaser);
     }
 
     public void setDebug(boolean isDebug) {
@@ -1505,7 +1529,7 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
             return;
 
         try {
-            int ok = L.LloadFile(luaDir + "/init.lua");
+            int ok = LuaBytecodeCache.getInstance(this).loadFile(L, luaDir + "/init.lua");
             if (ok == 0) {
                 L.newTable();
                 LuaObject env = L.getLuaObject(-1);
@@ -1526,6 +1550,20 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
                     if (debug.isBoolean())
                         mDebug = debug.getBoolean();
 
+                    LuaObject confined = env.getField("confined");
+                    if (confined.isBoolean() && confined.getBoolean()) {
+                        L.confine(new Executor() {
+                            @Override
+                            public void execute(Runnable command) {
+                                handler.post(command);
+                            }
+                        });
+                    }
+
+                    LuaObject metrics = env.getField("metrics");
+                    if (metrics.isBoolean() && metrics.getBoolean())
+                        L.setMetricsEnabled(true);
+
                     LuaObject theme = env.getField("theme");
 
                     if (theme.isNumber())
@@ -1569,7 +1607,7 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
                 filePath = luaDir + "/" + filePath;
 
             L.setTop(0);
-            ok = L.LloadFile(filePath);
+            ok = LuaBytecodeCache.getInstance(this).loadFile(L, filePath);
 
             if (ok == 0) {
                 L.getGlobal("debug");
@@ -1632,7 +1670,7 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
         try {
             byte[] bytes = readAsset(name);
             L.setTop(0);
-            ok = L.LloadBuffer(bytes, name);
+            ok = LuaBytecodeCache.getInstance(this).loadBuffer(L, bytes, name);
 
             if (ok == 0) {
                 L.getGlobal("debug");
@@ -1661,7 +1699,8 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
     //运行lua函数
     public Object runFunc(String funcName, Object... args) {
         if (L != null) {
-            synchronized (L) {
+            boolean locked = L.lock();
+            try {
                 try {
                     L.setTop(0);
                     L.pushGlobalTable();
@@ -1687,6 +1726,8 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
                 } catch (LuaException e) {
                     sendError(funcName, e);
                 }
+            } finally {
+                L.unlock(locked);
             }
         }
         return null;
@@ -1807,13 +1848,16 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
     }
 
     private void setField(String key, Object value) {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             try {
                 L.pushObjectValue(value);
                 L.setGlobal(key);
             } catch (LuaException e) {
                 sendError("setField", e);
             }
+        } finally {
+            L.unlock(locked);
         }
     }
 
@@ -1834,9 +1878,12 @@ public class LuaActivity extends Activity implements LuaBroadcastReceiver.OnRece
     }
 
     public Object get(String key) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             L.getGlobal(key);
             return L.toJavaObject(-1);
+        } finally {
+            L.unlock(locked);
         }
     }
 
@@ -10,6 +10,7 @@ import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.widget.Toast;
 
+import com.android.cglib.proxy.Enhancer;
 import com.luajava.LuaState;
 import com.luajava.LuaTable;
 
@@ -188,6 +189,16 @@ public class LuaApplication extends Application implements LuaContext {
         //luaDir = extDir;
         luaLpath = luaMdDir + "/?.lua;" + luaMdDir + "/lua/?.lua;" + luaMdDir + "/?/init.lua;";
         //checkInfo();
+
+        //生成之前扩展过的类
+        Thread preload = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Enhancer.preload(LuaApplication.this);
+            }
+        }, "EnhancerPreload");
+        preload.setPriority(Thread.MIN_PRIORITY);
+        preload.start();
     }
 
     private static SharedPreferences getSharedPreferences(Context context) {
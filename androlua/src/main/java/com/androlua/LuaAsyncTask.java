@@ -5,7 +5,6 @@ import com.luajava.JavaFunction;
 import com.luajava.LuaException;
 import com.luajava.LuaObject;
 import com.luajava.LuaState;
-import com.luajava.LuaStateFactory;
 
 public class LuaAsyncTask extends AsyncTaskX implements LuaGcable {
 
@@ -103,28 +102,17 @@ public class LuaAsyncTask extends AsyncTaskX implements LuaGcable {
 			catch (InterruptedException e) {}
 			return args;
 		}
-		L = LuaStateFactory.newLuaState();
-		L.openLibs();
-		L.pushJavaObject(mLuaContext);
-		if (mLuaContext instanceof LuaActivity) {
-			L.setGlobal("activity");
+		try {
+			L = LuaStatePool.getPool(mLuaContext).acquire(loadeds != null);
 		}
-		else if (mLuaContext instanceof LuaService) {
-			L.setGlobal("service");
+		catch (LuaException e) {
+			mLuaContext.sendError("AsyncTask", e);
+			return null;
 		}
 		L.pushJavaObject(this);
 		L.setGlobal("this");
-		L.pushContext(mLuaContext);
-
-		L.getGlobal("luajava");
-		L.pushString(mLuaContext.getLuaDir());
-		L.setField(-2, "luadir"); 
-		L.pop(1);
 
 		try {
-			JavaFunction print = new LuaPrint(mLuaContext, L);
-			print.register("print");
-
 			JavaFunction update = new JavaFunction(L){
 
 				@Override
@@ -136,23 +124,13 @@ public class LuaAsyncTask extends AsyncTaskX implements LuaGcable {
 			};
 
 			update.register("update");
-
-			L.getGlobal("package");       
-
-			L.pushString(mLuaContext.getLuaLpath());
-			L.setField(-2, "path");
-			L.pushString(mLuaContext.getLuaCpath());
-			L.setField(-2, "cpath");
-			L.pop(1); 
 		}
 		catch (LuaException e) {
 			mLuaContext.sendError("AsyncTask", e);
 		}
 		
 		if(loadeds!=null){
-			LuaObject require=L.getLuaObject("require");
 			try {
-				require.call("import");
 				LuaObject _import=L.getLuaObject("import");
 				for(Object s:loadeds)
 					_import.call(s.toString());
@@ -198,8 +176,10 @@ public class LuaAsyncTask extends AsyncTaskX implements LuaGcable {
 	protected void onPostExecute(Object result) {
 		// TODO: Implement this method
 
-		if(isCancelled())
+		if(isCancelled()) {
+			releaseLua();
 			return;
+		}
 		try {
 			if (mCallback != null)
 				mCallback.call((Object[])result);
@@ -207,10 +187,20 @@ public class LuaAsyncTask extends AsyncTaskX implements LuaGcable {
 		catch (LuaException e) {
 			mLuaContext.sendError("onPostExecute", e);
 		}
-		if(L!=null)
-			L.gc(LuaState.LUA_GCCOLLECT, 1);
+		releaseLua();
 		System.gc();
-		//L.close();
+	}
+
+	@Override
+	protected void onCancelled() {
+		releaseLua();
+	}
+
+	private void releaseLua() {
+		if (L != null) {
+			LuaStatePool.getPool(mLuaContext).release(L);
+			L = null;
+		}
 	}
 
 	@Override
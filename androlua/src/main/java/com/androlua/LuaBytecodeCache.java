@@ -0,0 +1,329 @@
+package com.androlua;
+
+import android.content.Context;
+
+import com.luajava.JavaFunction;
+import com.luajava.LuaException;
+import com.luajava.LuaState;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of compiled lua chunks, kept in the code cache directory.
+ * <p>
+ * An entry is keyed by the source path, and records the size, modification
+ * time and CRC32 of the source it was compiled from. An entry is used as is
+ * when size and time match. When only the time differs, as after the scripts
+ * are extracted again, the content hash decides. The least recently used
+ * entries are removed once the cache grows past its maximum size.
+ * <p>
+ * Chunks are dumped with their debug information, so error messages and
+ * tracebacks are the same as when the source is loaded.
+ */
+public final class LuaBytecodeCache {
+
+    private static final int MAGIC = 0x4c424331;
+
+    private static final String SUFFIX = ".luac";
+
+    private static LuaBytecodeCache sInstance;
+
+    private final File mDir;
+
+    private long mMaxSize = 16 * 1024 * 1024;
+
+    private LuaBytecodeCache(File dir) {
+        mDir = dir;
+        mDir.mkdirs();
+    }
+
+    public static synchronized LuaBytecodeCache getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new LuaBytecodeCache(new File(context.getApplicationContext().getCodeCacheDir(), "lua"));
+        return sInstance;
+    }
+
+    /**
+     * Sets the size above which the least recently used entries are removed
+     */
+    public void setMaxSize(long size) {
+        mMaxSize = size;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Loads a lua file like <code>LuaState.LloadFile</code>, from the cache
+     * when the file did not change.
+     *
+     * @return the status code of the load
+     */
+    public int loadFile(LuaState L, String path) {
+        File source = new File(path);
+        if (!source.isFile())
+            return L.LloadFile(path);
+
+        long size = source.length();
+        long time = source.lastModified();
+        File entry = getEntry(path);
+        Header header = readHeader(entry, path);
+        try {
+            if (header != null && header.size == size) {
+                if (header.time != time) {
+                    if (crc(readFile(source)) != header.crc) {
+                        header = null;
+                    } else {
+                        header.time = time;
+                        header.stale = true;
+                    }
+                }
+                if (header != null && loadEntry(L, entry, header, path))
+                    return 0;
+            }
+            byte[] bytes = readFile(source);
+            int ok = L.LloadFile(path);
+            if (ok == 0)
+                store(L, entry, path, size, time, crc(bytes));
+            return ok;
+        } catch (IOException e) {
+            return L.LloadFile(path);
+        }
+    }
+
+    /**
+     * Loads a lua chunk like <code>LuaState.LloadBuffer</code>, from the cache
+     * when a chunk of the same name and content was compiled before.
+     * Meant for assets, which have no modification time.
+     *
+     * @return the status code of the load
+     */
+    public int loadBuffer(LuaState L, byte[] bytes, String name) {
+        String key = "buffer:" + name;
+        long crc = crc(bytes);
+        File entry = getEntry(key);
+        Header header = readHeader(entry, key);
+        if (header != null && header.size == bytes.length && header.crc == crc
+                && loadEntry(L, entry, header, key))
+            return 0;
+
+        int ok = L.LloadBuffer(bytes, name);
+        if (ok == 0)
+            store(L, entry, key, bytes.length, 0, crc);
+        return ok;
+    }
+
+    /**
+     * Replaces the lua file searcher of <code>package.searchers</code> with
+     * one loading modules through this cache.
+     */
+    public void installSearcher(LuaState L) throws LuaException {
+        JavaFunction searcher = new Searcher(L);
+        boolean locked = L.lock();
+        try {
+            L.getGlobal("package");
+            L.getField(-1, "searchers");
+            L.pushJavaFunction(searcher);
+            L.rawSetI(-2, 2);
+            L.pop(2);
+        } finally {
+            L.unlock(locked);
+        }
+    }
+
+    /**
+     * Removes every entry
+     */
+    public void clear() {
+        File[] files = mDir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            f.delete();
+        }
+    }
+
+    private File getEntry(String key) {
+        return new File(mDir, Integer.toHexString(key.hashCode()) + SUFFIX);
+    }
+
+    private static long crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static Header readHeader(File entry, String key) {
+        if (!entry.isFile())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(entry));
+            try {
+                if (in.readInt() != MAGIC || !key.equals(in.readUTF()))
+                    return null;
+                Header header = new Header();
+                header.size = in.readLong();
+                header.time = in.readLong();
+                header.crc = in.readLong();
+                return header;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private boolean loadEntry(LuaState L, File entry, Header header, String key) {
+        byte[] chunk;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(entry));
+            try {
+                in.readInt();
+                in.readUTF();
+                in.readLong();
+                in.readLong();
+                in.readLong();
+                chunk = new byte[in.readInt()];
+                in.readFully(chunk);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            entry.delete();
+            return false;
+        }
+
+        if (L.LloadBuffer(chunk, key) != 0) {
+            // written by another lua build
+            L.pop(1);
+            entry.delete();
+            return false;
+        }
+        if (header.stale)
+            write(entry, key, header.size, header.time, header.crc, chunk);
+        else
+            entry.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return LuaUtil.readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void store(LuaState L, File entry, String key, long size, long time, long crc) {
+        byte[] chunk;
+        try {
+            chunk = L.dump(-1);
+        } catch (Exception e) {
+            return;
+        }
+        write(entry, key, size, time, crc, chunk);
+        trim();
+    }
+
+    private void write(File entry, String key, long size, long time, long crc, byte[] chunk) {
+        File tmp = new File(mDir, entry.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                out.writeInt(MAGIC);
+                out.writeUTF(key);
+                out.writeLong(size);
+                out.writeLong(time);
+                out.writeLong(crc);
+                out.writeInt(chunk.length);
+                out.write(chunk);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(entry))
+                tmp.delete();
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+
+    private synchronized void trim() {
+        File[] files = mDir.listFiles();
+        if (files == null)
+            return;
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= mMaxSize)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        });
+        for (File f : files) {
+            if (total <= mMaxSize)
+                break;
+            long length = f.length();
+            if (f.delete())
+                total -= length;
+        }
+    }
+
+    private static final class Header {
+
+        long size;
+
+        long time;
+
+        long crc;
+
+        boolean stale;
+    }
+
+    /**
+     * Lua file searcher using the cache, following the one of the lua
+     * package library: returns the loader and the file name, or a message
+     * when no file was found.
+     */
+    private final class Searcher extends JavaFunction {
+
+        Searcher(LuaState L) {
+            super(L);
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            String name = L.toString(2);
+            L.getGlobal("package");
+            L.getField(-1, "searchpath");
+            L.pushString(name);
+            L.getField(-3, "path");
+            if (L.pcall(2, 2, 0) != 0)
+                throw new LuaException(L.toString(-1));
+            if (L.isNil(-2))
+                return 1;
+
+            String path = L.toString(-2);
+            if (loadFile(L, path) != 0)
+                throw new LuaException("error loading module '" + name + "' from file '" + path + "':\n\t" + L.toString(-1));
+            L.pushString(path);
+            return 2;
+        }
+    }
+}
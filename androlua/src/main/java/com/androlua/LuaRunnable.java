@@ -4,13 +4,12 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 
-import com.luajava.JavaFunction;
 import com.luajava.LuaException;
 import com.luajava.LuaMetaTable;
 import com.luajava.LuaObject;
 import com.luajava.LuaState;
-import com.luajava.LuaStateFactory;
 
 import java.io.IOException;
 import java.util.regex.Pattern;
@@ -68,7 +67,7 @@ public class LuaRunnable extends Thread implements Runnable,LuaMetaTable,LuaGcab
 		set(key, value);
 	}
 
-	private LuaState L;
+	private volatile LuaState L;
 	private Handler thandler;
 	public boolean isRun = false;
 	private LuaContext mLuaContext;
@@ -134,11 +133,21 @@ public class LuaRunnable extends Thread implements Runnable,LuaMetaTable,LuaGcab
 		}
 		catch (LuaException e) {
 			mLuaContext.sendMsg(e.getMessage());
+			releaseLua();
 			return;
 		}
 		if (mIsLoop) {
 			Looper.prepare();
 			thandler = new ThreadHandler();
+			Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+				@Override
+				public boolean queueIdle() {
+					if (L == null || L.isClosed())
+						return false;
+					L.releaseRefs();
+					return true;
+				}
+			});
 			isRun = true;
 			L.getGlobal("run");
 			if (!L.isNil(-1)) {
@@ -149,7 +158,7 @@ public class LuaRunnable extends Thread implements Runnable,LuaMetaTable,LuaGcab
 			Looper.loop();
 		}
 		isRun = false;
-		L.gc(LuaState.LUA_GCCOLLECT, 1);
+		releaseLua();
 		System.gc();
 		return ;
 	}
@@ -170,8 +179,19 @@ public class LuaRunnable extends Thread implements Runnable,LuaMetaTable,LuaGcab
 	}
 
 	public Object get(String key) throws LuaException {
-		L.getGlobal(key);
-		return L.toJavaObject(-1);
+		LuaState L = this.L;
+		if (L == null)
+			return null;
+		boolean locked = L.lock();
+		try {
+			// released, and maybe given to another task, while waiting
+			if (this.L != L)
+				return null;
+			L.getGlobal(key);
+			return L.toJavaObject(-1);
+		} finally {
+			L.unlock(locked);
+		}
 	}
 
 	public void quit() {
@@ -234,59 +254,22 @@ public class LuaRunnable extends Thread implements Runnable,LuaMetaTable,LuaGcab
 
 
 	private void initLua() throws LuaException {
-		L = LuaStateFactory.newLuaState();
-		L.openLibs();
-		L.pushJavaObject(mLuaContext.getContext());
-		if (mLuaContext instanceof LuaActivity) {
-			L.setGlobal("activity");
-		}
-		else if (mLuaContext instanceof LuaService) {
-			L.setGlobal("service");
+		L = LuaStatePool.getPool(mLuaContext).acquire(false);
+		// the context itself, where the pool sets the LuaContext
+		if (mLuaContext instanceof LuaActivity || mLuaContext instanceof LuaService) {
+			L.pushJavaObject(mLuaContext.getContext());
+			L.setGlobal(mLuaContext instanceof LuaActivity ? "activity" : "service");
 		}
 		L.pushJavaObject(this);
 		L.setGlobal("this");
-		L.pushContext(mLuaContext);
-
-		JavaFunction print = new LuaPrint(mLuaContext, L);
-		print.register("print");
-
-		L.getGlobal("package");
-
-		L.pushString(mLuaContext.getLuaLpath());
-		L.setField(-2, "path");
-		L.pushString(mLuaContext.getLuaCpath());
-		L.setField(-2, "cpath");
-		L.pop(1);
-
-		JavaFunction set = new JavaFunction(L) {
-			@Override
-			public int execute() throws LuaException {
-
-				mLuaContext.set(L.toString(2), L.toJavaObject(3));
-				return 0;
-			}
-		};
-		set.register("set");
+	}
 
-		JavaFunction call = new JavaFunction(L) {
-			@Override
-			public int execute() throws LuaException {
-
-				int top=L.getTop();
-				if (top > 2) {
-					Object[] args = new Object[top - 2];
-					for (int i=3;i <= top;i++) {
-						args[i - 3] = L.toJavaObject(i);
-					}
-					mLuaContext.call(L.toString(2), args);
-				}
-				else if (top == 2) {
-					mLuaContext.call(L.toString(2));
-				}
-				return 0;
-			}
-		};
-		call.register("call");
+	private void releaseLua() {
+		LuaState state = L;
+		if (state != null) {
+			L = null;
+			LuaStatePool.getPool(mLuaContext).release(state);
+		}
 	}
 
 	private void newLuaRunnable(String str, Object...args) {
@@ -348,7 +331,7 @@ public class LuaRunnable extends Thread implements Runnable,LuaMetaTable,LuaGcab
 	private void doFile(String filePath, Object...args) throws LuaException {
 		int ok = 0;
 		L.setTop(0);
-		ok = L.LloadFile(filePath);
+		ok = LuaBytecodeCache.getInstance(mLuaContext.getContext()).loadFile(L, filePath);
 
 		if (ok == 0) {
 			L.getGlobal("debug");
@@ -372,7 +355,7 @@ public class LuaRunnable extends Thread implements Runnable,LuaMetaTable,LuaGcab
 		int ok = 0;
 		byte[] bytes = LuaUtil.readAsset(mLuaContext.getContext(), name);
 		L.setTop(0);
-		ok = L.LloadBuffer(bytes, name);
+		ok = LuaBytecodeCache.getInstance(mLuaContext.getContext()).loadBuffer(L, bytes, name);
 
 		if (ok == 0) {
 			L.getGlobal("debug");
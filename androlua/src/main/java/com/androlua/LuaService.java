@@ -15,7 +15,9 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -56,6 +58,12 @@ public class LuaService extends Service implements LuaContext,LuaBroadcastReceiv
 	private String libDir;
 	private String luaExtDir;
 	private BroadcastReceiver mReceiver;
+
+	/**
+	 * Releases the references of collected LuaObjects when the main thread
+	 * is idle, removed once the service is destroyed
+	 */
+	private MessageQueue.IdleHandler mRefReleaser;
 	private StringBuilder output = new StringBuilder();
 	private Toast toast;
 	private StringBuilder toastbuilder = new StringBuilder();
@@ -340,6 +348,8 @@ public class LuaService extends Service implements LuaContext,LuaBroadcastReceiv
 		runFunc("onDestroy");
 		if(mReceiver!=null)
 		unregisterReceiver(mReceiver);
+		if (mRefReleaser != null)
+			Looper.myQueue().removeIdleHandler(mRefReleaser);
 		super.onDestroy();
 	}
 
@@ -584,6 +594,18 @@ public class LuaService extends Service implements LuaContext,LuaBroadcastReceiv
 		};
 		call.register("call");
 
+		if (mRefReleaser != null)
+			Looper.myQueue().removeIdleHandler(mRefReleaser);
+		mRefReleaser = new MessageQueue.IdleHandler() {
+			@Override
+			public boolean queueIdle() {
+				if (L == null || L.isClosed())
+					return false;
+				L.releaseRefs();
+				return true;
+			}
+		};
+		Looper.myQueue().addIdleHandler(mRefReleaser);
 	}
 
 	//运行lua脚本
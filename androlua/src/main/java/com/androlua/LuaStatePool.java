@@ -0,0 +1,482 @@
+package com.androlua;
+
+import com.androlua.util.AsyncTaskX;
+import com.luajava.JavaFunction;
+import com.luajava.LuaException;
+import com.luajava.LuaState;
+import com.luajava.LuaStateFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Pool of ready to use LuaStates for the background tasks of a LuaContext.
+ * <p>
+ * A pooled state has the standard libraries opened, <code>activity</code> or
+ * <code>service</code>, <code>print</code>, <code>set</code> and <code>call</code>
+ * registered, the lua paths of the context set and modules loaded through the
+ * {@link LuaBytecodeCache}; states asked for with
+ * <code>imported</code> have <code>require "import"</code> run as well.
+ * When a state is released its globals, loaded modules, the fields of
+ * <code>package</code>, <code>luajava</code> and of each module loaded
+ * during setup, the tables held in upvalues of global and module functions,
+ * such as the package list of <code>import</code>, and the string metatable
+ * are put back as they were after this setup, so the next task starts from
+ * a clean state. Tables nested deeper than that are not restored. The reset
+ * runs in background, as it ends with a full collection.
+ * <p>
+ * A state is only reset and reused when nothing of the finished task is
+ * still used from java. LuaObjects, proxies and listeners made from its
+ * functions, and the results it returned, all hold a LuaObject of the
+ * state, so a state with LuaObjects made by the task still alive is left
+ * as is, as a state made for the task would be. It is reset and taken
+ * back once they are all collected, when a task finds no idle state.
+ * <p>
+ * The pool of a context is released with the other LuaGcable objects of the
+ * context, closing its idle states and those still used.
+ */
+public final class LuaStatePool implements LuaGcable {
+
+    private static final HashMap<LuaContext, LuaStatePool> sPools = new HashMap<>();
+
+    private static int sDefaultMaxSize = 4;
+
+    /**
+     * Returns a function putting back the globals, loaded modules, the
+     * fields of package, luajava and the loaded modules, the tables in
+     * upvalues of their functions, and the string metatable as they are now.
+     */
+    private static final String SNAPSHOT = ""
+            + "local next, type, rawset, getmetatable, setmetatable = next, type, rawset, getmetatable, setmetatable\n"
+            + "local getupvalue = debug.getupvalue\n"
+            + "local saved, seen = {}, {}\n"
+            + "local function snapshot(t)\n"
+            + "  if type(t) ~= \"table\" or seen[t] then return end\n"
+            + "  seen[t] = true\n"
+            + "  local s = {}\n"
+            + "  for k, v in next, t do s[k] = v end\n"
+            + "  saved[#saved + 1] = { t, s, getmetatable(t) }\n"
+            + "end\n"
+            + "snapshot(_G)\n"
+            + "snapshot(package)\n"
+            + "snapshot(package.loaded)\n"
+            + "snapshot(luajava)\n"
+            + "for _, m in next, package.loaded do snapshot(m) end\n"
+            + "local function upvalues(t)\n"
+            + "  for _, f in next, t do\n"
+            + "    if type(f) == \"function\" then\n"
+            + "      local i = 1\n"
+            + "      while true do\n"
+            + "        local name, v = getupvalue(f, i)\n"
+            + "        if name == nil then break end\n"
+            + "        snapshot(v)\n"
+            + "        i = i + 1\n"
+            + "      end\n"
+            + "    end\n"
+            + "  end\n"
+            + "end\n"
+            + "upvalues(_G)\n"
+            + "upvalues(package.loaded)\n"
+            + "for _, m in next, package.loaded do if type(m) == \"table\" then upvalues(m) end end\n"
+            + "snapshot(getmetatable(\"\"))\n"
+            + "return function()\n"
+            + "  for i = 1, #saved do\n"
+            + "    local t, s, mt = saved[i][1], saved[i][2], saved[i][3]\n"
+            + "    for k in next, t do\n"
+            + "      if s[k] == nil then rawset(t, k, nil) end\n"
+            + "    end\n"
+            + "    for k, v in next, s do rawset(t, k, v) end\n"
+            + "    if getmetatable(t) ~= mt then setmetatable(t, mt) end\n"
+            + "  end\n"
+            + "end\n";
+
+    private final LuaContext mLuaContext;
+
+    private final ArrayDeque<PooledState> mStates = new ArrayDeque<>();
+
+    private final ArrayDeque<PooledState> mImportedStates = new ArrayDeque<>();
+
+    private final IdentityHashMap<LuaState, PooledState> mActiveStates = new IdentityHashMap<>();
+
+    /**
+     * States released while LuaObjects of their task were alive
+     */
+    private final ArrayList<PooledState> mUsedStates = new ArrayList<>();
+
+    private int mMaxSize = sDefaultMaxSize;
+
+    private long mMemoryLimit;
+
+    private long mHitCount;
+
+    private long mMissCount;
+
+    private boolean mGc;
+
+    private LuaStatePool(LuaContext luaContext) {
+        mLuaContext = luaContext;
+    }
+
+    /**
+     * Returns the pool of a context, creating it on first use
+     */
+    public static LuaStatePool getPool(LuaContext luaContext) {
+        synchronized (sPools) {
+            LuaStatePool pool = sPools.get(luaContext);
+            if (pool == null) {
+                pool = new LuaStatePool(luaContext);
+                sPools.put(luaContext, pool);
+                luaContext.regGc(pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Sets the number of idle states kept by pools created from now on
+     */
+    public static void setDefaultMaxSize(int size) {
+        sDefaultMaxSize = size;
+    }
+
+    /**
+     * Sets the number of idle states of each kind kept by this pool,
+     * closing the extra ones.
+     */
+    public void setMaxSize(int size) {
+        synchronized (this) {
+            mMaxSize = size;
+            trim(mStates);
+            trim(mImportedStates);
+        }
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Sets the memory limit of the states given to tasks from now on,
+     * 0 for none. See {@link LuaState#setMemoryLimit(long)}.
+     */
+    public synchronized void setMemoryLimit(long limit) {
+        mMemoryLimit = limit;
+    }
+
+    public synchronized long getMemoryLimit() {
+        return mMemoryLimit;
+    }
+
+    /**
+     * Creates states in background until <code>count</code> states without
+     * import are idle, or the pool is full.
+     */
+    public void prewarm(final int count) {
+        AsyncTaskX.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (LuaStatePool.this) {
+                        if (mGc || mStates.size() >= Math.min(count, mMaxSize))
+                            return;
+                    }
+                    PooledState state;
+                    try {
+                        state = newState(false);
+                    } catch (LuaException e) {
+                        mLuaContext.sendError("LuaStatePool", e);
+                        return;
+                    }
+                    synchronized (LuaStatePool.this) {
+                        if (mGc || mStates.size() >= mMaxSize) {
+                            state.L.close();
+                            return;
+                        }
+                        mStates.push(state);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes an idle state from the pool, or creates one if there is none.
+     *
+     * @param imported if the state must have <code>require "import"</code> run
+     */
+    public LuaState acquire(boolean imported) throws LuaException {
+        PooledState state = poll(imported);
+        if (state == null) {
+            reclaim();
+            state = poll(imported);
+        }
+        long limit;
+        synchronized (this) {
+            if (state != null)
+                mHitCount++;
+            else
+                mMissCount++;
+            limit = mMemoryLimit;
+        }
+        if (state == null)
+            state = newState(imported);
+        // objects of the last task collected while the state was idle
+        state.L.releaseRefs();
+        state.L.setMemoryLimit(limit);
+        state.serial = state.L.getRefSerial();
+        synchronized (this) {
+            mActiveStates.put(state.L, state);
+        }
+        return state.L;
+    }
+
+    private synchronized PooledState poll(boolean imported) {
+        return (imported ? mImportedStates : mStates).poll();
+    }
+
+    /**
+     * Gives a state back to the pool. The state is reset in background, or
+     * closed when the pool is full or released. A state still used by
+     * LuaObjects of the task is left as is until they are collected.
+     */
+    public void release(LuaState L) {
+        final PooledState state;
+        synchronized (this) {
+            state = mActiveStates.remove(L);
+        }
+        if (state == null || L.isClosed())
+            return;
+        synchronized (mUsedStates) {
+            mUsedStates.add(state);
+        }
+        // not on the releasing thread, the UI thread for a LuaAsyncTask
+        AsyncTaskX.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                reset(state);
+            }
+        });
+    }
+
+    /**
+     * Resets the released states whose task objects are all collected
+     */
+    private void reclaim() {
+        PooledState[] states;
+        synchronized (mUsedStates) {
+            if (mUsedStates.isEmpty())
+                return;
+            states = mUsedStates.toArray(new PooledState[mUsedStates.size()]);
+        }
+        for (PooledState state : states) {
+            // checked before locking, as a state still used may be running
+            // a listener on another thread
+            if (state.L.getLiveRefCount(state.serial) == 0)
+                reset(state);
+        }
+    }
+
+    /**
+     * Puts a released state back as it was after setup and returns it to
+     * the pool, unless LuaObjects of its last task are still alive
+     */
+    private void reset(PooledState state) {
+        LuaState L = state.L;
+        boolean locked = L.lock();
+        try {
+            L.releaseRefs();
+            if (L.getLiveRefCount(state.serial) != 0)
+                return;
+            synchronized (mUsedStates) {
+                // reset by another thread meanwhile
+                if (!mUsedStates.remove(state))
+                    return;
+            }
+            if (L.isClosed())
+                return;
+            L.setMemoryLimit(0);
+            L.setTop(0);
+            L.rawGetI(LuaState.LUA_REGISTRYINDEX, state.reset);
+            int ok = L.pcall(0, 0, 0);
+            L.setTop(0);
+            L.gc(LuaState.LUA_GCCOLLECT, 0);
+            if (ok != 0) {
+                L.close();
+                return;
+            }
+        } finally {
+            L.unlock(locked);
+        }
+
+        synchronized (this) {
+            ArrayDeque<PooledState> states = state.imported ? mImportedStates : mStates;
+            if (!mGc && states.size() < mMaxSize) {
+                states.push(state);
+                return;
+            }
+        }
+        L.close();
+    }
+
+    /**
+     * Returns the number of idle states
+     */
+    public synchronized int getSize() {
+        return mStates.size() + mImportedStates.size();
+    }
+
+    /**
+     * Returns the number of states given to tasks and not released yet
+     */
+    public synchronized int getActiveCount() {
+        return mActiveStates.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the part of the acquired states that were taken from the pool
+     */
+    public synchronized float getHitRate() {
+        long total = mHitCount + mMissCount;
+        return total == 0 ? 0 : (float) mHitCount / total;
+    }
+
+    @Override
+    public void gc() {
+        synchronized (sPools) {
+            if (sPools.get(mLuaContext) == this)
+                sPools.remove(mLuaContext);
+        }
+        synchronized (this) {
+            mGc = true;
+            mMaxSize = 0;
+            trim(mStates);
+            trim(mImportedStates);
+        }
+        PooledState[] states;
+        synchronized (mUsedStates) {
+            states = mUsedStates.toArray(new PooledState[mUsedStates.size()]);
+            mUsedStates.clear();
+        }
+        for (PooledState state : states) {
+            if (!state.L.isClosed())
+                state.L.close();
+        }
+    }
+
+    @Override
+    public boolean isGc() {
+        return mGc;
+    }
+
+    private void trim(ArrayDeque<PooledState> states) {
+        while (states.size() > mMaxSize) {
+            states.pollLast().L.close();
+        }
+    }
+
+    private PooledState newState(boolean imported) throws LuaException {
+        final LuaState L = LuaStateFactory.newLuaState();
+        try {
+            L.openLibs();
+            L.pushJavaObject(mLuaContext);
+            if (mLuaContext instanceof LuaActivity) {
+                L.setGlobal("activity");
+            } else if (mLuaContext instanceof LuaService) {
+                L.setGlobal("service");
+            } else {
+                L.pop(1);
+            }
+            L.pushContext(mLuaContext);
+
+            L.getGlobal("luajava");
+            L.pushString(mLuaContext.getLuaDir());
+            L.setField(-2, "luadir");
+            L.pop(1);
+
+            JavaFunction print = new LuaPrint(mLuaContext, L);
+            print.register("print");
+
+            L.getGlobal("package");
+            L.pushString(mLuaContext.getLuaLpath());
+            L.setField(-2, "path");
+            L.pushString(mLuaContext.getLuaCpath());
+            L.setField(-2, "cpath");
+            L.pop(1);
+            LuaBytecodeCache.getInstance(mLuaContext.getContext()).installSearcher(L);
+
+            JavaFunction set = new JavaFunction(L) {
+                @Override
+                public int execute() throws LuaException {
+                    mLuaContext.set(L.toString(2), L.toJavaObject(3));
+                    return 0;
+                }
+            };
+            set.register("set");
+
+            JavaFunction call = new JavaFunction(L) {
+                @Override
+                public int execute() throws LuaException {
+                    int top = L.getTop();
+                    if (top > 2) {
+                        Object[] args = new Object[top - 2];
+                        for (int i = 3; i <= top; i++) {
+                            args[i - 3] = L.toJavaObject(i);
+                        }
+                        mLuaContext.call(L.toString(2), args);
+                    } else if (top == 2) {
+                        mLuaContext.call(L.toString(2));
+                    }
+                    return 0;
+                }
+            };
+            call.register("call");
+
+            L.setTop(0);
+            if (imported) {
+                L.getGlobal("require");
+                L.pushString("import");
+                if (L.pcall(1, 0, 0) != 0)
+                    throw new LuaException("require import: " + L.toString(-1));
+            }
+
+            if (L.LloadString(SNAPSHOT) != 0 || L.pcall(0, 1, 0) != 0)
+                throw new LuaException("LuaStatePool: " + L.toString(-1));
+            int reset = L.Lref(LuaState.LUA_REGISTRYINDEX);
+            L.setTop(0);
+            return new PooledState(L, reset, imported);
+        } catch (LuaException e) {
+            L.close();
+            throw e;
+        }
+    }
+
+    private static final class PooledState {
+
+        final LuaState L;
+
+        final int reset;
+
+        final boolean imported;
+
+        /**
+         * Serial of the first LuaObject made by the task using the state
+         */
+        long serial;
+
+        PooledState(LuaState L, int reset, boolean imported) {
+            this.L = L;
+            this.reset = reset;
+            this.imported = imported;
+        }
+    }
+}
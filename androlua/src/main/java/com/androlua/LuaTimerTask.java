@@ -7,7 +7,7 @@ import java.util.regex.*;
 
 public class LuaTimerTask extends TimerTaskX
 {
-	private LuaState L;
+	private volatile LuaState L;
 	
 	private LuaContext mLuaContext;
 
@@ -17,6 +17,10 @@ public class LuaTimerTask extends TimerTaskX
 
 	private boolean mEnabled=true;
 
+	private boolean mRunning;
+
+	private boolean mCancelled;
+
 	private byte[] mBuffer;
 
 	public LuaTimerTask(LuaContext luaContext, String src) throws LuaException
@@ -53,6 +57,12 @@ public class LuaTimerTask extends TimerTaskX
 	{
 		if (mEnabled == false)
 			return;
+		synchronized (this)
+		{
+			if (mCancelled)
+				return;
+			mRunning = true;
+		}
 		try
 		{
 			if (L == null)
@@ -82,7 +92,14 @@ public class LuaTimerTask extends TimerTaskX
 		{
 			mLuaContext.sendError(this.toString(), e);
 		}
-		L.gc(LuaState.LUA_GCCOLLECT, 1);
+		synchronized (this)
+		{
+			mRunning = false;
+			if (mCancelled)
+				releaseLua();
+			else if (L != null)
+				L.gc(LuaState.LUA_GCCOLLECT, 1);
+		}
 		System.gc();
 		
 	}
@@ -90,8 +107,15 @@ public class LuaTimerTask extends TimerTaskX
 	@Override
 	public boolean cancel()
 	{
-		// TODO: Implement this method
-		return super.cancel();
+		// the state goes back to the pool once the running call returns
+		boolean cancelled = super.cancel();
+		synchronized (this)
+		{
+			mCancelled = true;
+			if (!mRunning)
+				releaseLua();
+		}
+		return cancelled;
 	}
 
 	public void setArg(Object[] arg)
@@ -117,14 +141,30 @@ public class LuaTimerTask extends TimerTaskX
 
 	public void set(String key, Object value) throws LuaException
 	{
+		if (L == null)
+			return;
 		L.pushObjectValue(value);
 		L.setGlobal(key);
 	}
 
 	public Object get(String key) throws LuaException
 	{
-		L.getGlobal(key);
-		return L.toJavaObject(-1);
+		LuaState L = this.L;
+		if (L == null)
+			return null;
+		boolean locked = L.lock();
+		try
+		{
+			// released, and maybe given to another task, while waiting
+			if (this.L != L)
+				return null;
+			L.getGlobal(key);
+			return L.toJavaObject(-1);
+		}
+		finally
+		{
+			L.unlock(locked);
+		}
 	}
 
 	private String errorReason(int error)
@@ -149,67 +189,19 @@ public class LuaTimerTask extends TimerTaskX
 	
 	private void initLua() throws LuaException
 	{
-		L = LuaStateFactory.newLuaState();
-		L.openLibs();
-		L.pushJavaObject(mLuaContext);
-		if(mLuaContext instanceof LuaActivity)
-		{
-			L.setGlobal("activity");
-		}
-		else if(mLuaContext instanceof LuaService)
-		{
-			L.setGlobal("service");
-		}
+		L = LuaStatePool.getPool(mLuaContext).acquire(false);
 		L.pushJavaObject(this);
 		L.setGlobal("this");
-		
-		L.pushContext(mLuaContext);
-		
-		JavaFunction print = new LuaPrint(mLuaContext,L);
-		print.register("print");
-
-		L.getGlobal("package"); 
-		
-		L.pushString(mLuaContext.getLuaLpath());
-		L.setField(-2, "path");
-		L.pushString(mLuaContext.getLuaCpath());
-		L.setField(-2, "cpath");
-		L.pop(1);          
-
-		JavaFunction set = new JavaFunction(L) {
-			@Override
-			public int execute() throws LuaException
-			{
-
-				mLuaContext.set(L.toString(2), L.toJavaObject(3));
-				return 0;
-			}
-		};
-		set.register("set");
-
-		JavaFunction call = new JavaFunction(L) {
-			@Override
-			public int execute() throws LuaException
-			{
+	}
 
-				int top=L.getTop();
-				if (top > 2)
-				{
-					Object[] args = new Object[top - 2];
-					for (int i=3;i <= top;i++)
-					{
-						args[i - 3] = L.toJavaObject(i);
-					}				
-					mLuaContext.call(L.toString(2), args);
-				}
-				else if (top == 2)
-				{
-					mLuaContext.call(L.toString(2));
-				}
-				return 0;
-			}
-		};
-		call.register("call");
+	private void releaseLua()
+	{
+		LuaState state = L;
+		if (state != null)
+		{
+			L = null;
+			LuaStatePool.getPool(mLuaContext).release(state);
+		}
 	}
 
 	private void newLuaThread(String str, Object...args)
@@ -276,7 +268,7 @@ public class LuaTimerTask extends TimerTaskX
 	{
 		int ok = 0;
 		L.setTop(0);
-		ok = L.LloadFile(filePath);
+		ok = LuaBytecodeCache.getInstance(mLuaContext.getContext()).loadFile(L, filePath);
 
 		if (ok == 0)
 		{
@@ -303,7 +295,7 @@ public class LuaTimerTask extends TimerTaskX
 		int ok = 0;
 		byte[] bytes = LuaUtil.readAsset(mLuaContext.getContext(),name);
 		L.setTop(0);
-		ok = L.LloadBuffer(bytes, name);
+		ok = LuaBytecodeCache.getInstance(mLuaContext.getContext()).loadBuffer(L, bytes, name);
 
 		if (ok == 0)
 		{
@@ -77,10 +77,12 @@ public abstract class JavaFunction
 	 */
 	public void register(String name) throws LuaException
 	{
-	  synchronized (L)
-	  {
+	  boolean locked = L.lock();
+	  try {
 			L.pushJavaFunction(this);
 			L.setGlobal(name);
+	  } finally {
+	  	L.unlock(locked);
 	  }
 	}
 }
@@ -23,7 +23,8 @@ public class LuaAbstractMethodInterceptor implements MethodInterceptor {
 
     @Override
     public Object intercept(Object object, @NonNull Object[] args, MethodProxy methodProxy) throws Exception {
-        synchronized (obj.L) {
+        boolean locked = obj.L.lock();
+        try {
             Method method = methodProxy.getOriginalMethod();
             String methodName = method.getName();
             LuaObject func;
@@ -85,6 +86,8 @@ public class LuaAbstractMethodInterceptor implements MethodInterceptor {
                     return 0;
             }
             return ret;
+        } finally {
+            obj.L.unlock(locked);
         }
     }
 }
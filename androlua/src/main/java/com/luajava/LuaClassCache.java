@@ -0,0 +1,100 @@
+package com.luajava;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide cache of the classes looked up by name from lua.
+ * <p>
+ * Classes are looked for with the class loader of luajava, then with each of
+ * the given loaders, as those of <code>LuaDexLoader</code>. Each loader has its
+ * own table remembering what it found and what it did not: the classes of a
+ * loader never change, so a miss stays valid, and loading a new dex adds a new
+ * loader with an empty table rather than invalidating the others. A table
+ * holds its classes through weak references, so it does not keep alive the
+ * loader it is keyed by, which each of its classes references.
+ * <p>
+ * Names probed by <code>import</code> for each imported package, most of them
+ * missing, are then answered without throwing a ClassNotFoundException again.
+ */
+public final class LuaClassCache {
+
+    private static final Object MISS = new Object();
+
+    private static final ConcurrentHashMap<String, Object> sClasses = new ConcurrentHashMap<>();
+
+    private static final WeakHashMap<ClassLoader, ConcurrentHashMap<String, Object>> sLoaderClasses = new WeakHashMap<>();
+
+    private LuaClassCache() {
+    }
+
+    /**
+     * Returns the class of a name found with the class loader of luajava,
+     * or null if there is none
+     */
+    public static Class<?> findClass(String name) {
+        Object clazz = sClasses.get(name);
+        if (clazz == null) {
+            try {
+                clazz = Class.forName(name);
+            } catch (ClassNotFoundException | LinkageError e) {
+                clazz = MISS;
+            }
+            sClasses.put(name, clazz);
+        }
+        return clazz == MISS ? null : (Class<?>) clazz;
+    }
+
+    /**
+     * Returns the class of a name found with the class loader of luajava or
+     * one of <code>loaders</code>, or null if there is none
+     *
+     * @param loaders may be null
+     */
+    public static Class<?> findClass(String name, List<ClassLoader> loaders) {
+        Class<?> clazz = findClass(name);
+        if (clazz != null || loaders == null)
+            return clazz;
+        for (int i = 0; i < loaders.size(); i++) {
+            clazz = findClass(name, loaders.get(i));
+            if (clazz != null)
+                return clazz;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<?> findClass(String name, ClassLoader loader) {
+        ConcurrentHashMap<String, Object> classes;
+        synchronized (sLoaderClasses) {
+            classes = sLoaderClasses.get(loader);
+            if (classes == null) {
+                classes = new ConcurrentHashMap<>();
+                sLoaderClasses.put(loader, classes);
+            }
+        }
+        Object entry = classes.get(name);
+        if (entry == MISS)
+            return null;
+        Class<?> clazz = entry == null ? null : ((WeakReference<Class<?>>) entry).get();
+        if (clazz == null) {
+            try {
+                clazz = loader.loadClass(name);
+            } catch (ClassNotFoundException | LinkageError e) {
+                classes.put(name, MISS);
+                return null;
+            }
+            classes.put(name, new WeakReference<Class<?>>(clazz));
+        }
+        return clazz;
+    }
+
+    public static void clear() {
+        sClasses.clear();
+        synchronized (sLoaderClasses) {
+            sLoaderClasses.clear();
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package com.luajava;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-class member table shared by every LuaState.
+ * The public methods of a class are grouped by name once, the first time the
+ * class is seen from lua; later lookups are plain map reads and are safe to run
+ * from any number of lua threads at the same time.
+ */
+final class LuaClassMembers {
+
+    /**
+     * Signature value of calls that can not be cached by argument types.
+     */
+    static final long NO_SIGNATURE = 0;
+
+    private static final int MAX_SIGNATURE_ARGS = 15;
+
+    private static final Object NONE = new Object();
+
+    private static final ConcurrentHashMap<Class<?>, LuaClassMembers> sMembers = new ConcurrentHashMap<>();
+
+    private final Class<?> mClass;
+
+    private final HashMap<String, Overloads> mMethods = new HashMap<>();
+
+    private final ConcurrentHashMap<String, Overloads> mStaticMethods = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Object> mGetters = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Object> mFields = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Object> mDeclaredFields = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Setter> mSetters = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Setter> mStaticSetters = new ConcurrentHashMap<>();
+
+    private LuaClassMembers(Class<?> clazz) {
+        mClass = clazz;
+        HashMap<String, ArrayList<Method>> lists = new HashMap<>();
+        for (Method method : clazz.getMethods()) {
+            ArrayList<Method> list = lists.get(method.getName());
+            if (list == null) {
+                list = new ArrayList<>();
+                lists.put(method.getName(), list);
+            }
+            list.add(method);
+        }
+        for (Map.Entry<String, ArrayList<Method>> entry : lists.entrySet()) {
+            ArrayList<Method> list = entry.getValue();
+            mMethods.put(entry.getKey(), new Overloads(list.toArray(new Method[list.size()])));
+        }
+    }
+
+    /**
+     * Returns the member table of a class, building it on first use
+     */
+    static LuaClassMembers of(Class<?> clazz) {
+        LuaClassMembers members = sMembers.get(clazz);
+        if (members == null) {
+            members = new LuaClassMembers(clazz);
+            LuaClassMembers old = sMembers.putIfAbsent(clazz, members);
+            if (old != null)
+                members = old;
+        }
+        return members;
+    }
+
+    static void clear() {
+        sMembers.clear();
+    }
+
+    /**
+     * Returns the overloads of a method.
+     *
+     * @param name    method name
+     * @param isClass when true only static methods are returned, falling back
+     *                to the methods of <code>java.lang.Class</code> when there is none
+     */
+    Overloads getMethods(String name, boolean isClass) {
+        if (!isClass) {
+            Overloads overloads = mMethods.get(name);
+            return overloads == null ? Overloads.EMPTY : overloads;
+        }
+
+        Overloads overloads = mStaticMethods.get(name);
+        if (overloads != null)
+            return overloads;
+
+        ArrayList<Method> list = new ArrayList<>();
+        for (Method m : getMethods(name, false).methods) {
+            if (Modifier.isStatic(m.getModifiers()))
+                list.add(m);
+        }
+        if (list.isEmpty())
+            overloads = of(Class.class).getMethods(name, false);
+        else
+            overloads = new Overloads(list.toArray(new Method[list.size()]));
+
+        Overloads old = mStaticMethods.putIfAbsent(name, overloads);
+        return old == null ? overloads : old;
+    }
+
+    /**
+     * Returns the <code>getXxx</code> or <code>isXxx</code> method of a property,
+     * or null if the class has none. Misses are remembered as well.
+     */
+    Method getGetter(String name) {
+        Object getter = mGetters.get(name);
+        if (getter == null) {
+            String methodName = name;
+            char c = methodName.charAt(0);
+            if (Character.isLowerCase(c)) {
+                methodName = Character.toUpperCase(c) + methodName.substring(1);
+            }
+            try {
+                getter = mClass.getMethod("get" + methodName);
+            } catch (NoSuchMethodException e) {
+                try {
+                    getter = mClass.getMethod("is" + methodName);
+                } catch (NoSuchMethodException e1) {
+                    getter = NONE;
+                }
+            }
+            mGetters.put(name, getter);
+        }
+        return getter == NONE ? null : (Method) getter;
+    }
+
+    /**
+     * Returns the accessor of a public field, or null if the class has none.
+     * Misses are remembered as well.
+     */
+    LuaFieldAccessor getField(String name) {
+        Object accessor = mFields.get(name);
+        if (accessor == null) {
+            try {
+                accessor = new LuaFieldAccessor(mClass.getField(name));
+            } catch (NoSuchFieldException e) {
+                accessor = NONE;
+            }
+            mFields.put(name, accessor);
+        }
+        return accessor == NONE ? null : (LuaFieldAccessor) accessor;
+    }
+
+    /**
+     * Returns the accessor of a field declared by the class or one of its
+     * superclasses, whatever its visibility. A field named <code>mName</code>
+     * is looked for as well when <code>name</code> does not start with "m".
+     */
+    LuaFieldAccessor getDeclaredField(String name) {
+        Object accessor = mDeclaredFields.get(name);
+        if (accessor == null) {
+            String memberName = null;
+            if (!name.startsWith("m")) {
+                char c = name.charAt(0);
+                memberName = "m" + (Character.isLowerCase(c) ? Character.toUpperCase(c) + name.substring(1) : name);
+            }
+
+            Field field = null;
+            Class<?> objClass = mClass;
+            while (objClass != null) {
+                try {
+                    field = objClass.getDeclaredField(name);
+                } catch (NoSuchFieldException e) {
+                    try {
+                        if (memberName != null)
+                            field = objClass.getDeclaredField(memberName);
+                    } catch (NoSuchFieldException ignored) {
+                    }
+                }
+                if (field != null)
+                    break;
+                objClass = objClass.getSuperclass();
+            }
+            accessor = field == null ? NONE : new LuaFieldAccessor(field);
+            mDeclaredFields.put(name, accessor);
+        }
+        return accessor == NONE ? null : (LuaFieldAccessor) accessor;
+    }
+
+    /**
+     * Returns the setter plan of a property assigned from lua, making it on
+     * first use.
+     *
+     * @param isClass when true only static setters are planned
+     */
+    Setter getSetter(String name, boolean isClass) {
+        ConcurrentHashMap<String, Setter> setters = isClass ? mStaticSetters : mSetters;
+        Setter setter = setters.get(name);
+        if (setter == null) {
+            setter = new Setter(this, name, isClass);
+            Setter old = setters.putIfAbsent(name, setter);
+            if (old != null)
+                setter = old;
+        }
+        return setter;
+    }
+
+    /**
+     * Computes the argument type signature of <code>n</code> values starting at
+     * <code>idx</code>. The overload chosen for nils, booleans, integers, floats,
+     * strings, tables and functions only depends on their lua type, so they take
+     * part in a signature. Userdata make the call uncacheable, as the overload
+     * depends on the class of the object, and {@link #NO_SIGNATURE} is returned.
+     *
+     * @param types if not null, receives the lua type of each value
+     */
+    static long signature(LuaState L, int idx, int n, int[] types) {
+        long signature = n <= MAX_SIGNATURE_ARGS ? 1 : NO_SIGNATURE;
+        for (int i = 0; i < n; i++) {
+            int type = L.type(idx + i);
+            if (types != null)
+                types[i] = type;
+            if (signature == NO_SIGNATURE)
+                continue;
+            switch (type) {
+                case LuaState.LUA_TNUMBER:
+                    if (L.isInteger(idx + i))
+                        type = LuaState.LUA_TINTEGER;
+                    signature = (signature << 4) | type;
+                    break;
+                case LuaState.LUA_TNIL:
+                case LuaState.LUA_TBOOLEAN:
+                case LuaState.LUA_TSTRING:
+                case LuaState.LUA_TTABLE:
+                case LuaState.LUA_TFUNCTION:
+                    signature = (signature << 4) | type;
+                    break;
+                default:
+                    signature = NO_SIGNATURE;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * All the overloads of one method name, with the invoker resolved for each
+     * argument type signature already seen. The invokers and parameter types
+     * are made on first use, from any thread, and published through atomic
+     * arrays.
+     */
+    static final class Overloads {
+
+        static final Overloads EMPTY = new Overloads(new Method[0]);
+
+        final Method[] methods;
+
+        private final AtomicReferenceArray<LuaMethodInvoker> mInvokers;
+
+        private final AtomicReferenceArray<Class<?>[]> mParameterTypes;
+
+        private final ConcurrentHashMap<Long, LuaMethodInvoker> mResolved = new ConcurrentHashMap<>();
+
+        Overloads(Method[] methods) {
+            this.methods = methods;
+            mInvokers = new AtomicReferenceArray<>(methods.length);
+            mParameterTypes = new AtomicReferenceArray<>(methods.length);
+        }
+
+        boolean isEmpty() {
+            return methods.length == 0;
+        }
+
+        /**
+         * Returns the invoker of <code>methods[i]</code>, creating it on first use
+         */
+        LuaMethodInvoker invoker(int i) {
+            LuaMethodInvoker invoker = mInvokers.get(i);
+            if (invoker == null) {
+                invoker = new LuaMethodInvoker(methods[i]);
+                mInvokers.set(i, invoker);
+            }
+            return invoker;
+        }
+
+        /**
+         * Returns the parameter types of <code>methods[i]</code>, without the
+         * copy made by <code>Method.getParameterTypes</code> on each call
+         */
+        Class<?>[] parameterTypes(int i) {
+            Class<?>[] types = mParameterTypes.get(i);
+            if (types == null) {
+                types = methods[i].getParameterTypes();
+                mParameterTypes.set(i, types);
+            }
+            return types;
+        }
+
+        LuaMethodInvoker getResolved(long signature) {
+            if (signature == NO_SIGNATURE)
+                return null;
+            return mResolved.get(signature);
+        }
+
+        void putResolved(long signature, LuaMethodInvoker invoker) {
+            if (signature != NO_SIGNATURE)
+                mResolved.put(signature, invoker);
+        }
+    }
+
+    /**
+     * How <code>obj.name = value</code> is done for one property: the
+     * <code>setXxx</code> overloads, the <code>setOnXxxListener</code> method
+     * when the name starts with "on", and the setter last called with its
+     * argument signature, so that assigning the same property again does not
+     * build any name or look up any method.
+     */
+    static final class Setter {
+
+        /**
+         * Name of the setter methods, as <code>setText</code>
+         */
+        final String name;
+
+        final Overloads setters;
+
+        /**
+         * If some setter takes one argument
+         */
+        final boolean hasSetter;
+
+        /**
+         * If the property is a listener, as <code>onClick</code>, set with a
+         * function
+         */
+        final boolean isListener;
+
+        /**
+         * The <code>setOnXxxListener</code> method of a listener, or null
+         */
+        final Method listener;
+
+        final Class<?> listenerType;
+
+        private volatile Resolved mLast;
+
+        Setter(LuaClassMembers members, String property, boolean isClass) {
+            String methodName = property;
+            char c = methodName.charAt(0);
+            if (Character.isLowerCase(c)) {
+                methodName = Character.toUpperCase(c) + methodName.substring(1);
+            }
+            name = "set" + methodName;
+            setters = members.getMethods(name, isClass);
+
+            boolean one = false;
+            for (int i = 0; i < setters.methods.length && !one; i++) {
+                if (isClass && !Modifier.isStatic(setters.methods[i].getModifiers()))
+                    continue;
+                one = setters.parameterTypes(i).length == 1;
+            }
+            hasSetter = one;
+
+            Method method = null;
+            Class<?> type = null;
+            isListener = property.length() > 2 && property.startsWith("on");
+            if (isListener) {
+                Overloads overloads = members.getMethods("setOn" + property.substring(2) + "Listener", isClass);
+                for (int i = 0; i < overloads.methods.length; i++) {
+                    Method m = overloads.methods[i];
+                    if (isClass && !Modifier.isStatic(m.getModifiers()))
+                        continue;
+                    Class<?>[] tp = overloads.parameterTypes(i);
+                    if (tp.length == 1 && tp[0].isInterface()) {
+                        method = m;
+                        type = tp[0];
+                        break;
+                    }
+                }
+            }
+            listener = method;
+            listenerType = type;
+        }
+
+        /**
+         * Returns the setter last called for <code>signature</code>, or the one
+         * resolved for it before, or null
+         */
+        LuaMethodInvoker getResolved(long signature) {
+            if (signature == NO_SIGNATURE)
+                return null;
+            Resolved last = mLast;
+            if (last != null && last.signature == signature)
+                return last.invoker;
+            LuaMethodInvoker invoker = setters.getResolved(signature);
+            if (invoker != null)
+                mLast = new Resolved(signature, invoker);
+            return invoker;
+        }
+
+        void putResolved(long signature, LuaMethodInvoker invoker) {
+            if (signature == NO_SIGNATURE)
+                return;
+            setters.putResolved(signature, invoker);
+            mLast = new Resolved(signature, invoker);
+        }
+    }
+
+    private static final class Resolved {
+
+        final long signature;
+
+        final LuaMethodInvoker invoker;
+
+        Resolved(long signature, LuaMethodInvoker invoker) {
+            this.signature = signature;
+            this.invoker = invoker;
+        }
+    }
+}
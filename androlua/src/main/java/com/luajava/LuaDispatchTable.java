@@ -0,0 +1,159 @@
+package com.luajava;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+/**
+ * Dispatch table of a proxy implemented by a lua function or table.
+ * The name, return conversion and default value of each method are worked
+ * out the first time the method is called. The lua function is then looked
+ * up on the stack and called with the arguments pushed directly, so a call
+ * does not create any LuaObject or argument array.
+ * <p>
+ * The function is looked up on each call rather than kept, so fields of the
+ * table assigned after the proxy was made are still seen.
+ * Must be used while holding the lock of the state.
+ */
+final class LuaDispatchTable {
+
+    static final int RET_VOID = 0;
+    static final int RET_BOOLEAN = 1;
+    static final int RET_NUMBER = 2;
+    static final int RET_OBJECT = 3;
+
+    private final LuaObject mObject;
+
+    private final boolean mIsFunction;
+
+    private final HashMap<Method, Entry> mEntries = new HashMap<>();
+
+    LuaDispatchTable(LuaObject obj) {
+        mObject = obj;
+        mIsFunction = obj.isFunction();
+    }
+
+    Entry get(Method method) {
+        Entry entry = mEntries.get(method);
+        if (entry == null) {
+            entry = new Entry(method);
+            mEntries.put(method, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Pushes the function implementing a method.
+     *
+     * @return false, pushing nothing, when the table has no such function
+     */
+    boolean pushFunction(Entry entry) {
+        LuaState L = mObject.L;
+        mObject.push();
+        if (mIsFunction)
+            return true;
+        L.getField(-1, entry.name);
+        L.remove(-2);
+        if (L.isNil(-1)) {
+            L.pop(1);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Calls the function pushed by {@link #pushFunction(Entry)} with
+     * <code>self</code>, when not null, followed by <code>args</code>,
+     * and returns its result converted to the return type of the method.
+     */
+    Object call(Entry entry, Object self, Object[] args) throws LuaException {
+        LuaState L = mObject.L;
+        int top = L.getTop() - 1;
+        int nargs = 0;
+        if (self != null) {
+            L.pushJavaObject(self);
+            nargs++;
+        }
+        if (args != null) {
+            for (Object arg : args) {
+                L.pushObjectValue(arg);
+            }
+            nargs += args.length;
+        }
+
+        int nres = entry.kind == RET_VOID ? 0 : 1;
+        int err = L.pcall(nargs, nres, 0);
+        if (err != 0) {
+            String str = L.isString(-1) ? L.toString(-1) : "";
+            L.setTop(top);
+            if (err == LuaState.LUA_ERRRUN) {
+                str = "Runtime error. " + str;
+            } else if (err == LuaState.LUA_ERRMEM) {
+                str = "Memory allocation error. " + str;
+            } else if (err == LuaState.LUA_ERRERR) {
+                str = "Error while running the error handler function. " + str;
+            } else {
+                str = "Lua Error code " + err + ". " + str;
+            }
+            throw new LuaException(str);
+        }
+        if (nres == 0)
+            return null;
+
+        Object ret;
+        try {
+            ret = L.toJavaObject(-1);
+        } finally {
+            L.setTop(top);
+        }
+        return entry.convert(ret);
+    }
+
+    static final class Entry {
+
+        final String name;
+
+        final int kind;
+
+        /**
+         * Value returned when there is no function or it returns nil
+         */
+        final Object defaultValue;
+
+        private final Class<?> mReturnType;
+
+        Entry(Method method) {
+            name = method.getName();
+            mReturnType = method.getReturnType();
+            if (mReturnType == void.class || mReturnType == Void.class) {
+                kind = RET_VOID;
+                defaultValue = null;
+            } else if (mReturnType == boolean.class || mReturnType == Boolean.class) {
+                kind = RET_BOOLEAN;
+                defaultValue = false;
+            } else if (mReturnType.isPrimitive() || Number.class.isAssignableFrom(mReturnType)) {
+                kind = RET_NUMBER;
+                Number zero = LuaState.convertLuaNumber(0L, mReturnType);
+                defaultValue = zero == null ? 0 : zero;
+            } else {
+                kind = RET_OBJECT;
+                defaultValue = null;
+            }
+        }
+
+        Object convert(Object ret) {
+            if (ret == null)
+                return defaultValue;
+            if (kind == RET_NUMBER) {
+                Number n = null;
+                if (ret instanceof Double)
+                    n = LuaState.convertLuaNumber((Double) ret, mReturnType);
+                else if (ret instanceof Long)
+                    n = LuaState.convertLuaNumber((Long) ret, mReturnType);
+                else
+                    return ret;
+                return n == null ? defaultValue : n;
+            }
+            return ret;
+        }
+    }
+}
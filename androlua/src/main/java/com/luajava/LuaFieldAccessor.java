@@ -0,0 +1,126 @@
+package com.luajava;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import static com.luajava.LuaMethodInvoker.*;
+
+/**
+ * Accessor of one java field.
+ * Primitive fields are read and written with the typed <code>Field</code>
+ * methods, so numbers and booleans do not go through boxing; the value of a
+ * static final field is read once and kept.
+ */
+final class LuaFieldAccessor {
+
+    final Field field;
+
+    final boolean isStatic;
+
+    final boolean isFinal;
+
+    private final Class<?> mType;
+
+    private final int mKind;
+
+    private volatile boolean mHasConstant;
+
+    private Object mConstant;
+
+    LuaFieldAccessor(Field field) {
+        this.field = field;
+        int modifiers = field.getModifiers();
+        isStatic = Modifier.isStatic(modifiers);
+        isFinal = Modifier.isFinal(modifiers);
+        mType = field.getType();
+        mKind = kindOf(mType);
+        if (!Modifier.isPublic(modifiers))
+            field.setAccessible(true);
+    }
+
+    Class<?> getType() {
+        return mType;
+    }
+
+    /**
+     * Pushes the value of the field of <code>obj</code>
+     */
+    void push(LuaState L, Object obj) throws LuaException, IllegalAccessException {
+        if (isStatic && isFinal) {
+            if (!mHasConstant) {
+                mConstant = field.get(null);
+                mHasConstant = true;
+            }
+            pushValue(L, mConstant);
+            return;
+        }
+        switch (mKind) {
+            case KIND_BOOLEAN:
+                L.pushBoolean(field.getBoolean(obj));
+                break;
+            case KIND_BYTE:
+            case KIND_SHORT:
+            case KIND_CHAR:
+            case KIND_INT:
+                L.pushInteger(field.getInt(obj));
+                break;
+            case KIND_LONG:
+                L.pushInteger(field.getLong(obj));
+                break;
+            case KIND_FLOAT:
+            case KIND_DOUBLE:
+                L.pushNumber(field.getDouble(obj));
+                break;
+            default:
+                L.pushObjectValue(field.get(obj));
+        }
+    }
+
+    private void pushValue(LuaState L, Object value) throws LuaException {
+        if (value instanceof Character)
+            L.pushInteger((Character) value);
+        else
+            L.pushObjectValue(value);
+    }
+
+    /**
+     * Sets the field of <code>obj</code> to the value at <code>idx</code>.
+     *
+     * @throws LuaException if the value does not match the field type
+     */
+    void set(LuaState L, Object obj, int idx) throws LuaException, IllegalAccessException {
+        int type = L.type(idx);
+        if (type == LuaState.LUA_TNUMBER) {
+            // narrowed as convertLuaNumber does, a float out of range of
+            // an int gives Integer.MAX_VALUE
+            boolean isInteger = L.isInteger(idx);
+            switch (mKind) {
+                case KIND_BYTE:
+                    field.setByte(obj, isInteger ? (byte) L.toInteger(idx) : (byte) L.toNumber(idx));
+                    return;
+                case KIND_SHORT:
+                    field.setShort(obj, isInteger ? (short) L.toInteger(idx) : (short) L.toNumber(idx));
+                    return;
+                case KIND_CHAR:
+                    field.setChar(obj, (char) L.toInteger(idx));
+                    return;
+                case KIND_INT:
+                    field.setInt(obj, isInteger ? (int) L.toInteger(idx) : (int) L.toNumber(idx));
+                    return;
+                case KIND_LONG:
+                    field.setLong(obj, isInteger ? L.toInteger(idx) : (long) L.toNumber(idx));
+                    return;
+                case KIND_FLOAT:
+                    field.setFloat(obj, (float) L.toNumber(idx));
+                    return;
+                case KIND_DOUBLE:
+                    field.setDouble(obj, L.toNumber(idx));
+                    return;
+            }
+        } else if (type == LuaState.LUA_TBOOLEAN && mKind == KIND_BOOLEAN) {
+            field.setBoolean(obj, L.toBoolean(idx));
+            return;
+        }
+        field.set(obj, LuaJavaAPI.compareTypes(L, mType, idx));
+    }
+}
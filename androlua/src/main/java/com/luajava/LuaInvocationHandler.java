@@ -40,59 +40,33 @@ import java.lang.reflect.Method;
 public class LuaInvocationHandler implements InvocationHandler {
 	private final LuaContext mContext;
 	private LuaObject obj;
+	private final LuaDispatchTable mDispatch;
 
 	public LuaInvocationHandler(LuaObject obj) {
 		this.obj = obj;
 		mContext=obj.getLuaState().getContext();
+		mDispatch = new LuaDispatchTable(obj);
 	}
 
 	/**
 	 * Function called when a proxy object function is invoked.
 	 */
 	public Object invoke(Object proxy, Method method, Object[] args) throws LuaException {
-		synchronized (obj.L) {
-			String methodName = method.getName();
-			LuaObject func;
-			if (obj.isFunction()){
-				func = obj;
-			}
-			else{
-				func = obj.getField(methodName);
-			}
-			Class<?> retType = method.getReturnType();
+		boolean locked = obj.L.lock();
+		try {
+			LuaDispatchTable.Entry entry = mDispatch.get(method);
+			if (!mDispatch.pushFunction(entry))
+				return entry.defaultValue;
 
-			if (func.isNil()) {
-				if (retType.equals(boolean.class) || retType.equals(Boolean.class))
-					return false;
-				else if (retType.isPrimitive() || Number.class.isAssignableFrom(retType))
-					return 0;
-				else
-					return null;
-			}
-
-			Object ret = null;
 			try {
-				// Checks if returned type is void. if it is returns null.
-				if (retType.equals(Void.class) || retType.equals(void.class)) {
-					func.call(args);
-					ret = null;
-				}
-				else {
-					ret = func.call(args);
-					if (ret != null && ret instanceof Double) {
-						ret = LuaState.convertLuaNumber((Double) ret, retType);
-					}
-				}
+				return mDispatch.call(entry, null, args);
 			}
 			catch (LuaException e) {
-				mContext.sendError(methodName, e);
-			}  	
-			if (ret == null)
-				if (retType.equals(boolean.class) || retType.equals(Boolean.class))
-					return false;
-				else if (retType.isPrimitive() || Number.class.isAssignableFrom(retType))
-					return 0;
-			return ret;
+				mContext.sendError(entry.name, e);
+			}
+			return entry.defaultValue;
+		} finally {
+			obj.L.unlock(locked);
 		}
 	}
 }
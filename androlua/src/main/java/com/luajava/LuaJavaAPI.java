@@ -37,15 +37,15 @@ import com.androlua.LuaGcable;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class that contains functions accessed by lua.
@@ -53,43 +53,31 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author Thiago Ponte
  */
 public final class LuaJavaAPI {
-    private final static HashMap<Class<?>, HashMap<String, ArrayList<Method>>> methodCache3 = new HashMap<Class<?>, HashMap<String, ArrayList<Method>>>();
-    public final static HashMap<Class<?>, Method[]> methodsMap = new HashMap<Class<?>, Method[]>();
-    public final static HashMap<String, Method[]> methodCache = new HashMap<String, Method[]>();
-    private static HashMap<String, Method> stringMethodCache = new HashMap<>();
-    private static HashMap<String, Method> integerMethodCache = new HashMap<>();
-    private static HashMap<String, Method> doubleMethodCache = new HashMap<>();
-    private static HashMap<String, Method> boolMethodCache = new HashMap<>();
-    private static HashMap<String, Method> voidMethodCache = new HashMap<>();
-    private static AtomicInteger sJavaObjectIdx =new AtomicInteger();
+    private static final int MAX_GLOBAL_REFS = 50000;
 
     private LuaJavaAPI() {
     }
 
     public static void clearCaches() {
-        methodCache.clear();
-        methodsMap.clear();
-
-        stringMethodCache.clear();
-        integerMethodCache.clear();
-        doubleMethodCache.clear();
-        boolMethodCache.clear();
-        voidMethodCache.clear();
+        LuaClassMembers.clear();
     }
 
     /**
      * Java implementation of the metamethod __index
      *
-     * @param luaState   int that indicates the state used
+     * @param L          the LuaState
      * @param obj        Object to be indexed
      * @param searchName the name of the method
      * @return number of returned objects
      */
 
-    public static int objectIndex(long luaState, Object obj, String searchName, int type)
+    public static int objectIndex(LuaState L, Object obj, String searchName, int type)
             throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
+            LuaMetrics metrics = L.getMetrics();
+            if (metrics != null)
+                metrics.objectIndexCount++;
             int ret = 0;
             if (type == 0)
                 if (checkMethod(L, obj, searchName) != 0)
@@ -115,180 +103,168 @@ public final class LuaJavaAPI {
             }
 
             return 0;
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    public static int callMethod(long luaState, Object obj, String cacheName)
+    public static int callMethod(LuaState L, Object obj, String methodName)
             throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
+        boolean locked = L.lock();
+        try {
+            Class<?> clazz;
+            boolean isClass = false;
+            if (obj instanceof Class) {
+                clazz = (Class<?>) obj;
+                isClass = true;
+            } else {
+                clazz = obj.getClass();
+            }
+            LuaClassMembers.Overloads overloads = LuaClassMembers.of(clazz).getMethods(methodName, isClass);
 
-        synchronized (L) {
             StringBuilder msgBuilder = new StringBuilder();
-            Method method = null;
             int top = L.getTop();
-            int methodType = -1;
-            if (top == 0) {
-                methodType = LuaState.LUA_TNIL;
-                method = voidMethodCache.get(cacheName);
-                if (method != null) {
-                    Object ret;
-                    try {
-                        ret = method.invoke(obj);
-                    } catch (Exception e) {
-                        msgBuilder.append("  at ").append(method).append("\n  -> ").append((e.getCause() != null) ? e.getCause() : e).append("\n");
-                        throw new LuaException("Invalid method call.\n" + msgBuilder.toString());
-                    }
-                    // Void function returns null
-                    if (ret == null && method.getReturnType().equals(Void.TYPE))
-                        return 0;
-                    // push result
-                    L.pushObjectValue(ret);
-                    return 1;
+            int[] type = new int[top];
+            long signature = LuaClassMembers.signature(L, 1, top, type);
+
+            LuaMetrics metrics = L.getMetrics();
+            LuaMethodInvoker invoker = overloads.getResolved(signature);
+            if (metrics != null) {
+                metrics.callMethodCount++;
+                if (invoker != null)
+                    metrics.resolvedHitCount++;
+                else
+                    metrics.resolvedMissCount++;
+            }
+            if (invoker != null) {
+                Object ret;
+                try {
+                    ret = invoker.call(L, obj, 1, type);
+                } catch (LuaException e) {
+                    // the signature does not tell a list table from a map,
+                    // so the cached overload may not take this one
+                    return callOverloads(L, obj, overloads, top, type);
+                } catch (Exception e) {
+                    msgBuilder.append("  at ").append(invoker.method).append("\n  -> ").append((e.getCause() != null) ? e.getCause() : e).append("\n");
+                    throw new LuaException("Invalid method call.\n" + msgBuilder.toString());
                 }
+                return invoker.pushResult(L, ret);
             }
 
-            Object[] objs = new Object[top];
-
-            if (top == 1) {
-                switch (L.type(1)) {
-                    case LuaState.LUA_TSTRING:
-                        methodType = LuaState.LUA_TSTRING;
-                        method = stringMethodCache.get(cacheName);
-                        if (method != null)
-                            objs[0] = L.toString(1);
-                        break;
-                    case LuaState.LUA_TBOOLEAN:
-                        methodType = LuaState.LUA_TBOOLEAN;
-                        method = boolMethodCache.get(cacheName);
-                        if (method != null)
-                            objs[0] = L.toBoolean(1);
-                        break;
-                    case LuaState.LUA_TNUMBER:
-                        if (L.isInteger(1)) {
-                            methodType = LuaState.LUA_TINTEGER;
-                            method = integerMethodCache.get(cacheName);
-                            if (method != null)
-                                objs[0] = LuaState.convertLuaNumber(L.toInteger(1), method.getParameterTypes()[0]);
-                        } else {
-                            methodType = LuaState.LUA_TNUMBER;
-                            method = doubleMethodCache.get(cacheName);
-                            if (method != null)
-                                objs[0] = LuaState.convertLuaNumber(L.toNumber(1), method.getParameterTypes()[0]);
-
-                        }
-                        break;
+            int best = resolve(L, overloads, 1, top, type, false);
+            if (best != LuaOverloadResolver.NO_MATCH) {
+                invoker = overloads.invoker(best);
+                Object ret;
+                try {
+                    ret = invoker.call(L, obj, 1, type);
+                } catch (LuaException e) {
+                    // an argument could not be converted after all, as a list
+                    // table for an interface, so each overload is tried in turn
+                    return callOverloads(L, obj, overloads, top, type);
+                } catch (Exception e) {
+                    msgBuilder.append("  at ").append(invoker.method).append("\n  -> ").append((e.getCause() != null) ? e.getCause() : e).append("\n");
+                    throw new LuaException("Invalid method call.\n" + msgBuilder.toString());
                 }
-                if (method != null) {
-                    Object ret;
-                    try {
-                        if (!Modifier.isPublic(method.getModifiers()))
-                            method.setAccessible(true);
 
-                        ret = method.invoke(obj, objs);
-                    } catch (Exception e) {
-                        msgBuilder.append("  at ").append(method).append("\n  -> ").append((e.getCause() != null) ? e.getCause() : e).append("\n");
-                        throw new LuaException("Invalid method call.\n" + msgBuilder.toString());
-                    }
-
-                    // Void function returns null
-                    if (ret == null && method.getReturnType().equals(Void.TYPE))
-                        return 0;
-
-                    // push result
-                    L.pushObjectValue(ret);
-                    return 1;
-                }
+                overloads.putResolved(signature, invoker);
+                return invoker.pushResult(L, ret);
             }
 
-            Method[] methods = methodCache.get(cacheName);
-            int[] type = new int[top];
-            for (int i = 0; i < top; i++) {
-                type[i] = L.type(i + 1);
+            // there isn't a method receiving the given arguments
+            for (Method m : overloads.methods) {
+                msgBuilder.append(m.toString());
+                msgBuilder.append("\n");
             }
-            // gets method and arguments
-            for (Method m : methods) {
-
-                Class[] parameters = m.getParameterTypes();
-                if (parameters.length != top)
-                    continue;
+            throw new LuaException("Invalid method call. Invalid Parameters.\n" + msgBuilder.toString());
 
-                boolean okMethod = true;
+        } finally {
+            L.unlock(locked);
+        }
+    }
 
-                for (int j = 0; j < parameters.length; j++) {
-                    try {
-                        objs[j] = compareTypes(L, parameters[j], type[j], j + 1);
-                    } catch (Exception e) {
-                        okMethod = false;
-                        break;
-                    }
-                }
+    private static int resolve(LuaState L, LuaClassMembers.Overloads overloads, int base, int n, int[] types,
+                               boolean staticOnly) throws LuaException {
+        LuaMetrics metrics = L.getMetrics();
+        if (metrics == null)
+            return LuaOverloadResolver.resolve(L, overloads, base, n, types, staticOnly);
+        long start = System.nanoTime();
+        try {
+            return LuaOverloadResolver.resolve(L, overloads, base, n, types, staticOnly);
+        } finally {
+            metrics.resolveCount++;
+            metrics.resolveNanos += System.nanoTime() - start;
+        }
+    }
 
-                if (okMethod) {
-                    method = m;
-                    Object ret;
-                    try {
-                        if (!Modifier.isPublic(method.getModifiers()))
-                            method.setAccessible(true);
+    /**
+     * Calls the first overload accepting the arguments. The choice depends on
+     * the values and not only on their types, so it is not cached.
+     */
+    private static int callOverloads(LuaState L, Object obj, LuaClassMembers.Overloads overloads, int top, int[] type)
+            throws LuaException {
+        StringBuilder msgBuilder = new StringBuilder();
+        // gets method and arguments
+        Object[] objs = new Object[top];
+        Method[] methods = overloads.methods;
+        for (int i = 0; i < methods.length; i++) {
 
-                        ret = method.invoke(obj, objs);
-                    } catch (Exception e) {
-                        msgBuilder.append("  at ").append(method).append("\n  -> ").append((e.getCause() != null) ? e.getCause() : e).append("\n");
-                        continue;
-                    }
+            Class[] parameters = overloads.parameterTypes(i);
+            if (parameters.length != top)
+                continue;
 
-                    switch (methodType) {
-                        case LuaState.LUA_TSTRING:
-                            stringMethodCache.put(cacheName, method);
-                            break;
-                        case LuaState.LUA_TINTEGER:
-                            integerMethodCache.put(cacheName, method);
-                            break;
-                        case LuaState.LUA_TNUMBER:
-                            doubleMethodCache.put(cacheName, method);
-                            break;
-                        case LuaState.LUA_TBOOLEAN:
-                            boolMethodCache.put(cacheName, method);
-                            break;
-                        case LuaState.LUA_TNIL:
-                            voidMethodCache.put(cacheName, method);
-                            break;
-                    }
-                    // Void function returns null
-                    if (ret == null && method.getReturnType().equals(Void.TYPE))
-                        return 0;
+            boolean okMethod = true;
 
-                    // push result
-                    L.pushObjectValue(ret);
-                    return 1;
+            for (int j = 0; j < parameters.length; j++) {
+                try {
+                    objs[j] = compareTypes(L, parameters[j], type[j], j + 1, true);
+                } catch (Exception e) {
+                    okMethod = false;
+                    break;
                 }
             }
 
-            if (msgBuilder.length() > 0) {
-                throw new LuaException("Invalid method call.\n" + msgBuilder.toString());
-            }
-            // If method is null means there isn't one receiving the given arguments
-            for (Method m : methods) {
-                msgBuilder.append(m.toString());
-                msgBuilder.append("\n");
+            if (okMethod) {
+                LuaMethodInvoker invoker = overloads.invoker(i);
+                Object ret;
+                try {
+                    LuaProxyFactory.materialize(L, objs);
+                    ret = invoker.invoke(obj, objs);
+                } catch (Exception e) {
+                    msgBuilder.append("  at ").append(invoker.method).append("\n  -> ").append((e.getCause() != null) ? e.getCause() : e).append("\n");
+                    continue;
+                }
+
+                return invoker.pushResult(L, ret);
             }
-            throw new LuaException("Invalid method call. Invalid Parameters.\n" + msgBuilder.toString());
+        }
 
+        if (msgBuilder.length() > 0) {
+            throw new LuaException("Invalid method call.\n" + msgBuilder.toString());
         }
+        // If method is null means there isn't one receiving the given arguments
+        for (Method m : overloads.methods) {
+            msgBuilder.append(m.toString());
+            msgBuilder.append("\n");
+        }
+        throw new LuaException("Invalid method call. Invalid Parameters.\n" + msgBuilder.toString());
     }
 
     /**
      * Java implementation of the metamethod __newindex
      *
-     * @param luaState   int that indicates the state used
+     * @param L          the LuaState
      * @param obj        Object to be indexed
      * @param searchName the name of the method
      * @return number of returned objects
      */
 
-    public static int objectNewIndex(long luaState, Object obj, String searchName, int type)
+    public static int objectNewIndex(LuaState L, Object obj, String searchName, int type)
             throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
+            LuaMetrics metrics = L.getMetrics();
+            if (metrics != null)
+                metrics.newIndexCount++;
             int res;
             if (type == 0 || type == 1) {
                 res = setFieldValue(L, obj, searchName);
@@ -308,12 +284,14 @@ public final class LuaJavaAPI {
                 }
             }
             return 0;
+        } finally {
+            L.unlock(locked);
         }
     }
 
     public static int setFieldValue(LuaState L, Object obj, String fieldName) throws LuaException {
-        synchronized (L) {
-            Field field = null;
+        boolean locked = L.lock();
+        try {
             Class objClass;
             boolean isClass = false;
 
@@ -327,29 +305,22 @@ public final class LuaJavaAPI {
                 objClass = obj.getClass();
             }
 
-            try {
-                field = objClass.getField(fieldName);
-            } catch (NoSuchFieldException e) {
-                return 0;
-            }
-
+            LuaFieldAccessor field = LuaClassMembers.of(objClass).getField(fieldName);
             if (field == null)
                 return 0;
-            if (isClass && !Modifier.isStatic(field.getModifiers()))
+            if (isClass && !field.isStatic)
                 return 0;
-            Class type = field.getType();
             try {
-                if (!Modifier.isPublic(field.getModifiers()))
-                    field.setAccessible(true);
-
-                field.set(obj, compareTypes(L, type, L.getTop()));
+                field.set(L, obj, L.getTop());
             } catch (LuaException e) {
-                argError(L, fieldName, -1, type);
+                argError(L, fieldName, -1, field.getType());
             } catch (Exception e) {
                 throw new LuaException(e);
             }
 
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
@@ -391,39 +362,18 @@ public final class LuaJavaAPI {
     /**
      * Java implementation of the metamethod __index
      *
-     * @param luaState int that indicates the state used
-     * @param obj      Object to be indexed
-     * @param index    the Array index
+     * @param L     the LuaState, with the value on top of its stack
+     * @param obj   Object to be indexed
+     * @param index the Array index
      * @return number of returned objects
      */
-    public static int setArrayValue(long luaState, Object obj, int index) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
-            if (obj.getClass().isArray()) {
-                Class<?> type = obj.getClass().getComponentType();
-                try {
-                    Object value = compareTypes(L, type, 3);
-                    Array.set(obj, index, value);
-                } catch (LuaException e) {
-                    argError(L, obj.getClass().getName() + " [" + index + "]", 3, type);
-                }
-            } else if (obj instanceof List) {
-                ((List<Object>) obj).set(index, L.toJavaObject(3));
-            } else if (obj instanceof Map) {
-                ((Map<Long, Object>) obj).put((long) index, L.toJavaObject(3));
-            } else {
-                throw new LuaException("can not set " + obj.getClass().getName() + " value: " + L.toJavaObject(3) + " in " + index);
-            }
-            return 0;
-        }
-    }
-
     public static int setArrayValue(LuaState L, Object obj, int index) throws LuaException {
-
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             if (obj.getClass().isArray()) {
                 Class<?> type = obj.getClass().getComponentType();
+                if (type.isPrimitive() && L.type(-1) == LuaState.LUA_TNUMBER && setPrimitiveArrayValue(L, obj, index))
+                    return 0;
                 try {
                     Object value = compareTypes(L, type, -1);
                     Array.set(obj, index, value);
@@ -438,15 +388,18 @@ public final class LuaJavaAPI {
                 throw new LuaException("can not set " + obj.getClass().getName() + " value: " + L.toJavaObject(-1) + " in " + index);
             }
             return 0;
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    public static int getArrayValue(long luaState, Object obj, int index) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+    public static int getArrayValue(LuaState L, Object obj, int index) throws LuaException {
+        boolean locked = L.lock();
+        try {
             Object ret = null;
             if (obj.getClass().isArray()) {
+                if (pushPrimitiveArrayValue(L, obj, index))
+                    return 1;
                 ret = Array.get(obj, index);
             } else if (obj instanceof List) {
                 ret = ((List) obj).get(index);
@@ -457,18 +410,79 @@ public final class LuaJavaAPI {
             }
             L.pushObjectValue(ret);
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    public static int asTable(long luaState, Object obj) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
+    /**
+     * Stores the number on top of the stack in a primitive array without
+     * boxing it, converted as by compareTypes.
+     *
+     * @return false if the array is not of a number type
+     */
+    private static boolean setPrimitiveArrayValue(LuaState L, Object obj, int index) {
+        boolean isInteger = L.isInteger(-1);
+        if (obj instanceof int[]) {
+            ((int[]) obj)[index] = isInteger ? (int) L.toInteger(-1) : (int) L.toNumber(-1);
+        } else if (obj instanceof long[]) {
+            ((long[]) obj)[index] = isInteger ? L.toInteger(-1) : (long) L.toNumber(-1);
+        } else if (obj instanceof double[]) {
+            ((double[]) obj)[index] = isInteger ? (double) L.toInteger(-1) : L.toNumber(-1);
+        } else if (obj instanceof float[]) {
+            ((float[]) obj)[index] = isInteger ? (float) L.toInteger(-1) : (float) L.toNumber(-1);
+        } else if (obj instanceof byte[]) {
+            ((byte[]) obj)[index] = isInteger ? (byte) L.toInteger(-1) : (byte) L.toNumber(-1);
+        } else if (obj instanceof short[]) {
+            ((short[]) obj)[index] = isInteger ? (short) L.toInteger(-1) : (short) L.toNumber(-1);
+        } else {
+            return false;
+        }
+        return true;
+    }
 
-        synchronized (L) {
+    /**
+     * Pushes an element of a primitive array without boxing it
+     *
+     * @return false if the array is not primitive
+     */
+    private static boolean pushPrimitiveArrayValue(LuaState L, Object obj, int index) {
+        if (obj instanceof int[]) {
+            L.pushInteger(((int[]) obj)[index]);
+        } else if (obj instanceof long[]) {
+            L.pushInteger(((long[]) obj)[index]);
+        } else if (obj instanceof double[]) {
+            L.pushNumber(((double[]) obj)[index]);
+        } else if (obj instanceof float[]) {
+            L.pushNumber(((float[]) obj)[index]);
+        } else if (obj instanceof byte[]) {
+            L.pushInteger(((byte[]) obj)[index]);
+        } else if (obj instanceof short[]) {
+            L.pushInteger(((short[]) obj)[index]);
+        } else if (obj instanceof char[]) {
+            L.pushInteger(((char[]) obj)[index]);
+        } else if (obj instanceof boolean[]) {
+            L.pushBoolean(((boolean[]) obj)[index]);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    public static int asTable(LuaState L, Object obj) throws LuaException {
+        boolean locked = L.lock();
+        try {
             if (L.isBoolean(-1) && L.toBoolean(-1)) {
                 L.pop(1);
-                return asTable(L, obj);
+                return asDeepTable(L, obj);
             }
             try {
+                if (obj instanceof ByteBuffer) {
+                    L.pushByteBuffer((ByteBuffer) obj);
+                    return 1;
+                }
+                if (L.pushPrimitiveArray(obj))
+                    return 1;
                 L.newTable();
                 if (obj.getClass().isArray()) {
                     int n = Array.getLength(obj);
@@ -499,24 +513,29 @@ public final class LuaJavaAPI {
                 throw new LuaException("can not astable: " + e.getMessage());
             }
 
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    private static int asTable(LuaState L, Object obj) throws LuaException {
-        synchronized (L) {
+    private static int asDeepTable(LuaState L, Object obj) throws LuaException {
+        boolean locked = L.lock();
+        try {
             try {
+                if (L.pushPrimitiveArray(obj))
+                    return 1;
                 L.newTable();
                 if (obj.getClass().isArray()) {
                     int n = Array.getLength(obj);
                     for (int i = 0; i <= n - 1; i++) {
-                        asTable(L, Array.get(obj, i));
+                        asDeepTable(L, Array.get(obj, i));
                         L.rawSetI(-2, i + 1);
                     }
                 } else if (obj instanceof Collection) {
                     Collection list = (Collection) obj;
                     int i = 1;
                     for (Object v : list) {
-                        asTable(L, v);
+                        asDeepTable(L, v);
                         L.rawSetI(-2, i++);
                     }
                 } else if (obj instanceof Map) {
@@ -524,7 +543,7 @@ public final class LuaJavaAPI {
                     for (Object o : map.entrySet()) {
                         Map.Entry entry = (Map.Entry) o;
                         L.pushObjectValue(entry.getKey());
-                        asTable(L, entry.getValue());
+                        asDeepTable(L, entry.getValue());
                         L.setTable(-3);
                     }
                 } else {
@@ -536,13 +555,15 @@ public final class LuaJavaAPI {
                 throw new LuaException("can not astable: " + e.getMessage());
             }
 
+        } finally {
+            L.unlock(locked);
         }
     }
 
 
-    public static int newArray(long luaState, Class<?> clazz, int size) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-        synchronized (L) {
+    public static int newArray(LuaState L, Class<?> clazz, int size) throws LuaException {
+        boolean locked = L.lock();
+        try {
             try {
                 Object obj = Array.newInstance(clazz, size);
                 L.pushJavaObject(obj);
@@ -550,12 +571,14 @@ public final class LuaJavaAPI {
                 throw new LuaException("can not create a array: " + e.getMessage());
             }
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    public static int newArray(long luaState, Class<?> clazz) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-        synchronized (L) {
+    public static int newArray(LuaState L, Class<?> clazz) throws LuaException {
+        boolean locked = L.lock();
+        try {
             try {
                 int top = L.getTop();
                 int[] dimensions = new int[top - 1];
@@ -568,14 +591,14 @@ public final class LuaJavaAPI {
                 throw new LuaException("can not create a array: " + e.getMessage());
             }
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
     public static Class javaBindClass(String className) throws LuaException {
-        Class clazz;
-        try {
-            clazz = Class.forName(className);
-        } catch (Exception e) {
+        Class clazz = LuaClassCache.findClass(className);
+        if (clazz == null) {
             switch (className) {
                 case "boolean":
                     clazz = Boolean.TYPE;
@@ -608,39 +631,56 @@ public final class LuaJavaAPI {
         return clazz;
     }
 
+    /**
+     * Finds a class with luajava or the class loaders of the context of the
+     * state, without throwing when there is none
+     *
+     * @return the class, or null
+     */
+    public static Class javaFindClass(LuaState L, String className) {
+        com.androlua.LuaContext context = L.getContext();
+        return LuaClassCache.findClass(className, context == null ? null : context.getClassLoaders());
+    }
+
     /**
      * Pushes a new instance of a java Object of the type className
      *
-     * @param luaState  int that represents the state to be used
+     * @param L         the LuaState
      * @param className name of the class
      * @return number of returned objects
      * @throws LuaException
      */
-    public static int javaNewInstance(long luaState, String className) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+    public static int javaNewInstance(LuaState L, String className) throws LuaException {
+        boolean locked = L.lock();
+        try {
+            LuaMetrics metrics = L.getMetrics();
+            if (metrics != null)
+                metrics.javaNewCount++;
             Class clazz;
             clazz = javaBindClass(className);
             if (clazz.isPrimitive())
                 return toPrimitive(L, clazz, -1);
             else
                 return getObjInstance(L, clazz);
+        } finally {
+            L.unlock(locked);
         }
     }
 
     /**
      * javaNew returns a new instance of a given clazz
      *
-     * @param luaState int that represents the state to be used
+     * @param L        the LuaState
      * @param clazz    class to be instanciated
      * @return number of returned objects
      * @throws LuaException
      */
-    public static int javaNew(long luaState, Class<?> clazz) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+    public static int javaNew(LuaState L, Class<?> clazz) throws LuaException {
+        boolean locked = L.lock();
+        try {
+            LuaMetrics metrics = L.getMetrics();
+            if (metrics != null)
+                metrics.javaNewCount++;
             if (clazz.isPrimitive()) {
                 int top = L.getTop();
                 for (int i = 2; i <= top; i++) {
@@ -650,17 +690,18 @@ public final class LuaJavaAPI {
             } else if ((clazz.getModifiers() & Modifier.ABSTRACT) != 0) {
                 if (!L.isTable(2))
                     argError(L, "javaOverride", 1, "table");
-                return javaOverride(luaState, clazz);
+                return javaOverride(L, clazz);
             } else {
                 return getObjInstance(L, clazz);
             }
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    public static int javaOverride(long luaState, Class<?> clazz) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+    public static int javaOverride(LuaState L, Class<?> clazz) throws LuaException {
+        boolean locked = L.lock();
+        try {
             final LuaTable<String, LuaFunction> t = new LuaTable<String, LuaFunction>(L, 2);
             L.remove(2);
             Class<?> cls = new LuaEnhancer(clazz).create(new MethodFilter() {
@@ -678,13 +719,14 @@ public final class LuaJavaAPI {
             obj.setMethodInterceptor_Enhancer(new LuaMethodInterceptor(t));
             L.pushJavaObject(obj);
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    public static int javaCreate(long luaState, Class<?> clazz) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+    public static int javaCreate(LuaState L, Class<?> clazz) throws LuaException {
+        boolean locked = L.lock();
+        try {
             if (clazz.isPrimitive() || clazz == String.class) {
                 return createArray(L, clazz);
             } else if (clazz.isArray()) {
@@ -711,6 +753,8 @@ public final class LuaJavaAPI {
                 }
 
             }
+        } finally {
+            L.unlock(locked);
         }
 
     }
@@ -735,10 +779,9 @@ public final class LuaJavaAPI {
         return 0;
     }
 
-    public static int objectCall(long luaState, Object obj) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+    public static int objectCall(LuaState L, Object obj) throws LuaException {
+        boolean locked = L.lock();
+        try {
             if (obj instanceof LuaMetaTable) {
                 int n = L.getTop();
                 Object[] args = new Object[n - 1];
@@ -774,31 +817,37 @@ public final class LuaJavaAPI {
                     return 0;
                 }
             }
+        } finally {
+            L.unlock(locked);
         }
     }
 
     /**
      * Function that creates an object proxy and pushes it into the stack
      *
-     * @param luaState int that represents the state to be used
+     * @param L        the LuaState
      * @param implem   interfaces implemented separated by comma (<code>,</code>)
      * @return number of returned objects
      * @throws LuaException
      */
-    public static int createProxy(long luaState, String implem)
+    public static int createProxy(LuaState L, String implem)
             throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             return createProxyObject(L, implem);
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    public static int createArray(long luaState, String className)
+    public static int createArray(LuaState L, String className)
             throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             Class type = javaBindClass(className);
             return createArray(L, type);
+        } finally {
+            L.unlock(locked);
         }
     }
 
@@ -806,17 +855,16 @@ public final class LuaJavaAPI {
      * Calls the static method <code>methodName</code> in class <code>className</code>
      * that receives a LuaState as first parameter.
      *
-     * @param luaState   int that represents the state to be used
+     * @param L          the LuaState
      * @param className  name of the class that has the open library method
      * @param methodName method to open library
      * @return number of returned objects
      * @throws LuaException
      */
-    public static int javaLoadLib(long luaState, String className, String methodName)
+    public static int javaLoadLib(LuaState L, String className, String methodName)
             throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             Class<?> clazz;
             try {
                 clazz = Class.forName(className);
@@ -835,18 +883,21 @@ public final class LuaJavaAPI {
             } catch (Exception e) {
                 throw new LuaException("Error on calling method. Library could not be loaded. " + e.getMessage());
             }
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    public static int javaToString(long luaState, Object obj) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+    public static int javaToString(LuaState L, Object obj) throws LuaException {
+        boolean locked = L.lock();
+        try {
             if (obj == null)
                 L.pushString("null");
             else
                 L.pushString(obj.toString());
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
@@ -854,14 +905,12 @@ public final class LuaJavaAPI {
         Log.i("javaGc: ", obj + "");
         if (obj == null)
             return;
-        sJavaObjectIdx.addAndGet(-1);
     }
 
     public static void javaClose(Object obj) throws LuaException {
         Log.i("javaClose: ", obj + "");
         if (obj == null)
             return;
-        sJavaObjectIdx.addAndGet(-1);
         try {
             if (obj instanceof LuaGcable)
                 ((LuaGcable) obj).gc();
@@ -877,32 +926,33 @@ public final class LuaJavaAPI {
             e.printStackTrace();
         }
     }
-    public static int javaGetType(long luaState, Object obj) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+    public static int javaGetType(LuaState L, Object obj) throws LuaException {
+        boolean locked = L.lock();
+        try {
             if (obj == null)
                 L.pushString("null");
             else
                 L.pushString(obj.getClass().getName());
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    public static int javaEquals(long luaState, Object obj, Object obj2) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+    public static int javaEquals(LuaState L, Object obj, Object obj2) throws LuaException {
+        boolean locked = L.lock();
+        try {
             boolean eq = obj.equals(obj2);
             L.pushBoolean(eq);
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
-    public static int javaObjectLength(long luaState, Object obj) throws LuaException {
-        LuaState L = LuaStateFactory.getExistingState(luaState);
-
-        synchronized (L) {
+    public static int javaObjectLength(LuaState L, Object obj) throws LuaException {
+        boolean locked = L.lock();
+        try {
             int ret;
             try {
                 if (obj instanceof CharSequence)
@@ -920,11 +970,14 @@ public final class LuaJavaAPI {
             L.pushInteger(ret);
 
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
     private static int getObjInstance(LuaState L, Class<?> clazz) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             int top = L.getTop();
             if (top == 1) {
                 try {
@@ -957,7 +1010,7 @@ public final class LuaJavaAPI {
 
                 for (int j = 0; j < parameters.length; j++) {
                     try {
-                        objs[j] = compareTypes(L, parameters[j], j + 2);
+                        objs[j] = compareTypes(L, parameters[j], L.type(j + 2), j + 2, true);
                     } catch (Exception e) {
                         okConstructor = false;
                         break;
@@ -968,6 +1021,7 @@ public final class LuaJavaAPI {
                     constructor = c;
                     Object ret;
                     try {
+                        LuaProxyFactory.materialize(L, objs);
                         ret = constructor.newInstance(objs);
                     } catch (Exception e) {
                         msgBuilder.append("  at ").append(constructor).append("\n  -> ").append((e.getCause() != null) ? e.getCause() : e).append("\n");
@@ -1012,60 +1066,24 @@ public final class LuaJavaAPI {
             }
             L.pushJavaObject(ret);
             return 1;*/
+        } finally {
+            L.unlock(locked);
         }
     }
 
     public static int getContext(long luaState) throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             L.pushJavaObject(L.getContext());
+        } finally {
+            L.unlock(locked);
         }
         return 1;
     }
 
     public static ArrayList<Method> getMethod(Class<?> clazz, String methodName, boolean isClass) {
-        //String className = clazz.getName();
-        HashMap<String, ArrayList<Method>> cList = methodCache3.get(clazz);
-        if (cList == null) {
-            cList = new HashMap<>();
-            methodCache3.put(clazz, cList);
-        }
-
-        ArrayList<Method> mlist = cList.get(methodName);
-        if (mlist == null) {
-            Method[] methods = methodsMap.get(clazz);
-            if (methods == null) {
-                methods = clazz.getMethods();
-                methodsMap.put(clazz, methods);
-            }
-            for (Method method : methods) {
-                String name = method.getName();
-                ArrayList<Method> list = cList.get(name);
-                if (list == null) {
-                    list = new ArrayList<Method>();
-                    cList.put(name, list);
-                }
-                list.add(method);
-            }
-            mlist = cList.get(methodName);
-        }
-
-        if (mlist == null) {
-            mlist = new ArrayList<Method>();
-        }
-        if (isClass) {
-            ArrayList<Method> slist = new ArrayList<Method>();
-            for (Method m : mlist) {
-                if (Modifier.isStatic(m.getModifiers()))
-                    slist.add(m);
-            }
-
-            if (slist.isEmpty()) {
-                slist = getMethod(Class.class, methodName, false);
-            }
-            return slist;
-        }
-        return mlist;
+        return new ArrayList<Method>(Arrays.asList(LuaClassMembers.of(clazz).getMethods(methodName, isClass).methods));
     }
 
 
@@ -1079,8 +1097,8 @@ public final class LuaJavaAPI {
      */
     public static int checkField(LuaState L, Object obj, String fieldName)
             throws LuaException {
-        synchronized (L) {
-            Field field = null;
+        boolean locked = L.lock();
+        try {
             Class objClass;
             boolean isClass = false;
 
@@ -1091,32 +1109,27 @@ public final class LuaJavaAPI {
                 objClass = obj.getClass();
             }
 
-            try {
-                field = objClass.getField(fieldName);
-            } catch (NoSuchFieldException e) {
-                return 0;
-            }
-
+            LuaFieldAccessor field = LuaClassMembers.of(objClass).getField(fieldName);
             if (field == null)
                 return 0;
 
-            if (isClass && !Modifier.isStatic(field.getModifiers()))
+            if (isClass && !field.isStatic)
                 return 0;
 
-            Object ret = null;
             try {
-                if (!Modifier.isPublic(field.getModifiers()))
-                    field.setAccessible(true);
-                ret = field.get(obj);
+                field.push(L, obj);
+            } catch (LuaException e) {
+                throw e;
             } catch (Exception e) {
                 throw new LuaException(e);
             }
 
-            L.pushObjectValue(ret);
-            if (Modifier.isFinal(field.getModifiers()))
+            if (field.isFinal)
                 return 5;
             else
                 return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
@@ -1130,7 +1143,8 @@ public final class LuaJavaAPI {
      * @return number of returned objects
      */
     public static int checkMethod(LuaState L, Object obj, String methodName) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             Class<?> clazz;
             boolean isClass = false;
             if (obj instanceof Class) {
@@ -1139,18 +1153,11 @@ public final class LuaJavaAPI {
             } else {
                 clazz = obj.getClass();
             }
-            //String className=clazz.getName();
-            String cacheName = L.toString(-1);
-            Method[] mlist = methodCache.get(cacheName);
-            if (mlist == null) {
-                ArrayList<Method> list = getMethod(clazz, methodName, isClass);
-                mlist = new Method[list.size()];
-                list.toArray(mlist);
-                methodCache.put(cacheName, mlist);
-            }
-            if (mlist.length == 0)
+            if (LuaClassMembers.of(clazz).getMethods(methodName, isClass).isEmpty())
                 return 0;
             return 2;
+        } finally {
+            L.unlock(locked);
         }
     }
 
@@ -1163,7 +1170,8 @@ public final class LuaJavaAPI {
      * @return number of returned objects
      */
     public static int checkClass(LuaState L, Object obj, String className) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             Class clazz;
 
             if (obj instanceof Class) {
@@ -1181,11 +1189,14 @@ public final class LuaJavaAPI {
                 }
             }
             return 0;
+        } finally {
+            L.unlock(locked);
         }
     }
 
     public static int javaGetter(LuaState L, Object obj, String methodName) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             Class<?> clazz;
 
             Method method = null;
@@ -1200,27 +1211,11 @@ public final class LuaJavaAPI {
             } else {
                 clazz = obj.getClass();
             }
-            char c = methodName.charAt(0);
-            if (Character.isLowerCase(c)) {
-                methodName = Character.toUpperCase(c) + methodName.substring(1);
-            }
-            String cacheName = clazz.toString() + "@<-" + methodName;
-            if (!isClass)
-                method = voidMethodCache.get(cacheName);
-            if (method == null) {
-                try {
-                    method = clazz.getMethod("get" + methodName);
-                } catch (NoSuchMethodException e) {
-                    try {
-                        method = clazz.getMethod("is" + methodName);
-                    } catch (NoSuchMethodException e1) {
-                        return 0;
-                    }
-                }
-                if (isClass && !Modifier.isStatic(method.getModifiers()))
-                    return 0;
-                voidMethodCache.put(cacheName, method);
-            }
+            method = LuaClassMembers.of(clazz).getGetter(methodName);
+            if (method == null)
+                return 0;
+            if (isClass && !Modifier.isStatic(method.getModifiers()))
+                return 0;
 
             Object ret;
             try {
@@ -1234,6 +1229,8 @@ public final class LuaJavaAPI {
             else
                 L.pushObjectValue(ret);
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
@@ -1245,7 +1242,8 @@ public final class LuaJavaAPI {
     }
 
     public static int javaSetter(LuaState L, Object obj, String methodName) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             Class clazz;
             boolean isClass = false;
 
@@ -1260,19 +1258,27 @@ public final class LuaJavaAPI {
                 clazz = obj.getClass();
             }
 
-            if (methodName.length() > 2 && methodName.substring(0, 2).equals("on") && L.type(-1) == LuaState.LUA_TFUNCTION)
-                return javaSetListener(L, obj, methodName, isClass);
+            LuaClassMembers.Setter setter = LuaClassMembers.of(obj.getClass()).getSetter(methodName, isClass);
+            int type = L.type(-1);
+            if (setter.isListener && type == LuaState.LUA_TFUNCTION)
+                return javaSetListener(L, obj, methodName, setter);
 
-            int ret = javaSetMethod(L, obj, methodName, isClass);
-            if (ret != 0)
-                return ret;
+            // without a setter only a table can still be set, by calling the
+            // method with its items
+            if (setter.hasSetter || type == LuaState.LUA_TTABLE) {
+                int ret = javaSetMethod(L, obj, setter, isClass);
+                if (ret != 0)
+                    return ret;
+            }
             return setDeclaredFieldValue(L, obj, methodName);
+        } finally {
+            L.unlock(locked);
         }
     }
 
     private static int setDeclaredFieldValue(LuaState L, Object obj, String fieldName) throws LuaException {
-        synchronized (L) {
-            Field field = null;
+        boolean locked = L.lock();
+        try {
             Class objClass;
             boolean isClass = false;
 
@@ -1286,170 +1292,129 @@ public final class LuaJavaAPI {
                 objClass = obj.getClass();
             }
 
-            String name = null;
-            if (!fieldName.startsWith("m")) {
-                char c = fieldName.charAt(0);
-                if (Character.isLowerCase(c)) {
-                    name = Character.toUpperCase(c) + fieldName.substring(1);
-                }
-                name = "m" + name;
-            }
-
-            while (objClass != null) {
-                try {
-                    field = objClass.getDeclaredField(fieldName);
-                } catch (NoSuchFieldException e) {
-                    try {
-                        if (name != null)
-                            field = objClass.getDeclaredField(name);
-                    } catch (NoSuchFieldException ignored) {
-                    }
-                }
-                if (field != null)
-                    break;
-                objClass = objClass.getSuperclass();
-            }
-
+            LuaFieldAccessor field = LuaClassMembers.of(objClass).getDeclaredField(fieldName);
             if (field == null)
                 return 0;
-            if (isClass && !Modifier.isStatic(field.getModifiers()))
+            if (isClass && !field.isStatic)
                 return 0;
-            Class type = field.getType();
             try {
-                if (!Modifier.isPublic(field.getModifiers()))
-                    field.setAccessible(true);
-
-                field.set(obj, compareTypes(L, type, L.getTop()));
+                field.set(L, obj, L.getTop());
             } catch (LuaException e) {
-                argError(L, fieldName, 3, type);
+                argError(L, fieldName, 3, field.getType());
             } catch (Exception e) {
                 throw new LuaException(e);
             }
 
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
 
-    private static int javaSetListener(LuaState L, Object obj, String methodName, boolean isClass) throws LuaException {
-        synchronized (L) {
-            String name = "setOn" + methodName.substring(2) + "Listener";
-            ArrayList<Method> methods = getMethod(obj.getClass(), name, isClass);
-            for (Method m : methods) {
-                if (isClass && !Modifier.isStatic(m.getModifiers()))
-                    continue;
+    private static int javaSetListener(LuaState L, Object obj, String methodName, LuaClassMembers.Setter setter) throws LuaException {
+        boolean locked = L.lock();
+        try {
+            Method m = setter.listener;
+            if (m == null)
+                return 0;
 
-                Class<?>[] tp = m.getParameterTypes();
-                if (tp.length == 1 && tp[0].isInterface()) {
-                    L.newTable();
-                    L.pushValue(-2);
-                    L.setField(-2, methodName);
-                    try {
-                        Object listener = L.getLuaObject(-1).createProxy(tp[0]);
-                        L.pop(1);
-                        m.invoke(obj, listener);
-                        return 1;
-                    } catch (Exception e) {
-                        throw new LuaException(e);
-                    }
-                }
+            L.newTable();
+            L.pushValue(-2);
+            L.setField(-2, methodName);
+            try {
+                Object listener = L.getLuaObject(-1).createProxy(setter.listenerType);
+                L.pop(1);
+                m.invoke(obj, listener);
+                return 1;
+            } catch (Exception e) {
+                throw new LuaException(e);
             }
+        } finally {
+            L.unlock(locked);
         }
-        return 0;
     }
 
-    private static int javaSetMethod(LuaState L, Object obj, String methodName, boolean isClass) throws LuaException {
-        synchronized (L) {
-            char c = methodName.charAt(0);
-            if (Character.isLowerCase(c)) {
-                methodName = Character.toUpperCase(c) + methodName.substring(1);
-            }
-            String name = "set" + methodName;
-            Method method = null;
-            int methodType = -1;
-            String cacheName = obj.getClass().getName() + "@->" + name;
-
-            Object[] objs = new Object[1];
-            switch (L.type(-1)) {
-                case LuaState.LUA_TSTRING:
-                    methodType = LuaState.LUA_TSTRING;
-                    method = stringMethodCache.get(cacheName);
-                    if (method != null)
-                        objs[0] = L.toString(-1);
-                    break;
-                case LuaState.LUA_TBOOLEAN:
-                    methodType = LuaState.LUA_TBOOLEAN;
-                    method = boolMethodCache.get(cacheName);
-                    if (method != null)
-                        objs[0] = L.toBoolean(-1);
-                    break;
-                case LuaState.LUA_TNUMBER:
-                    if (L.isInteger(-1)) {
-                        methodType = LuaState.LUA_TINTEGER;
-                        method = integerMethodCache.get(cacheName);
-                        if (method != null)
-                            objs[0] = LuaState.convertLuaNumber(L.toInteger(-1), method.getParameterTypes()[0]);
-                    } else {
-                        methodType = LuaState.LUA_TNUMBER;
-                        method = doubleMethodCache.get(cacheName);
-                        if (method != null)
-                            objs[0] = LuaState.convertLuaNumber(L.toNumber(-1), method.getParameterTypes()[0]);
-                    }
-                    break;
+    private static int javaSetMethod(LuaState L, Object obj, LuaClassMembers.Setter setter, boolean isClass) throws LuaException {
+        boolean locked = L.lock();
+        try {
+            String name = setter.name;
+            int top = L.getTop();
+            LuaClassMembers.Overloads overloads = setter.setters;
+            int[] type = new int[1];
+            long signature = LuaClassMembers.signature(L, top, 1, type);
+
+            LuaMetrics metrics = L.getMetrics();
+            LuaMethodInvoker invoker = setter.getResolved(signature);
+            if (metrics != null) {
+                if (invoker != null)
+                    metrics.resolvedHitCount++;
+                else
+                    metrics.resolvedMissCount++;
             }
-
-            if (method != null) {
+            boolean matched = invoker != null;
+            if (invoker != null) {
                 try {
-                    method.invoke(obj, objs);
+                    invoker.call(L, obj, top, type);
                     return 1;
+                } catch (LuaException e) {
+                    // the signature does not tell a list table from a map,
+                    // the setters are tried in turn below
                 } catch (Exception e) {
                     throw new LuaException(e);
                 }
+            } else {
+                int best = resolve(L, overloads, top, 1, type, isClass);
+                if (best != LuaOverloadResolver.NO_MATCH) {
+                    matched = true;
+                    invoker = overloads.invoker(best);
+                    try {
+                        invoker.call(L, obj, top, type);
+                        setter.putResolved(signature, invoker);
+                        return 1;
+                    } catch (LuaException e) {
+                        // the value could not be converted after all, the
+                        // setters are tried in turn below
+                    } catch (Exception e) {
+                        throw new LuaException(e);
+                    }
+                }
             }
 
-            ArrayList<Method> methods = getMethod(obj.getClass(), name, isClass);
-            Object arg = null;
+            Object[] arg = new Object[1];
             StringBuilder buf = new StringBuilder();
-            for (Method m : methods) {
+            Method[] methods = overloads.methods;
+            for (int i = 0; i < methods.length; i++) {
+                Method m = methods[i];
                 if (isClass && !Modifier.isStatic(m.getModifiers()))
                     continue;
 
-                Class<?>[] tp = m.getParameterTypes();
+                Class<?>[] tp = overloads.parameterTypes(i);
                 if (tp.length != 1)
                     continue;
 
-                try {
-                    arg = compareTypes(L, tp[0], L.getTop());
-                } catch (LuaException e) {
+                if (!matched) {
                     buf.append("-> ").append(tp[0]);
                     buf.append("\n");
                     continue;
                 }
 
-                switch (methodType) {
-                    case LuaState.LUA_TSTRING:
-                        stringMethodCache.put(cacheName, m);
-                        break;
-                    case LuaState.LUA_TINTEGER:
-                        integerMethodCache.put(cacheName, m);
-                        break;
-                    case LuaState.LUA_TNUMBER:
-                        doubleMethodCache.put(cacheName, m);
-                        break;
-                    case LuaState.LUA_TBOOLEAN:
-                        boolMethodCache.put(cacheName, m);
-                        break;
+                try {
+                    arg[0] = compareTypes(L, tp[0], top);
+                } catch (LuaException e) {
+                    buf.append("-> ").append(tp[0]);
+                    buf.append("\n");
+                    continue;
                 }
 
                 try {
-                    m.invoke(obj, arg);
+                    overloads.invoker(i).invoke(obj, arg);
                     return 1;
                 } catch (Exception e) {
                     throw new LuaException(e);
                 }
 
             }
-            int top = L.getTop();
             if (L.type(top) == LuaState.LUA_TTABLE) {
                 L.getField(1, name);
                 LuaFunction func = L.getFunction(-1);
@@ -1472,14 +1437,17 @@ public final class LuaJavaAPI {
                 }
             }
             if (buf.length() > 0)
-                throw new LuaException("Invalid setter " + methodName + ". Invalid Parameters.\n" + buf.toString() + L.toJavaObject(-1).getClass());
+                throw new LuaException("Invalid setter " + name.substring(3) + ". Invalid Parameters.\n" + buf.toString() + L.toJavaObject(-1).getClass());
+        } finally {
+            L.unlock(locked);
         }
         return 0;
     }
 
     private static int createProxyObject(LuaState L, String implem)
             throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             try {
                 LuaObject luaObj = L.getLuaObject(2);
                 Object proxy = luaObj.createProxy(implem);
@@ -1489,40 +1457,58 @@ public final class LuaJavaAPI {
             }
 
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
     private static int createProxyObject(LuaState L, Class implem) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             L.pushJavaObject(createProxyObject(L, implem, 2));
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
     private static Object createProxyObject(LuaState L, Class implem, int idx) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             try {
-                LuaObject luaObj = L.getLuaObject(idx);
-                return luaObj.createProxy(implem);
+                LuaProxyFactory.defer(L, idx, implem);
+                return LuaProxyFactory.newProxy(L, idx, implem);
             } catch (Exception e) {
                 throw new LuaException(e);
             }
+        } finally {
+            L.unlock(locked);
         }
     }
 
     private static int createArray(LuaState L, Class<?> type) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             L.pushJavaObject(createArray(L, type, 2));
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
 
     private static Object createArray(LuaState L, Class<?> type, int idx) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             try {
                 int n = L.objLen(idx);
                 Object array = Array.newInstance(type, n);
+                if (type.isPrimitive()) {
+                    if (L.getMetaTable(idx) != 0)
+                        L.pop(1);
+                    else if (L.toPrimitiveArray(idx, array))
+                        return array;
+                }
                 /*if(n==0)
                     return array.getClass();
 */
@@ -1594,19 +1580,37 @@ public final class LuaJavaAPI {
             } catch (Exception e) {
                 throw new LuaException(e);
             }
+        } finally {
+            L.unlock(locked);
+        }
+    }
+
+    private static ByteBuffer createByteBuffer(LuaState L, int idx) {
+        boolean locked = L.lock();
+        try {
+            ByteBuffer buf = ByteBuffer.allocateDirect(L.rawLen(idx));
+            L.toByteBuffer(idx, buf);
+            buf.rewind();
+            return buf;
+        } finally {
+            L.unlock(locked);
         }
     }
 
     private static int createList(LuaState L, Class<?> type) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             L.pushJavaObject(createList(L, (Class<List<Object>>) type, 2));
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
 
     private static Object createList(LuaState L, Class<List<Object>> type, int idx) throws LuaException {
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             int n = L.objLen(idx);
             try {
                 List<Object> list;
@@ -1624,21 +1628,27 @@ public final class LuaJavaAPI {
             } catch (Exception e) {
                 throw new LuaException(e);
             }
+        } finally {
+            L.unlock(locked);
         }
     }
 
 
     private static int createMap(LuaState L, Class<?> clazz) throws LuaException {
         // TODO: Implement this method
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             L.pushJavaObject(createMap(L, (Class<Map<Object, Object>>) clazz, 2));
             return 1;
+        } finally {
+            L.unlock(locked);
         }
     }
 
     private static Object createMap(LuaState L, Class<Map<Object, Object>> clazz, int idx) throws LuaException {
         // TODO: Implement this method
-        synchronized (L) {
+        boolean locked = L.lock();
+        try {
             try {
                 Map<Object, Object> map;
                 if (clazz.equals(Map.class))
@@ -1654,6 +1664,8 @@ public final class LuaJavaAPI {
             } catch (Exception e) {
                 throw new LuaException(e);
             }
+        } finally {
+            L.unlock(locked);
         }
     }
 
@@ -1665,6 +1677,16 @@ public final class LuaJavaAPI {
 
     private static Object compareTypes(LuaState L, Class<?> parameter, int type, int idx)
             throws LuaException {
+        return compareTypes(L, parameter, type, idx, false);
+    }
+
+    /**
+     * @param defer if proxies are left pending, to be made by
+     *              {@link LuaProxyFactory#materialize(LuaState, Object[])}
+     *              once the method is chosen
+     */
+    private static Object compareTypes(LuaState L, Class<?> parameter, int type, int idx, boolean defer)
+            throws LuaException {
         boolean okType = true;
         Object obj = null;
         if (type == LuaState.LUA_TNIL)
@@ -1681,7 +1703,12 @@ public final class LuaJavaAPI {
             break;
             case LuaState.LUA_TSTRING: //string
             {
-                if (!parameter.isAssignableFrom(String.class)) {
+                // the bytes of the string, without decoding them
+                if (parameter == byte[].class) {
+                    obj = L.toBuffer(idx);
+                } else if (parameter == LuaString.class) {
+                    obj = L.toLuaString(idx);
+                } else if (!parameter.isAssignableFrom(String.class)) {
                     okType = false;
                 } else {
                     obj = L.toString(idx);
@@ -1691,7 +1718,7 @@ public final class LuaJavaAPI {
             case LuaState.LUA_TFUNCTION: //function
             {
                 if (parameter.isInterface()) {
-                    obj = createProxyObject(L, parameter, idx);
+                    obj = defer ? LuaProxyFactory.defer(L, idx, parameter) : createProxyObject(L, parameter, idx);
                 } else if (!parameter.isAssignableFrom(LuaFunction.class)) {
                     okType = false;
                 } else {
@@ -1709,8 +1736,10 @@ public final class LuaJavaAPI {
                     obj = createList(L, (Class<List<Object>>) parameter, idx);
                 } else if (Map.class.isAssignableFrom(parameter)) {
                     obj = createMap(L, (Class<Map<Object, Object>>) parameter, idx);
+                } else if (parameter == ByteBuffer.class) {
+                    obj = createByteBuffer(L, idx);
                 } else if (parameter.isInterface()) {
-                    obj = createProxyObject(L, parameter, idx);
+                    obj = defer ? LuaProxyFactory.defer(L, idx, parameter) : createProxyObject(L, parameter, idx);
                 } else {
                     okType = false;
                 }
@@ -1816,7 +1845,7 @@ public final class LuaJavaAPI {
     }
 
     public static void pushJavaObject() {
-        if(sJavaObjectIdx.addAndGet(1)>50000)
+        if (LuaState.getGlobalRefCount() > MAX_GLOBAL_REFS)
             throw new RuntimeException("Out of JavaObject");
     }
 }
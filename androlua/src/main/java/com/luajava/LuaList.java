@@ -1,4 +1,5 @@
 package com.luajava;
+import java.lang.reflect.Array;
 import java.util.*;
 
 public class LuaList extends LuaObject implements List
@@ -70,8 +71,7 @@ public class LuaList extends LuaObject implements List
 
 	@Override
 	public boolean contains(Object p1) {
-		// TODO: Implement this method
-		return false;
+		return indexOf(p1) != -1;
 	}
 
 	@Override
@@ -82,20 +82,35 @@ public class LuaList extends LuaObject implements List
 
 	@Override
 	public Object get(int p1) {
-		// TODO: Implement this method
-		return null;
+		boolean locked = L.lock();
+		try {
+			push();
+			L.rawGetI(-1, p1 + 1);
+			Object obj=null;
+			try {
+				obj = L.toJavaObject(-1);
+			}
+			catch (LuaException e) {}
+			L.pop(2);
+			return obj;
+		} finally {
+			L.unlock(locked);
+		}
 	}
 
 	@Override
 	public int indexOf(Object p1) {
-		// TODO: Implement this method
-		return 0;
+		Object[] values=toArray();
+		for (int i=0;i < values.length;i++) {
+			if (p1 == null ? values[i] == null : p1.equals(values[i]))
+				return i;
+		}
+		return -1;
 	}
 
 	@Override
 	public Iterator iterator() {
-		// TODO: Implement this method
-		return null;
+		return Arrays.asList(toArray()).iterator();
 	}
 
 	@Override
@@ -148,14 +163,32 @@ public class LuaList extends LuaObject implements List
 
 	@Override
 	public Object[] toArray() {
-		// TODO: Implement this method
-		return null;
+		boolean locked = L.lock();
+		try {
+			push();
+			try {
+				return L.toJavaArray(-1);
+			}
+			catch (LuaException e) {
+				return new Object[0];
+			}
+			finally {
+				L.pop(1);
+			}
+		} finally {
+			L.unlock(locked);
+		}
 	}
 
 	@Override
 	public Object[] toArray(Object[] p1) {
-		// TODO: Implement this method
-		return null;
+		Object[] values=toArray();
+		if (p1.length < values.length)
+			p1 = (Object[]) Array.newInstance(p1.getClass().getComponentType(), values.length);
+		System.arraycopy(values, 0, p1, 0, values.length);
+		if (p1.length > values.length)
+			p1[values.length] = null;
+		return p1;
 	}
 	
 	protected LuaList(LuaState L, String globalName) {
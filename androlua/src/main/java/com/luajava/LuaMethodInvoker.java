@@ -0,0 +1,198 @@
+package com.luajava;
+
+import java.lang.reflect.Method;
+
+/**
+ * Invoker of one resolved java method.
+ * Parameter converters, accessibility and the return kind are worked out once
+ * when the invoker is created, so a call only reads its arguments from the lua
+ * stack and invokes the method. Calls taking up to {@link #MAX_BUFFERED_ARGS}
+ * booleans, numbers or strings reuse the argument array of the LuaState instead
+ * of allocating a new one.
+ * <p>
+ * <code>MethodHandle</code> based invokers need invoke-polymorphic, which is not
+ * available below API 26, so reflection is used here. Method.invoke still takes
+ * its arguments boxed in an array, so primitive arguments are boxed on each call.
+ */
+final class LuaMethodInvoker {
+
+    static final int MAX_BUFFERED_ARGS = 3;
+
+    static final int KIND_OBJECT = 0;
+    static final int KIND_VOID = 1;
+    static final int KIND_BOOLEAN = 2;
+    static final int KIND_BYTE = 3;
+    static final int KIND_SHORT = 4;
+    static final int KIND_CHAR = 5;
+    static final int KIND_INT = 6;
+    static final int KIND_LONG = 7;
+    static final int KIND_FLOAT = 8;
+    static final int KIND_DOUBLE = 9;
+    static final int KIND_STRING = 10;
+
+    final Method method;
+
+    private final Class<?>[] mParameterTypes;
+
+    private final int[] mParameterKinds;
+
+    private final int mReturnKind;
+
+    private final boolean mBuffered;
+
+    LuaMethodInvoker(Method method) {
+        this.method = method;
+        method.setAccessible(true);
+        mParameterTypes = method.getParameterTypes();
+        mParameterKinds = new int[mParameterTypes.length];
+        boolean buffered = mParameterTypes.length <= MAX_BUFFERED_ARGS;
+        for (int i = 0; i < mParameterTypes.length; i++) {
+            int kind = kindOf(mParameterTypes[i]);
+            if (kind == KIND_OBJECT && mParameterTypes[i].isAssignableFrom(String.class))
+                kind = KIND_STRING;
+            mParameterKinds[i] = kind;
+            if (kind == KIND_OBJECT)
+                buffered = false;
+        }
+        mBuffered = buffered;
+        mReturnKind = kindOf(method.getReturnType());
+    }
+
+    static int kindOf(Class<?> type) {
+        if (!type.isPrimitive())
+            return KIND_OBJECT;
+        if (type == Void.TYPE)
+            return KIND_VOID;
+        if (type == Boolean.TYPE)
+            return KIND_BOOLEAN;
+        if (type == Byte.TYPE)
+            return KIND_BYTE;
+        if (type == Short.TYPE)
+            return KIND_SHORT;
+        if (type == Character.TYPE)
+            return KIND_CHAR;
+        if (type == Integer.TYPE)
+            return KIND_INT;
+        if (type == Long.TYPE)
+            return KIND_LONG;
+        if (type == Float.TYPE)
+            return KIND_FLOAT;
+        return KIND_DOUBLE;
+    }
+
+    /**
+     * Invokes the method with already converted arguments
+     */
+    Object invoke(Object obj, Object[] args) throws Exception {
+        return method.invoke(obj, args);
+    }
+
+    /**
+     * Invokes the method with the arguments found on the lua stack.
+     * The arguments must have matched this method before with the same lua
+     * types, as recorded in the argument type signature.
+     *
+     * @param base  stack index of the first argument
+     * @param types lua type of each argument
+     */
+    Object call(LuaState L, Object obj, int base, int[] types) throws Exception {
+        int n = mParameterKinds.length;
+        if (!mBuffered) {
+            Object[] args = new Object[n];
+            for (int i = 0; i < n; i++) {
+                args[i] = toArgument(L, i, base + i, types[i]);
+            }
+            return method.invoke(obj, args);
+        }
+
+        Object[] args = L.argsBuffer(n);
+        try {
+            for (int i = 0; i < n; i++) {
+                args[i] = toArgument(L, i, base + i, types[i]);
+            }
+            return method.invoke(obj, args);
+        } finally {
+            for (int i = 0; i < n; i++) {
+                args[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Converts the lua value at <code>idx</code> to the type of parameter
+     * <code>i</code>. Integers and floats are narrowed as
+     * {@link LuaState#convertLuaNumber(Long, Class)} and
+     * {@link LuaState#convertLuaNumber(Double, Class)} do, so a float too
+     * large for an int gives Integer.MAX_VALUE.
+     */
+    private Object toArgument(LuaState L, int i, int idx, int type) throws LuaException {
+        if (type == LuaState.LUA_TNIL)
+            return null;
+        switch (mParameterKinds[i]) {
+            case KIND_BOOLEAN:
+                if (type == LuaState.LUA_TBOOLEAN)
+                    return L.toBoolean(idx);
+                break;
+            case KIND_BYTE:
+                if (type == LuaState.LUA_TNUMBER)
+                    return L.isInteger(idx) ? (byte) L.toInteger(idx) : (byte) L.toNumber(idx);
+                break;
+            case KIND_SHORT:
+                if (type == LuaState.LUA_TNUMBER)
+                    return L.isInteger(idx) ? (short) L.toInteger(idx) : (short) L.toNumber(idx);
+                break;
+            case KIND_INT:
+                if (type == LuaState.LUA_TNUMBER)
+                    return L.isInteger(idx) ? (int) L.toInteger(idx) : (int) L.toNumber(idx);
+                break;
+            case KIND_LONG:
+                if (type == LuaState.LUA_TNUMBER)
+                    return L.isInteger(idx) ? L.toInteger(idx) : (long) L.toNumber(idx);
+                break;
+            case KIND_FLOAT:
+                if (type == LuaState.LUA_TNUMBER)
+                    return (float) L.toNumber(idx);
+                break;
+            case KIND_DOUBLE:
+                if (type == LuaState.LUA_TNUMBER)
+                    return L.toNumber(idx);
+                break;
+            case KIND_STRING:
+                if (type == LuaState.LUA_TSTRING)
+                    return L.toString(idx);
+                break;
+        }
+        return LuaJavaAPI.compareTypes(L, mParameterTypes[i], idx);
+    }
+
+    /**
+     * Pushes the value returned by the method.
+     *
+     * @return number of pushed values
+     */
+    int pushResult(LuaState L, Object ret) throws LuaException {
+        switch (mReturnKind) {
+            case KIND_VOID:
+                return 0;
+            case KIND_BOOLEAN:
+                L.pushBoolean((Boolean) ret);
+                return 1;
+            case KIND_BYTE:
+            case KIND_SHORT:
+            case KIND_INT:
+            case KIND_LONG:
+                L.pushInteger(((Number) ret).longValue());
+                return 1;
+            case KIND_CHAR:
+                L.pushInteger((Character) ret);
+                return 1;
+            case KIND_FLOAT:
+            case KIND_DOUBLE:
+                L.pushNumber(((Number) ret).doubleValue());
+                return 1;
+            default:
+                L.pushObjectValue(ret);
+                return 1;
+        }
+    }
+}
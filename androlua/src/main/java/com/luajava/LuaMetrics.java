@@ -0,0 +1,168 @@
+package com.luajava;
+
+/**
+ * Counters of the calls between lua and java of one LuaState, including
+ * the calls made from its coroutines.
+ * <p>
+ * Metrics are off by default; {@link LuaState#setMetricsEnabled(boolean)}
+ * turns them on, which also sets <code>luajava.metrics</code> to this object
+ * so scripts can read it, as <code>luajava.metrics.callMethodCount</code>.
+ * While off a call only pays for a null check.
+ * <p>
+ * The counters are updated while holding the lock of the state or of one
+ * of its coroutines, or from its owner thread when confined, so reading
+ * them from another thread may lag a little behind.
+ */
+public final class LuaMetrics {
+
+    private final LuaState L;
+
+    long objectIndexCount;
+
+    long callMethodCount;
+
+    long newIndexCount;
+
+    long javaNewCount;
+
+    long resolvedHitCount;
+
+    long resolvedMissCount;
+
+    long resolveCount;
+
+    long resolveNanos;
+
+    long proxyCount;
+
+    LuaMetrics(LuaState L) {
+        this.L = L;
+    }
+
+    /**
+     * Returns the number of <code>obj.name</code> lookups on java objects
+     */
+    public long getObjectIndexCount() {
+        return objectIndexCount;
+    }
+
+    /**
+     * Returns the number of java method calls
+     */
+    public long getCallMethodCount() {
+        return callMethodCount;
+    }
+
+    /**
+     * Returns the number of <code>obj.name = value</code> assignments on
+     * java objects
+     */
+    public long getNewIndexCount() {
+        return newIndexCount;
+    }
+
+    /**
+     * Returns the number of java objects created from lua
+     */
+    public long getJavaNewCount() {
+        return javaNewCount;
+    }
+
+    /**
+     * Returns the number of method calls and setters whose overload was
+     * already resolved for the argument types
+     */
+    public long getResolvedHitCount() {
+        return resolvedHitCount;
+    }
+
+    /**
+     * Returns the number of method calls and setters whose overload had to
+     * be resolved
+     */
+    public long getResolvedMissCount() {
+        return resolvedMissCount;
+    }
+
+    /**
+     * Returns the number of overload resolutions
+     */
+    public long getResolveCount() {
+        return resolveCount;
+    }
+
+    /**
+     * Returns the time spent resolving overloads, in nanoseconds
+     */
+    public long getResolveNanos() {
+        return resolveNanos;
+    }
+
+    /**
+     * Returns the number of proxies made for lua functions and tables
+     */
+    public long getProxyCount() {
+        return proxyCount;
+    }
+
+    /**
+     * Returns the number of LuaObjects of the state not collected yet
+     */
+    public int getRefCount() {
+        return L.getLiveRefCount();
+    }
+
+    /**
+     * Returns the number of JNI global references held by java objects
+     * pushed to lua, by all the states
+     */
+    public int getGlobalRefCount() {
+        return LuaState.getGlobalRefCount();
+    }
+
+    /**
+     * Returns the memory used by lua, in bytes
+     */
+    public long getHeapSize() {
+        boolean locked = L.lock();
+        try {
+            if (L.isClosed())
+                return 0;
+            return L.gc(LuaState.LUA_GCCOUNT, 0) * 1024L + L.gc(LuaState.LUA_GCCOUNTB, 0);
+        } finally {
+            L.unlock(locked);
+        }
+    }
+
+    /**
+     * Sets the counters back to 0
+     */
+    public void reset() {
+        objectIndexCount = 0;
+        callMethodCount = 0;
+        newIndexCount = 0;
+        javaNewCount = 0;
+        resolvedHitCount = 0;
+        resolvedMissCount = 0;
+        resolveCount = 0;
+        resolveNanos = 0;
+        proxyCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LuaMetrics{objectIndex=" + objectIndexCount
+                + ", callMethod=" + callMethodCount
+                + ", newIndex=" + newIndexCount
+                + ", javaNew=" + javaNewCount
+                + ", resolvedHit=" + resolvedHitCount
+                + ", resolvedMiss=" + resolvedMissCount
+                + ", resolve=" + resolveCount
+                + ", resolveNanos=" + resolveNanos
+                + ", proxy=" + proxyCount
+                + ", refs=" + getRefCount()
+                + ", globalRefs=" + getGlobalRefCount()
+                + ", heap=" + getHeapSize()
+                + "}";
+    }
+}
@@ -24,12 +24,8 @@
 
 package com.luajava;
 
-import android.util.Log;
-
 import java.io.Serializable;
 import java.lang.reflect.Array;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Proxy;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -73,11 +69,14 @@ public class LuaObject implements Serializable {
 	 * @param globalName
 	 */
 	protected LuaObject(LuaState L, String globalName) {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			this.L = L;
 			L.getGlobal(globalName);
 			registerValue(-1);
 			L.pop(1);
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
@@ -90,7 +89,8 @@ public class LuaObject implements Serializable {
 	 *            The name that index the field
 	 */
 	protected LuaObject(LuaObject parent, String name) throws LuaException {
-		synchronized (parent.getLuaState()) {
+		boolean locked = parent.getLuaState().lock();
+		try {
 			this.L = parent.getLuaState();
 
 			if (!parent.isTable() && !parent.isUserdata()) {
@@ -103,6 +103,8 @@ public class LuaObject implements Serializable {
 			L.remove(-2);
 			registerValue(-1);
 			L.pop(1);
+		} finally {
+			parent.getLuaState().unlock(locked);
 		}
 	}
 
@@ -117,7 +119,8 @@ public class LuaObject implements Serializable {
 	 *             When the parent object isn't a Table or Userdata
 	 */
 	protected LuaObject(LuaObject parent, Number name) throws LuaException {
-		synchronized (parent.getLuaState()) {
+		boolean locked = parent.getLuaState().lock();
+		try {
 			this.L = parent.getLuaState();
 			if (!parent.isTable() && !parent.isUserdata())
 				throw new LuaException("Object parent should be a table or userdata .");
@@ -128,6 +131,8 @@ public class LuaObject implements Serializable {
 			L.remove(-2);
 			registerValue(-1);
 			L.pop(1);
+		} finally {
+			parent.getLuaState().unlock(locked);
 		}
 	}
 
@@ -144,7 +149,8 @@ public class LuaObject implements Serializable {
 	protected LuaObject(LuaObject parent, LuaObject name) throws LuaException {
 		if (parent.getLuaState() != name.getLuaState())
 			throw new LuaException("LuaStates must be the same!");
-		synchronized (parent.getLuaState()) {
+		boolean locked = parent.getLuaState().lock();
+		try {
 			if (!parent.isTable() && !parent.isUserdata())
 				throw new LuaException("Object parent should be a table or userdata .");
 
@@ -156,6 +162,8 @@ public class LuaObject implements Serializable {
 			L.remove(-2);
 			registerValue(-1);
 			L.pop(1);
+		} finally {
+			parent.getLuaState().unlock(locked);
 		}
 	}
 
@@ -167,10 +175,13 @@ public class LuaObject implements Serializable {
 	 *            of the object on the lua stack
 	 */
 	protected LuaObject(LuaState L, int index) {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			this.L = L;
 
 			registerValue(index);
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
@@ -188,24 +199,13 @@ public class LuaObject implements Serializable {
 	 *            of the object on the lua stack
 	 */
 	protected void registerValue(int index) {
-		synchronized (L) {
-			L.pushValue(index);
-			int key;ref = L.Lref(LuaState.LUA_REGISTRYINDEX);
-//			ref = new Integer(key);
-		}
-	}
-
-	@Override
-	protected void finalize() {
-		Log.i("luaObject", "finalize: "+ref+";"+toString());
+		boolean locked = L.lock();
 		try {
-			synchronized (L) {
-				if (L.getPointer() != 0)
-					L.LunRef(LuaState.LUA_REGISTRYINDEX, ref);
-			}
-		}
-		catch (Exception e) {
-			System.err.println("Unable to release object " + ref);
+			L.pushValue(index);
+			ref = L.Lref(LuaState.LUA_REGISTRYINDEX);
+			L.trackRef(this, ref);
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
@@ -221,165 +221,219 @@ public class LuaObject implements Serializable {
 	}
 	
 	public boolean isNil() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.isNil(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public boolean isBoolean() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.isBoolean(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public boolean isNumber() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.isNumber(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public boolean isInteger() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.isInteger(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public boolean isString() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.isString(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public boolean isFunction() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.isFunction(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public boolean isJavaObject() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.isObject(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public boolean isJavaFunction() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.isJavaFunction(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public boolean isTable() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.isTable(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public boolean isUserdata() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.isUserdata(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public int type() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			int type = L.type(-1);
 			L.pop(1);
 			return type;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public boolean getBoolean() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			boolean bool = L.toBoolean(-1);
 			L.pop(1);
 			return bool;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public double getNumber() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			double db = L.toNumber(-1);
 			L.pop(1);
 			return db;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public long getInteger() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			long lg = L.toInteger(-1);
 			L.pop(1);
 			return lg;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public String getString() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			String str = L.toString(-1);
 			L.pop(1);
 			return str;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public LuaTable<?,?> getTable() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			LuaTable td = new LuaTable(L, -1);
 			L.pop(1);
 			return td;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 	
 	public LuaFunction<?> getFunction() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			LuaFunction<?> ft = new LuaFunction(L, -1);
 			L.pop(1);
 			return ft;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 	
 
 	public Object getObject() throws LuaException {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			push();
 			Object obj = L.getObjectFromUserdata(-1);
 			L.pop(1);
 			return obj;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
@@ -465,7 +519,8 @@ public class LuaObject implements Serializable {
 	 * @throws LuaException
 	 */
 	public Object[] call_aux(Object[] args, int nres) throws LuaException {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			if (!isFunction() && !isTable() && !isUserdata())
 				throw new LuaException("Invalid object. Not a function, table or userdata .");
 
@@ -522,6 +577,8 @@ public class LuaObject implements Serializable {
 				L.pop(1);
 			}
 			return res;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
@@ -538,7 +595,8 @@ public class LuaObject implements Serializable {
 	}
 
 	public LuaObject[] _call_aux(Object[] args, int nres) throws LuaException {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			if (!isFunction() && !isTable() && !isUserdata())
 				throw new LuaException("Invalid object. Not a function, table or userdata .");
 
@@ -595,6 +653,8 @@ public class LuaObject implements Serializable {
 				L.pop(1);
 			}
 			return res;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
@@ -611,7 +671,8 @@ public class LuaObject implements Serializable {
 	}
 
 	public byte[] dump() throws LuaException {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			if (!isFunction())
 				throw new LuaException("Invalid object. Not a function .");
 
@@ -619,11 +680,14 @@ public class LuaObject implements Serializable {
 			byte[] buf=L.dump(-1);
 			L.pop(1);
 			return buf;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public Object[] asArray() throws IllegalArgumentException, ArrayIndexOutOfBoundsException, LuaException {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			if (!isTable())
 				throw new LuaException("Invalid object. Not a table .");
 			push();
@@ -640,12 +704,15 @@ public class LuaObject implements Serializable {
 			}
 			L.pop(1);
 			return (Object[])array;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public Map asMap(LuaState L, Class<?> clazz, int idx) throws LuaException {
 		// TODO: Implement this method
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			if (!isTable())
 				throw new LuaException("Invalid object. Not a table .");
 			HashMap<Object,Object> map = new HashMap<Object, Object>();
@@ -660,11 +727,14 @@ public class LuaObject implements Serializable {
 			}
 			L.pop(1);
 			return map;
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public String toString() {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			try {
 				if (isNil())
 					return "nil";
@@ -690,6 +760,8 @@ public class LuaObject implements Serializable {
 			catch (LuaException e) {
 				return null;
 			}
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
@@ -700,7 +772,8 @@ public class LuaObject implements Serializable {
 	 *            Interfaces that are implemented, separated by <code>,</code>
 	 */
 	public Object createProxy(String implem) throws ClassNotFoundException, LuaException {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			if (!isTable())
 				throw new LuaException("Invalid Object. Must be Table.");
 
@@ -709,14 +782,15 @@ public class LuaObject implements Serializable {
 			for (int i = 0; st.hasMoreTokens(); i++)
 				interfaces[i] = Class.forName(st.nextToken());
 
-			InvocationHandler handler = new LuaInvocationHandler(this);
-
-			return Proxy.newProxyInstance(this.getClass().getClassLoader(), interfaces, handler);
+			return LuaProxyFactory.newProxy(this, this.getClass().getClassLoader(), interfaces);
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
 	public Object createProxy(Class implem) throws LuaException {
-		synchronized (L) {
+		boolean locked = L.lock();
+		try {
 			if (!isTable() && !isFunction())
 				throw new LuaException("Invalid Object. Must be Table or Function.");
 
@@ -725,11 +799,9 @@ public class LuaObject implements Serializable {
             if(isTable()&&getTable().isList()){
 	            throw new LuaException("Invalid Object. Must be Table is Not Array.");
             }
-			Class[] interfaces = new Class[]{implem};
-
-			InvocationHandler handler = new LuaInvocationHandler(this);
-
-			return Proxy.newProxyInstance(implem.getClassLoader(), interfaces, handler);
+			return LuaProxyFactory.newProxy(this, implem.getClassLoader(), implem);
+		} finally {
+			L.unlock(locked);
 		}
 	}
 
@@ -0,0 +1,211 @@
+package com.luajava;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the overload of a method to call from the lua types of the
+ * arguments, without converting them.
+ * <p>
+ * Each parameter gets a score telling how well the argument fits it, from
+ * {@link #EXACT} down to {@link #LOOSE}, or {@link #NO_MATCH} when
+ * <code>LuaJavaAPI.compareTypes</code> would reject the argument or the call
+ * would fail. The overload with the highest total wins; on a tie the one
+ * whose parameter types are all assignable to the other's is taken, and
+ * otherwise the first one, as before. Only the winner has its arguments
+ * converted.
+ */
+final class LuaOverloadResolver {
+
+    static final int NO_MATCH = -1;
+
+    private static final int LOOSE = 1;
+    private static final int WIDE = 2;
+    private static final int CLOSE = 3;
+    private static final int EXACT = 4;
+
+    /**
+     * Stands for a lua userdata which is not a java object
+     */
+    private static final Object LUA_USERDATA = new Object();
+
+    private LuaOverloadResolver() {
+    }
+
+    /**
+     * Returns the index of the best overload taking the <code>n</code>
+     * values starting at <code>base</code>, or {@link #NO_MATCH}.
+     *
+     * @param types      lua type of each value
+     * @param staticOnly if instance methods are skipped
+     */
+    static int resolve(LuaState L, LuaClassMembers.Overloads overloads, int base, int n, int[] types,
+                       boolean staticOnly) throws LuaException {
+        int[] tags = new int[n];
+        Object[] values = null;
+        for (int i = 0; i < n; i++) {
+            int tag = types[i];
+            if (tag == LuaState.LUA_TNUMBER && L.isInteger(base + i)) {
+                tag = LuaState.LUA_TINTEGER;
+            } else if (tag == LuaState.LUA_TUSERDATA) {
+                if (values == null)
+                    values = new Object[n];
+                values[i] = L.isObject(base + i) ? L.getObjectFromUserdata(base + i) : LUA_USERDATA;
+            }
+            tags[i] = tag;
+        }
+
+        Method[] methods = overloads.methods;
+        int best = NO_MATCH;
+        int bestScore = NO_MATCH;
+        Class<?>[] bestParameters = null;
+        for (int i = 0; i < methods.length; i++) {
+            if (staticOnly && !Modifier.isStatic(methods[i].getModifiers()))
+                continue;
+            Class<?>[] parameters = overloads.parameterTypes(i);
+            if (parameters.length != n)
+                continue;
+
+            int total = 0;
+            for (int j = 0; j < n; j++) {
+                int s = score(parameters[j], tags[j], values == null ? null : values[j]);
+                if (s == NO_MATCH) {
+                    total = NO_MATCH;
+                    break;
+                }
+                total += s;
+            }
+            if (total == NO_MATCH)
+                continue;
+            if (total > bestScore || (total == bestScore && isMoreSpecific(parameters, bestParameters))) {
+                best = i;
+                bestScore = total;
+                bestParameters = parameters;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns how well a value of lua type <code>tag</code> fits a parameter
+     *
+     * @param value the java object of a userdata
+     */
+    static int score(Class<?> parameter, int tag, Object value) {
+        switch (tag) {
+            case LuaState.LUA_TNIL:
+                return parameter.isPrimitive() ? NO_MATCH : LOOSE;
+            case LuaState.LUA_TBOOLEAN:
+                if (parameter == Boolean.TYPE || parameter == Boolean.class)
+                    return EXACT;
+                return parameter.isAssignableFrom(Boolean.class) ? LOOSE : NO_MATCH;
+            case LuaState.LUA_TSTRING:
+                if (parameter == String.class)
+                    return EXACT;
+                if (parameter == byte[].class || parameter == LuaString.class)
+                    return CLOSE;
+                if (!parameter.isAssignableFrom(String.class))
+                    return NO_MATCH;
+                return parameter == Object.class ? LOOSE : WIDE;
+            case LuaState.LUA_TINTEGER:
+                return scoreInteger(parameter);
+            case LuaState.LUA_TNUMBER:
+                return scoreNumber(parameter);
+            case LuaState.LUA_TTABLE:
+                if (parameter == LuaTable.class)
+                    return EXACT;
+                if (parameter.isAssignableFrom(LuaTable.class))
+                    return parameter == Object.class ? LOOSE : WIDE;
+                if (parameter.isArray() || List.class.isAssignableFrom(parameter)
+                        || Map.class.isAssignableFrom(parameter) || parameter == ByteBuffer.class)
+                    return CLOSE;
+                return parameter.isInterface() ? WIDE : NO_MATCH;
+            case LuaState.LUA_TFUNCTION:
+                if (parameter.isInterface())
+                    return parameter.getMethods().length == 1 ? WIDE : NO_MATCH;
+                if (parameter == LuaFunction.class)
+                    return EXACT;
+                return parameter.isAssignableFrom(LuaFunction.class) ? LOOSE : NO_MATCH;
+            case LuaState.LUA_TUSERDATA:
+                return scoreObject(parameter, value);
+            default:
+                return NO_MATCH;
+        }
+    }
+
+    private static int scoreInteger(Class<?> parameter) {
+        if (parameter == Long.TYPE || parameter == Integer.TYPE
+                || parameter == Long.class || parameter == Integer.class)
+            return EXACT;
+        if (parameter == Short.TYPE || parameter == Byte.TYPE
+                || parameter == Short.class || parameter == Byte.class)
+            return CLOSE;
+        if (parameter == Double.TYPE || parameter == Float.TYPE || parameter == Float.class)
+            return WIDE;
+        // Double gets the Long as is and the call fails
+        if (parameter == Number.class)
+            return LOOSE;
+        return NO_MATCH;
+    }
+
+    private static int scoreNumber(Class<?> parameter) {
+        if (parameter == Double.TYPE || parameter == Double.class)
+            return EXACT;
+        if (parameter == Float.TYPE || parameter == Float.class)
+            return CLOSE;
+        if (parameter == Long.TYPE || parameter == Integer.TYPE
+                || parameter == Short.TYPE || parameter == Byte.TYPE
+                || parameter == Long.class || parameter == Integer.class
+                || parameter == Short.class || parameter == Byte.class
+                || parameter == Number.class)
+            return LOOSE;
+        return NO_MATCH;
+    }
+
+    private static int scoreObject(Class<?> parameter, Object value) {
+        if (value == LUA_USERDATA) {
+            if (parameter == LuaObject.class)
+                return EXACT;
+            return parameter.isAssignableFrom(LuaObject.class) ? LOOSE : NO_MATCH;
+        }
+        if (value == null)
+            return parameter.isPrimitive() ? NO_MATCH : LOOSE;
+
+        Class<?> clazz = value.getClass();
+        if (parameter.isPrimitive()) {
+            if ((parameter == Byte.TYPE && clazz == Byte.class)
+                    || (parameter == Short.TYPE && clazz == Short.class)
+                    || (parameter == Integer.TYPE && clazz == Integer.class)
+                    || (parameter == Long.TYPE && clazz == Long.class)
+                    || (parameter == Float.TYPE && clazz == Float.class)
+                    || (parameter == Double.TYPE && clazz == Double.class)
+                    || (parameter == Character.TYPE && clazz == Character.class))
+                return EXACT;
+            return NO_MATCH;
+        }
+        if (parameter == clazz)
+            return EXACT;
+        if (!parameter.isAssignableFrom(clazz))
+            return NO_MATCH;
+        return parameter == Object.class ? LOOSE : WIDE;
+    }
+
+    /**
+     * Returns true when every parameter of <code>a</code> is assignable to
+     * the one of <code>b</code>, and they are not the same
+     */
+    private static boolean isMoreSpecific(Class<?>[] a, Class<?>[] b) {
+        boolean differs = false;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i])
+                continue;
+            if (!b[i].isAssignableFrom(a[i]))
+                return false;
+            differs = true;
+        }
+        return differs;
+    }
+}
@@ -0,0 +1,211 @@
+package com.luajava;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes the java proxies implementing interfaces with lua functions and
+ * tables.
+ * <p>
+ * The proxy class and its constructor are made once for each set of
+ * interfaces. When memoizing is on, a lua value passed again for the same
+ * interface gets the proxy made the first time, as long as that proxy is
+ * still in use; this saves a proxy for each <code>setOnClickListener(f)</code>
+ * of a list adapter rebinding its rows.
+ */
+public final class LuaProxyFactory {
+
+    private static final ConcurrentHashMap<List<Object>, Constructor<?>> sConstructors = new ConcurrentHashMap<>();
+
+    private static final WeakHashMap<LuaState, HashMap<List<Object>, ProxyRef>> sProxies = new WeakHashMap<>();
+
+    /**
+     * Proxies collected, whose entries are removed on the next memoized call
+     */
+    private static final ReferenceQueue<Object> sCollected = new ReferenceQueue<>();
+
+    private static volatile boolean sMemoize;
+
+    private LuaProxyFactory() {
+    }
+
+    /**
+     * Sets if the proxies of a lua value are kept and given again for the
+     * same interface. Off by default, as then two proxies of one function
+     * are the same object.
+     */
+    public static void setMemoize(boolean memoize) {
+        sMemoize = memoize;
+        if (!memoize) {
+            synchronized (sProxies) {
+                sProxies.clear();
+            }
+        }
+    }
+
+    public static boolean isMemoize() {
+        return sMemoize;
+    }
+
+    /**
+     * Returns a proxy implementing <code>implem</code> with the lua value at
+     * <code>idx</code>
+     */
+    static Object newProxy(LuaState L, int idx, Class<?> implem) throws LuaException {
+        boolean locked = L.lock();
+        try {
+            if (!sMemoize)
+                return newProxy(L.getLuaObject(idx), implem.getClassLoader(), implem);
+
+            List<Object> key = Arrays.<Object>asList(L.toPointer(idx), implem);
+            HashMap<List<Object>, ProxyRef> proxies;
+            synchronized (sProxies) {
+                purge();
+                proxies = sProxies.get(L);
+                if (proxies == null) {
+                    proxies = new HashMap<>();
+                    sProxies.put(L, proxies);
+                }
+                ProxyRef ref = proxies.get(key);
+                Object proxy = ref == null ? null : ref.get();
+                if (proxy != null)
+                    return proxy;
+            }
+            // the lua value is kept alive by the proxy, so its address is
+            // not reused while the entry is set
+            Object proxy = newProxy(L.getLuaObject(idx), implem.getClassLoader(), implem);
+            synchronized (sProxies) {
+                proxies.put(key, new ProxyRef(proxy, proxies, key));
+            }
+            return proxy;
+        } finally {
+            L.unlock(locked);
+        }
+    }
+
+    /**
+     * Removes the entries of the proxies collected. Called holding sProxies.
+     */
+    private static void purge() {
+        ProxyRef ref;
+        while ((ref = (ProxyRef) sCollected.poll()) != null) {
+            // the entry may hold a newer proxy of the same value
+            if (ref.proxies.get(ref.key) == ref)
+                ref.proxies.remove(ref.key);
+        }
+    }
+
+    /**
+     * Memoized proxy, knowing its entry to remove it once collected
+     */
+    private static final class ProxyRef extends WeakReference<Object> {
+
+        final HashMap<List<Object>, ProxyRef> proxies;
+
+        final List<Object> key;
+
+        ProxyRef(Object proxy, HashMap<List<Object>, ProxyRef> proxies, List<Object> key) {
+            super(proxy, sCollected);
+            this.proxies = proxies;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Returns a new proxy implementing <code>interfaces</code> with
+     * <code>obj</code>
+     */
+    static Object newProxy(LuaObject obj, ClassLoader loader, Class<?>... interfaces) throws LuaException {
+        InvocationHandler handler = new LuaInvocationHandler(obj);
+        LuaMetrics metrics = obj.L.getMetrics();
+        if (metrics != null)
+            metrics.proxyCount++;
+        try {
+            return getConstructor(loader, interfaces).newInstance(handler);
+        } catch (InvocationTargetException e) {
+            throw new LuaException(e.getCause() != null ? e.getCause().toString() : e.toString());
+        } catch (ReflectiveOperationException e) {
+            throw new LuaException(e);
+        }
+    }
+
+    private static Constructor<?> getConstructor(ClassLoader loader, Class<?>[] interfaces) throws NoSuchMethodException {
+        Object[] parts = new Object[interfaces.length + 1];
+        parts[0] = loader;
+        System.arraycopy(interfaces, 0, parts, 1, interfaces.length);
+        List<Object> key = Arrays.asList(parts);
+
+        Constructor<?> constructor = sConstructors.get(key);
+        if (constructor == null) {
+            constructor = Proxy.getProxyClass(loader, interfaces).getConstructor(InvocationHandler.class);
+            Constructor<?> old = sConstructors.putIfAbsent(key, constructor);
+            if (old != null)
+                constructor = old;
+        }
+        return constructor;
+    }
+
+    /**
+     * Proxy argument of a method call not chosen yet. The proxy is made by
+     * {@link #materialize(LuaState, Object[])} once the method is chosen.
+     */
+    static final class Pending {
+
+        final Class<?> type;
+
+        final int idx;
+
+        Pending(Class<?> type, int idx) {
+            this.type = type;
+            this.idx = idx;
+        }
+    }
+
+    /**
+     * Checks that the lua value at <code>idx</code> can implement
+     * <code>implem</code>, as {@link LuaObject#createProxy(Class)} does,
+     * and returns a pending proxy for it.
+     */
+    static Pending defer(LuaState L, int idx, Class<?> implem) throws LuaException {
+        boolean locked = L.lock();
+        try {
+            if (L.isFunction(idx)) {
+                if (implem.getMethods().length != 1)
+                    throw new LuaException("Invalid Object. Must be a interface Method of Function.");
+            } else if (L.isTable(idx)) {
+                if (L.rawLen(idx) != 0)
+                    throw new LuaException("Invalid Object. Must be Table is Not Array.");
+                L.pushNil();
+                if (L.next(idx) == 0)
+                    throw new LuaException("Invalid Object. Must be Table is Not Array.");
+                L.pop(2);
+            } else {
+                throw new LuaException("Invalid Object. Must be Table or Function.");
+            }
+            return new Pending(implem, idx);
+        } finally {
+            L.unlock(locked);
+        }
+    }
+
+    /**
+     * Replaces the pending proxies of an argument list by proxies
+     */
+    static void materialize(LuaState L, Object[] args) throws LuaException {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof Pending) {
+                Pending pending = (Pending) args[i];
+                args[i] = newProxy(L, pending.idx, pending.type);
+            }
+        }
+    }
+}
@@ -27,11 +27,26 @@ package com.luajava;
 
 import android.util.Log;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * LuaState if the main class of LuaJava for the Java developer.
  * LuaState is a mapping of most of Lua's C API functions.
  * LuaState also provides many other functions that will be used to manipulate
  * objects between Lua and Java.
+ * <p>
+ * The stack and access methods call lua without taking the lock of the
+ * state. Code using a state from another thread than the one running it
+ * takes {@link #lock()} around the whole operation, as LuaObject and the
+ * calls from lua into java do.
  *
  * @author Thiago Ponte
  */
@@ -108,10 +123,40 @@ public class LuaState {
 
     private long luaState;
 
+    /**
+     * State of the main thread of this lua state, this one for a new state
+     */
+    private final LuaState mMain;
+
+    /**
+     * Lock of the state and its lua threads, used from the main state
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private volatile Thread mOwner;
+
+    private Executor mOwnerExecutor;
+
+    private final Object mRefLock = new Object();
+
+    private final ReferenceQueue<LuaObject> mRefQueue = new ReferenceQueue<>();
+
+    private final HashSet<ObjectRef> mLiveRefs = new HashSet<>();
+
+    private final ArrayList<ObjectRef> mPendingRefs = new ArrayList<>();
+
+    /**
+     * Number of LuaObjects tracked so far
+     */
+    private long mRefSerial;
+
+    private volatile LuaMetrics mMetrics;
+
     //private long stateId;
 
     protected LuaState() {
         luaState = _newstate();
+        mMain = this;
         //openLuajava(stateId);
         //this.stateId = luaState.getPeer();
     }
@@ -122,23 +167,56 @@ public class LuaState {
      * @param luaState
      */
     protected LuaState(long luaState) {
-        this.luaState = luaState;
-        LuaStateFactory.insertLuaState(this);
+        this(luaState, true);
         //openLuajava(stateId);
     }
 
     /**
-     * Closes state and removes the object from the LuaStateFactory
+     * Receives a lua thread of an existing state, adding it to the
+     * LuaStateFactory if <code>insert</code> is true
+     */
+    LuaState(long luaState, boolean insert) {
+        this.luaState = luaState;
+        LuaState main = _getMainState(luaState);
+        mMain = main != null ? main : this;
+        if (insert)
+            LuaStateFactory.insertLuaState(this);
+    }
+
+    /**
+     * Returns the state of the main thread, this one for a main state
      */
-    public synchronized void close() {
-        LuaStateFactory.removeLuaState(luaState);
-        _close(luaState);
-        this.luaState = 0;
+    LuaState getMainState() {
+        return mMain;
+    }
+
+    /**
+     * Closes state and removes the object from the LuaStateFactory, with
+     * its lua threads for a main state
+     */
+    public void close() {
+        boolean locked = lock();
+        try {
+            LuaStateFactory.removeLuaState(luaState);
+            if (mMain == this)
+                LuaStateFactory.removeThreads(this);
+            _close(luaState);
+            this.luaState = 0;
+            synchronized (mRefLock) {
+                mLiveRefs.clear();
+                mPendingRefs.clear();
+            }
+        } finally {
+            unlock(locked);
+        }
     }
 
     @Override
     protected void finalize() {
         Log.i("luaState", "finalize: "+luaState);
+        // a lua thread is closed with its main state
+        if (mMain != this)
+            return;
         try {
            close();
         }
@@ -150,8 +228,13 @@ public class LuaState {
     /**
      * Returns <code>true</code> if state is closed.
      */
-    public synchronized boolean isClosed() {
-        return luaState == 0;
+    public boolean isClosed() {
+        boolean locked = lock();
+        try {
+            return luaState == 0;
+        } finally {
+            unlock(locked);
+        }
     }
 
     /**
@@ -176,131 +259,200 @@ public class LuaState {
         return mContext;
     }
 
+    private final Object[][] mArgsBuffers = new Object[LuaMethodInvoker.MAX_BUFFERED_ARGS + 1][];
+
+    /**
+     * Returns the reusable argument array of <code>n</code> elements used by
+     * {@link LuaMethodInvoker}. Only valid while the state lock is held.
+     */
+    Object[] argsBuffer(int n) {
+        Object[] args = mArgsBuffers[n];
+        if (args == null) {
+            args = new Object[n];
+            mArgsBuffers[n] = args;
+        }
+        return args;
+    }
+
     /********************* Lua Native Interface *************************/
 
-    private synchronized native long _newstate();
+    private native long _newstate();
 
-    private synchronized native void _close(long ptr);
+    private native void _close(long ptr);
 
-    private synchronized native long _newthread(long ptr);
+    private native long _newthread(long ptr);
 
     // Stack manipulation
-    private synchronized native int _getTop(long ptr);
+    private native int _getTop(long ptr);
 
-    private synchronized native void _setTop(long ptr, int idx);
+    private native void _setTop(long ptr, int idx);
 
-    private synchronized native void _pushValue(long ptr, int idx);
+    private native void _pushValue(long ptr, int idx);
 
-    private synchronized native void _rotate(long ptr, int idx, int n);
+    private native void _rotate(long ptr, int idx, int n);
 
-    private synchronized native void _copy(long ptr, int fromidx, int toidx);
+    private native void _copy(long ptr, int fromidx, int toidx);
 
-    private synchronized native void _remove(long ptr, int idx);
+    private native void _remove(long ptr, int idx);
 
-    private synchronized native void _insert(long ptr, int idx);
+    private native void _insert(long ptr, int idx);
 
-    private synchronized native void _replace(long ptr, int idx);
+    private native void _replace(long ptr, int idx);
 
-    private synchronized native int _checkStack(long ptr, int sz);
+    private native int _checkStack(long ptr, int sz);
 
-    private synchronized native void _xmove(long from, long to, int n);
+    private native void _xmove(long from, long to, int n);
 
     // Access functions
-    private synchronized native int _isNumber(long ptr, int idx);
+    private native int _isNumber(long ptr, int idx);
 
-    private synchronized native int _isInteger(long ptr, int idx);
+    private native int _isInteger(long ptr, int idx);
 
-    private synchronized native int _isString(long ptr, int idx);
+    private native int _isString(long ptr, int idx);
 
-    private synchronized native int _isCFunction(long ptr, int idx);
+    private native int _isCFunction(long ptr, int idx);
 
-    private synchronized native int _isUserdata(long ptr, int idx);
+    private native int _isUserdata(long ptr, int idx);
 
-    private synchronized native int _type(long ptr, int idx);
+    private native int _type(long ptr, int idx);
 
-    private synchronized native String _typeName(long ptr, int tp);
+    private native String _typeName(long ptr, int tp);
 
-    private synchronized native int _equal(long ptr, int idx1, int idx2);
+    private native int _equal(long ptr, int idx1, int idx2);
 
-    private synchronized native int _compare(long ptr, int idx1, int idx2, int op);
+    private native int _compare(long ptr, int idx1, int idx2, int op);
 
-    private synchronized native int _rawequal(long ptr, int idx1, int idx2);
+    private native int _rawequal(long ptr, int idx1, int idx2);
 
-    private synchronized native int _lessThan(long ptr, int idx1, int idx2);
+    private native int _lessThan(long ptr, int idx1, int idx2);
 
-    private synchronized native double _toNumber(long ptr, int idx);
+    private native double _toNumber(long ptr, int idx);
 
-    private synchronized native long _toInteger(long ptr, int idx);
+    private native long _toInteger(long ptr, int idx);
 
-    private synchronized native int _toBoolean(long ptr, int idx);
+    private native int _toBoolean(long ptr, int idx);
 
-    private synchronized native String _toString(long ptr, int idx);
+    private native String _toString(long ptr, int idx);
 
-    private synchronized native byte[] _toBuffer(long ptr, int idx);
+    private native byte[] _toBuffer(long ptr, int idx);
 
-    private synchronized native int _objlen(long ptr, int idx);
+    private native int _toJavaArray(long ptr, int idx, Object[] values, int[] refs);
 
-    private synchronized native int _rawlen(long ptr, int idx);
+    private native int _toJavaEntries(long ptr, int idx, Object[] entries, int[] refs);
 
-    private synchronized native long _toThread(long ptr, int idx);
+    private native long[] _toLongArray(long ptr, int idx);
+
+    private native double[] _toDoubleArray(long ptr, int idx);
+
+    private native int _getByteArray(long ptr, int idx, byte[] arr);
+
+    private native int _getShortArray(long ptr, int idx, short[] arr);
+
+    private native int _getCharArray(long ptr, int idx, char[] arr);
+
+    private native int _getIntArray(long ptr, int idx, int[] arr);
+
+    private native int _getLongArray(long ptr, int idx, long[] arr);
+
+    private native int _getFloatArray(long ptr, int idx, float[] arr);
+
+    private native int _getDoubleArray(long ptr, int idx, double[] arr);
+
+    private native void _pushByteArray(long ptr, byte[] arr);
+
+    private native void _pushShortArray(long ptr, short[] arr);
+
+    private native void _pushCharArray(long ptr, char[] arr);
+
+    private native void _pushIntArray(long ptr, int[] arr);
+
+    private native void _pushLongArray(long ptr, long[] arr);
+
+    private native void _pushFloatArray(long ptr, float[] arr);
+
+    private native void _pushDoubleArray(long ptr, double[] arr);
+
+    private native int _toByteBuffer(long ptr, int idx, ByteBuffer buf, int offset, int length);
+
+    private native int _pushByteBuffer(long ptr, ByteBuffer buf, int offset, int length);
+
+    private native int _objlen(long ptr, int idx);
+
+    private native int _rawlen(long ptr, int idx);
+
+    private native long _toPointer(long ptr, int idx);
+
+    private native void _setIdentityCache(long ptr, boolean enabled);
+
+    private static native int _getGlobalRefCount();
+
+    private native long _getAllocatedBytes(long ptr);
+
+    private native void _setMemoryLimit(long ptr, long limit);
+
+    private native long _getMemoryLimit(long ptr);
+
+    private native long _toThread(long ptr, int idx);
+
+    private native LuaState _getMainState(long ptr);
 
     // Push functions
-    private synchronized native void _pushNil(long ptr);
+    private native void _pushNil(long ptr);
 
-    private synchronized native void _pushNumber(long ptr, double number);
+    private native void _pushNumber(long ptr, double number);
 
-    private synchronized native void _pushInteger(long ptr, long integer);
+    private native void _pushInteger(long ptr, long integer);
 
-    private synchronized native void _pushString(long ptr, String str);
+    private native void _pushString(long ptr, String str);
 
-    private synchronized native void _pushLString(long ptr, byte[] bytes, int n);
+    private native void _pushLString(long ptr, byte[] bytes, int n);
 
-    private synchronized native void _pushBoolean(long ptr, int bool);
+    private native void _pushBoolean(long ptr, int bool);
 
     // Get functions
-    private synchronized native int _getTable(long ptr, int idx);
+    private native int _getTable(long ptr, int idx);
 
-    private synchronized native int _getField(long ptr, int idx, String k);
+    private native int _getField(long ptr, int idx, String k);
 
-    private synchronized native int _getI(long ptr, int idx, long n);
+    private native int _getI(long ptr, int idx, long n);
 
-    private synchronized native int _rawGet(long ptr, int idx);
+    private native int _rawGet(long ptr, int idx);
 
-    private synchronized native int _rawGetI(long ptr, int idx, long n);
+    private native int _rawGetI(long ptr, int idx, long n);
 
-    private synchronized native void _createTable(long ptr, int narr, int nrec);
+    private native void _createTable(long ptr, int narr, int nrec);
 
-    private synchronized native int _getMetaTable(long ptr, int idx);
+    private native int _getMetaTable(long ptr, int idx);
 
-    private synchronized native int _getUserValue(long ptr, int idx);
+    private native int _getUserValue(long ptr, int idx);
 
     // Set functions
-    private synchronized native void _setTable(long ptr, int idx);
+    private native void _setTable(long ptr, int idx);
 
-    private synchronized native void _setField(long ptr, int idx, String k);
+    private native void _setField(long ptr, int idx, String k);
 
-    private synchronized native void _setI(long ptr, int idx, long n);
+    private native void _setI(long ptr, int idx, long n);
 
-    private synchronized native void _rawSet(long ptr, int idx);
+    private native void _rawSet(long ptr, int idx);
 
-    private synchronized native void _rawSetI(long ptr, int idx, long n);
+    private native void _rawSetI(long ptr, int idx, long n);
 
-    private synchronized native int _setMetaTable(long ptr, int idx);
+    private native int _setMetaTable(long ptr, int idx);
 
-    private synchronized native void _setUserValue(long ptr, int idx);
+    private native void _setUserValue(long ptr, int idx);
 
-    private synchronized native void _call(long ptr, int nArgs, int nResults);
+    private native void _call(long ptr, int nArgs, int nResults);
 
-    private synchronized native int _pcall(long ptr, int nArgs, int Results, int errFunc);
+    private native int _pcall(long ptr, int nArgs, int Results, int errFunc);
 
     // Coroutine Functions
-    private synchronized native int _yield(long ptr, int nResults);
+    private native int _yield(long ptr, int nResults);
 
-    private synchronized native int _resume(long ptr, long from, int nargs);
+    private native int _resume(long ptr, long from, int nargs);
 
-    private synchronized native int _status(long ptr);
+    private native int _status(long ptr);
 
-    private synchronized native int _isYieldable(long ptr);
+    private native int _isYieldable(long ptr);
 
     // Gargabe Collection Functions
     final public static int LUA_GCSTOP = 0;
@@ -312,121 +464,126 @@ public class LuaState {
     final public static int LUA_GCSETPAUSE = 6;
     final public static int LUA_GCSETSTEPMUL = 7;
 
-    private synchronized native int _gc(long ptr, int what, int data);
+    private native int _gc(long ptr, int what, int data);
 
     // Miscellaneous Functions
-    private synchronized native int _error(long ptr);
+    private native int _error(long ptr);
 
-    private synchronized native int _next(long ptr, int idx);
+    private native int _next(long ptr, int idx);
 
-    private synchronized native void _concat(long ptr, int n);
+    private native void _concat(long ptr, int n);
 
     // Some macros
-    private synchronized native void _pop(long ptr, int n);
+    private native void _pop(long ptr, int n);
 
-    private synchronized native void _newTable(long ptr);
+    private native void _newTable(long ptr);
 
-    private synchronized native int _strlen(long ptr, int idx);
+    private native int _strlen(long ptr, int idx);
 
-    private synchronized native int _isFunction(long ptr, int idx);
+    private native int _isFunction(long ptr, int idx);
 
-    private synchronized native int _isTable(long ptr, int idx);
+    private native int _isTable(long ptr, int idx);
 
-    private synchronized native int _isNil(long ptr, int idx);
+    private native int _isNil(long ptr, int idx);
 
-    private synchronized native int _isBoolean(long ptr, int idx);
+    private native int _isBoolean(long ptr, int idx);
 
-    private synchronized native int _isThread(long ptr, int idx);
+    private native int _isThread(long ptr, int idx);
 
-    private synchronized native int _isNone(long ptr, int idx);
+    private native int _isNone(long ptr, int idx);
 
-    private synchronized native int _isNoneOrNil(long ptr, int idx);
+    private native int _isNoneOrNil(long ptr, int idx);
 
-    private synchronized native void _pushGlobalTable(long ptr);
+    private native void _pushGlobalTable(long ptr);
 
-    private synchronized native void _setGlobal(long ptr, String name);
+    private native void _setGlobal(long ptr, String name);
 
-    private synchronized native int _getGlobal(long ptr, String name);
+    private native int _getGlobal(long ptr, String name);
 
 
     // LuaLibAux
-    private synchronized native int _LdoFile(long ptr, String fileName);
+    private native int _LdoFile(long ptr, String fileName);
 
-    private synchronized native int _LdoString(long ptr, String string);
+    private native int _LdoString(long ptr, String string);
     //private synchronized native int _doBuffer(long ptr, byte[] buff, long sz, String n);
 
-    private synchronized native int _LgetMetaField(long ptr, int obj, String e);
+    private native int _LgetMetaField(long ptr, int obj, String e);
 
-    private synchronized native int _LcallMeta(long ptr, int obj, String e);
+    private native int _LcallMeta(long ptr, int obj, String e);
 
-    private synchronized native int _LargError(long ptr, int numArg, String extraMsg);
+    private native int _LargError(long ptr, int numArg, String extraMsg);
 
-    private synchronized native String _LcheckString(long ptr, int numArg);
+    private native String _LcheckString(long ptr, int numArg);
 
-    private synchronized native String _LoptString(long ptr, int numArg, String def);
+    private native String _LoptString(long ptr, int numArg, String def);
 
-    private synchronized native double _LcheckNumber(long ptr, int numArg);
+    private native double _LcheckNumber(long ptr, int numArg);
 
-    private synchronized native double _LoptNumber(long ptr, int numArg, double def);
+    private native double _LoptNumber(long ptr, int numArg, double def);
 
-    private synchronized native int _LcheckInteger(long ptr, int numArg);
+    private native int _LcheckInteger(long ptr, int numArg);
 
-    private synchronized native int _LoptInteger(long ptr, int numArg, int def);
+    private native int _LoptInteger(long ptr, int numArg, int def);
 
-    private synchronized native void _LcheckStack(long ptr, int sz, String msg);
+    private native void _LcheckStack(long ptr, int sz, String msg);
 
-    private synchronized native void _LcheckType(long ptr, int nArg, int t);
+    private native void _LcheckType(long ptr, int nArg, int t);
 
-    private synchronized native void _LcheckAny(long ptr, int nArg);
+    private native void _LcheckAny(long ptr, int nArg);
 
-    private synchronized native int _LnewMetatable(long ptr, String tName);
+    private native int _LnewMetatable(long ptr, String tName);
 
-    private synchronized native void _LgetMetatable(long ptr, String tName);
+    private native void _LgetMetatable(long ptr, String tName);
 
-    private synchronized native void _Lwhere(long ptr, int lvl);
+    private native void _Lwhere(long ptr, int lvl);
 
-    private synchronized native int _Lref(long ptr, int t);
+    private native int _Lref(long ptr, int t);
 
-    private synchronized native void _LunRef(long ptr, int t, int ref);
+    private native void _LunRef(long ptr, int t, int ref);
 
-    private synchronized native int _LloadFile(long ptr, String fileName);
+    private native int _LloadFile(long ptr, String fileName);
 
-    private synchronized native int _LloadBuffer(long ptr, byte[] buff, long sz, String name);
+    private native int _LloadBuffer(long ptr, byte[] buff, long sz, String name);
 
-    private synchronized native int _LloadString(long ptr, String s);
+    private native int _LloadString(long ptr, String s);
 
-    private synchronized native String _Lgsub(long ptr, String s, String p, String r);
+    private native String _Lgsub(long ptr, String s, String p, String r);
 
-    private synchronized native String _getUpValue(long ptr, int funcindex, int n);
+    private native String _getUpValue(long ptr, int funcindex, int n);
 
-    private synchronized native String _setUpValue(long ptr, int funcindex, int n);
+    private native String _setUpValue(long ptr, int funcindex, int n);
 
-    private synchronized native byte[] _dump(long ptr, int funcindex);
+    private native byte[] _dump(long ptr, int funcindex);
 
-    private synchronized native void _openBase(long ptr);
+    private native void _openBase(long ptr);
 
-    private synchronized native void _openTable(long ptr);
+    private native void _openTable(long ptr);
 
-    private synchronized native void _openIo(long ptr);
+    private native void _openIo(long ptr);
 
-    private synchronized native void _openOs(long ptr);
+    private native void _openOs(long ptr);
 
-    private synchronized native void _openString(long ptr);
+    private native void _openString(long ptr);
 
-    private synchronized native void _openMath(long ptr);
+    private native void _openMath(long ptr);
 
-    private synchronized native void _openDebug(long ptr);
+    private native void _openDebug(long ptr);
 
-    private synchronized native void _openPackage(long ptr);
+    private native void _openPackage(long ptr);
 
-    private synchronized native void _openLibs(long ptr);
+    private native void _openLibs(long ptr);
 
     // Java Interface -----------------------------------------------------
 
     public LuaState newThread() {
-        LuaState l = new LuaState(_newthread(luaState));
-        LuaStateFactory.insertLuaState(l);
-        return l;
+        boolean locked = lock();
+        try {
+            LuaState l = new LuaState(_newthread(luaState));
+            LuaStateFactory.insertLuaState(l);
+            return l;
+        } finally {
+            unlock(locked);
+        }
     }
 
     // STACK MANIPULATION
@@ -565,6 +722,15 @@ public class LuaState {
         return _toBuffer(luaState, idx);
     }
 
+    /**
+     * Returns the string at <code>idx</code> as its bytes, without decoding
+     * them to a java String, for strings passed on as they are
+     */
+    public LuaString toLuaString(int idx) {
+        byte[] bytes = toBuffer(idx);
+        return bytes == null ? null : new LuaString(bytes);
+    }
+
     public int strLen(int idx) {
         return _strlen(luaState, idx);
     }
@@ -577,6 +743,14 @@ public class LuaState {
         return _rawlen(luaState, idx);
     }
 
+    /**
+     * Returns the address of the table, function, thread or userdata at
+     * <code>idx</code>, or 0 for other values. Only meant to tell values apart.
+     */
+    public long toPointer(int idx) {
+        return _toPointer(luaState, idx);
+    }
+
     public LuaState toThread(int idx) {
         return new LuaState(_toThread(luaState, idx));
     }
@@ -689,6 +863,7 @@ public class LuaState {
 
     // returns 0 if ok of one of the error codes defined
     public int pcall(int nArgs, int nResults, int errFunc) {
+        releaseRefs();
         return _pcall(luaState, nArgs, nResults, errFunc);
     }
 
@@ -729,12 +904,22 @@ public class LuaState {
     // FUNCTION FROM lauxlib
     // returns 0 if ok
     public int LdoFile(String fileName) {
-        return _LdoFile(luaState, fileName);
+        boolean locked = lock();
+        try {
+            return _LdoFile(luaState, fileName);
+        } finally {
+            unlock(locked);
+        }
     }
 
     // returns 0 if ok
     public int LdoString(String str) {
-        return _LdoString(luaState, str);
+        boolean locked = lock();
+        try {
+            return _LdoString(luaState, str);
+        } finally {
+            unlock(locked);
+        }
     }
 
     public int LgetMetaField(int obj, String e) {
@@ -842,15 +1027,15 @@ public class LuaState {
     }
 
 
-    public synchronized void pushGlobalTable() {
+    public void pushGlobalTable() {
         _pushGlobalTable(luaState);
     }
 
-    public synchronized int getGlobal(String global) {
+    public int getGlobal(String global) {
         return _getGlobal(luaState, global);
     }
 
-    public synchronized void setGlobal(String name) {
+    public void setGlobal(String name) {
         _setGlobal(luaState, name);
     }
 
@@ -888,9 +1073,14 @@ public class LuaState {
     }
 
     public void openLibs() {
-        _openLibs(luaState);
-        _openLuajava(luaState);
-        pushPrimitive();
+        boolean locked = lock();
+        try {
+            _openLibs(luaState);
+            _openLuajava(luaState);
+            pushPrimitive();
+        } finally {
+            unlock(locked);
+        }
     }
 
 
@@ -901,7 +1091,7 @@ public class LuaState {
      *
      * @param stateId
      */
-    private synchronized native void _openLuajava(long stateId);
+    private native void _openLuajava(long stateId);
 
     /**
      * Gets a Object from a userdata
@@ -910,7 +1100,7 @@ public class LuaState {
      * @param idx index of the lua stack
      * @return Object
      */
-    private synchronized native Object _getObjectFromUserdata(long L, int idx) throws LuaException;
+    private native Object _getObjectFromUserdata(long L, int idx) throws LuaException;
 
     /**
      * Returns whether a userdata contains a Java Object
@@ -919,7 +1109,7 @@ public class LuaState {
      * @param idx index of the lua stack
      * @return boolean
      */
-    private synchronized native boolean _isObject(long L, int idx);
+    private native boolean _isObject(long L, int idx);
 
     /**
      * Pushes a Java Object into the state stack
@@ -927,7 +1117,7 @@ public class LuaState {
      * @param L
      * @param obj
      */
-    private synchronized native void _pushJavaObject(long L, Object obj);
+    private native void _pushJavaObject(long L, Object obj);
 
     /**
      * Pushes a JavaFunction into the state stack
@@ -935,7 +1125,7 @@ public class LuaState {
      * @param L
      * @param func
      */
-    private synchronized native void _pushJavaFunction(long L, JavaFunction func) throws LuaException;
+    private native void _pushJavaFunction(long L, JavaFunction func) throws LuaException;
 
     /**
      * Returns whether a userdata contains a Java Function
@@ -944,11 +1134,16 @@ public class LuaState {
      * @param idx index of the lua stack
      * @return boolean
      */
-    private synchronized native boolean _isJavaFunction(long L, int idx);
+    private native boolean _isJavaFunction(long L, int idx);
 
     public void openLuajava() {
-        _openLuajava(luaState);
-        pushPrimitive();
+        boolean locked = lock();
+        try {
+            _openLuajava(luaState);
+            pushPrimitive();
+        } finally {
+            unlock(locked);
+        }
     }
 
     /**
@@ -1048,6 +1243,317 @@ public class LuaState {
         }
     }
 
+    /**
+     * Confines the state, with all its lua threads, to the current thread.
+     * A confined state is not locked by this thread; other threads must not
+     * use it, but post their work with {@link #post(Runnable)}, and fail
+     * with an IllegalStateException when they take its lock.
+     *
+     * @param executor runs the posted tasks on the current thread, as a
+     *                 Handler of its Looper does
+     */
+    public void confine(Executor executor) {
+        LuaState main = mMain;
+        boolean locked = lock();
+        try {
+            main.mOwnerExecutor = executor;
+            main.mOwner = Thread.currentThread();
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Returns the thread the state is confined to, or null if the state may
+     * be used from any thread holding its lock
+     */
+    public Thread getOwner() {
+        return mMain.mOwner;
+    }
+
+    /**
+     * Runs a task using the state: at once when the current thread may use
+     * the state, or later on the owner thread of a confined state.
+     */
+    public void post(Runnable task) {
+        Thread owner = mMain.mOwner;
+        if (owner != null && owner != Thread.currentThread()) {
+            mMain.mOwnerExecutor.execute(task);
+            return;
+        }
+        boolean locked = lock();
+        try {
+            task.run();
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Takes the lock of the state, shared by its lua threads, to run several
+     * calls as one step, as in
+     * <pre>
+     * boolean locked = L.lock();
+     * try {
+     *     ...
+     * } finally {
+     *     L.unlock(locked);
+     * }
+     * </pre>
+     * The owner thread of a confined state does not take the lock, and any
+     * other thread fails with an IllegalStateException.
+     *
+     * @return if the lock was taken, to be given to {@link #unlock(boolean)}
+     */
+    public boolean lock() {
+        LuaState main = mMain;
+        Thread owner = main.mOwner;
+        if (owner == null) {
+            main.mLock.lock();
+            if (main.mOwner == null)
+                return true;
+            // confined while waiting for the lock
+            main.mLock.unlock();
+            owner = main.mOwner;
+        }
+        if (owner != Thread.currentThread())
+            throw new IllegalStateException("LuaState confined to " + owner.getName()
+                    + " used from " + Thread.currentThread().getName());
+        return false;
+    }
+
+    /**
+     * Releases the lock taken by {@link #lock()}
+     */
+    public void unlock(boolean locked) {
+        if (locked)
+            mMain.mLock.unlock();
+    }
+
+    /**
+     * Records the registry reference of a LuaObject, so it is released once
+     * the object is collected. Releases are queued and done in batches by
+     * {@link #releaseRefs()}, which runs before each <code>pcall</code> and
+     * each new reference. The registry is shared by all the lua threads of
+     * a state, so their references are queued and released by the main
+     * state, which outlives them.
+     */
+    void trackRef(LuaObject obj, int ref) {
+        if (mMain != this) {
+            mMain.trackRef(obj, ref);
+            return;
+        }
+        releaseRefs();
+        synchronized (mRefLock) {
+            mLiveRefs.add(new ObjectRef(obj, ref, mRefSerial++, mRefQueue));
+        }
+    }
+
+    /**
+     * Releases the registry references of the LuaObjects collected since the
+     * last call. Meant to be called from the thread running the state, at
+     * points where no lua code runs, as when the thread is idle.
+     *
+     * @return the number of references released
+     */
+    public int releaseRefs() {
+        if (mMain != this)
+            return mMain.releaseRefs();
+        ObjectRef[] refs;
+        synchronized (mRefLock) {
+            pollRefs();
+            if (mPendingRefs.isEmpty())
+                return 0;
+            refs = mPendingRefs.toArray(new ObjectRef[mPendingRefs.size()]);
+            mPendingRefs.clear();
+        }
+        boolean locked = lock();
+        try {
+            unref(refs);
+        } finally {
+            unlock(locked);
+        }
+        return refs.length;
+    }
+
+    private void unref(ObjectRef[] refs) {
+        if (luaState == 0)
+            return;
+        for (ObjectRef ref : refs) {
+            _LunRef(luaState, LUA_REGISTRYINDEX, ref.ref);
+        }
+    }
+
+    /**
+     * Returns the number of LuaObjects of this state not collected yet
+     */
+    public int getLiveRefCount() {
+        if (mMain != this)
+            return mMain.getLiveRefCount();
+        synchronized (mRefLock) {
+            pollRefs();
+            return mLiveRefs.size();
+        }
+    }
+
+    /**
+     * Returns the number of LuaObjects of this state made so far, to find
+     * with {@link #getLiveRefCount(long)} those made from now on
+     */
+    public long getRefSerial() {
+        if (mMain != this)
+            return mMain.getRefSerial();
+        synchronized (mRefLock) {
+            return mRefSerial;
+        }
+    }
+
+    /**
+     * Returns the number of LuaObjects of this state not collected yet,
+     * made after {@link #getRefSerial()} returned <code>serial</code>
+     */
+    public int getLiveRefCount(long serial) {
+        if (mMain != this)
+            return mMain.getLiveRefCount(serial);
+        synchronized (mRefLock) {
+            pollRefs();
+            int count = 0;
+            for (ObjectRef ref : mLiveRefs) {
+                if (ref.serial >= serial)
+                    count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns the number of references of collected LuaObjects waiting to
+     * be released
+     */
+    public int getPendingRefCount() {
+        if (mMain != this)
+            return mMain.getPendingRefCount();
+        synchronized (mRefLock) {
+            pollRefs();
+            return mPendingRefs.size();
+        }
+    }
+
+    /**
+     * Turns the counting of the calls between lua and java on or off.
+     * When on, the metrics are also set as <code>luajava.metrics</code>.
+     * The lua threads of a state share the metrics of its main thread.
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (mMain != this) {
+            mMain.setMetricsEnabled(enabled);
+            return;
+        }
+        boolean locked = lock();
+        try {
+            if (enabled == (mMetrics != null))
+                return;
+            mMetrics = enabled ? new LuaMetrics(this) : null;
+            getGlobal("luajava");
+            if (isTable(-1)) {
+                if (enabled)
+                    pushJavaObject(mMetrics);
+                else
+                    pushNil();
+                setField(-2, "metrics");
+            }
+            pop(1);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Returns the metrics of the state, or null when they are off
+     */
+    public LuaMetrics getMetrics() {
+        return mMain.mMetrics;
+    }
+
+    /**
+     * Turns the identity cache of the state on or off. With the cache on, a
+     * java object pushed again while lua still holds it is given the same
+     * userdata, instead of a new one with a new global reference, so it can
+     * be used as a table key and compared with rawequal.
+     */
+    public void setIdentityCacheEnabled(boolean enabled) {
+        boolean locked = lock();
+        try {
+            _setIdentityCache(luaState, enabled);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated by lua for this state
+     */
+    public long getAllocatedBytes() {
+        boolean locked = lock();
+        try {
+            return _getAllocatedBytes(luaState);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Sets the number of bytes this state may allocate. Past it allocations
+     * fail, and lua raises a memory error after a full garbage collection
+     * did not free enough. 0 removes the limit.
+     */
+    public void setMemoryLimit(long limit) {
+        boolean locked = lock();
+        try {
+            _setMemoryLimit(luaState, limit);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    public long getMemoryLimit() {
+        boolean locked = lock();
+        try {
+            return _getMemoryLimit(luaState);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Returns the number of JNI global references held by the java object
+     * userdata of all the states
+     */
+    public static int getGlobalRefCount() {
+        return _getGlobalRefCount();
+    }
+
+    private void pollRefs() {
+        Reference<? extends LuaObject> r;
+        while ((r = mRefQueue.poll()) != null) {
+            mLiveRefs.remove(r);
+            mPendingRefs.add((ObjectRef) r);
+        }
+    }
+
+    private static final class ObjectRef extends PhantomReference<LuaObject> {
+
+        final int ref;
+
+        final long serial;
+
+        ObjectRef(LuaObject obj, int ref, long serial, ReferenceQueue<LuaObject> queue) {
+            super(obj, queue);
+            this.ref = ref;
+            this.serial = serial;
+        }
+    }
+
     /**
      * Function that returns a Java Object equivalent to the one in the given
      * position of the Lua Stack.
@@ -1055,33 +1561,310 @@ public class LuaState {
      * @param idx Index in the Lua Stack
      * @return Java object equivalent to the Lua one
      */
-    public synchronized Object toJavaObject(int idx) throws LuaException {
-        Object obj = null;
-
-        if (isBoolean(idx)) {
-            obj = toBoolean(idx);
-        } else if (type(idx) == LuaState.LUA_TSTRING) {
-            obj = toString(idx);
-        } else if (isFunction(idx)) {
-            obj = getLuaObject(idx).getFunction();
-        } else if (isTable(idx)) {
-            obj = getLuaObject(idx).getTable();
-        } else if (type(idx) == LuaState.LUA_TNUMBER) {
-            if (isInteger(idx))
-                obj = toInteger(idx);
-            else
-                obj = toNumber(idx);
-        } else if (isUserdata(idx)) {
-            if (isObject(idx)) {
-                obj = getObjectFromUserdata(idx);
-            } else {
-                obj = getLuaObject(idx);
+    public Object toJavaObject(int idx) throws LuaException {
+        boolean locked = lock();
+        try {
+            Object obj = null;
+
+            if (isBoolean(idx)) {
+                obj = toBoolean(idx);
+            } else if (type(idx) == LuaState.LUA_TSTRING) {
+                obj = toString(idx);
+            } else if (isFunction(idx)) {
+                obj = getLuaObject(idx).getFunction();
+            } else if (isTable(idx)) {
+                obj = getLuaObject(idx).getTable();
+            } else if (type(idx) == LuaState.LUA_TNUMBER) {
+                if (isInteger(idx))
+                    obj = toInteger(idx);
+                else
+                    obj = toNumber(idx);
+            } else if (isUserdata(idx)) {
+                if (isObject(idx)) {
+                    obj = getObjectFromUserdata(idx);
+                } else {
+                    obj = getLuaObject(idx);
+                }
+            } else if (isNil(idx)) {
+                obj = null;
             }
-        } else if (isNil(idx)) {
-            obj = null;
+
+            return obj;
+        } finally {
+            unlock(locked);
         }
+    }
 
-        return obj;
+    /**
+     * Number of entries converted by each native call of {@link #toJavaMap(int)}
+     */
+    public final static int BULK_PAGE_SIZE = 64;
+
+    /**
+     * Converts the values 1 to <code>values.length</code> of the table at
+     * <code>idx</code>, stopping at the length of the table, in one native call.
+     * Values are converted as by {@link #toJavaObject(int)}.
+     *
+     * @return the number of values stored
+     */
+    public int toJavaArray(int idx, Object[] values) throws LuaException {
+        boolean locked = lock();
+        try {
+            int[] refs = new int[values.length];
+            int n = _toJavaArray(luaState, idx, values, refs);
+            resolveRefs(values, refs, n);
+            return n;
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Returns the values 1 to the length of the table at <code>idx</code>
+     */
+    public Object[] toJavaArray(int idx) throws LuaException {
+        boolean locked = lock();
+        try {
+            Object[] values = new Object[rawLen(idx)];
+            toJavaArray(idx, values);
+            return values;
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Converts the entries of the table at <code>idx</code> following the key
+     * on the top of the stack, keys and values alternately, until the end of
+     * the table or until <code>entries</code> is full. As with {@link #next(int)},
+     * the key is popped at the end of the table, and is replaced by the last
+     * key converted otherwise, so the next call goes on from there.
+     * The table must not be modified between two calls.
+     *
+     * @return the number of entries stored
+     */
+    public int toJavaEntries(int idx, Object[] entries) throws LuaException {
+        boolean locked = lock();
+        try {
+            int[] refs = new int[entries.length];
+            int n = _toJavaEntries(luaState, idx, entries, refs);
+            resolveRefs(entries, refs, n * 2);
+            return n;
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Returns the entries of the table at <code>idx</code>
+     */
+    public HashMap<Object, Object> toJavaMap(int idx) throws LuaException {
+        boolean locked = lock();
+        try {
+            HashMap<Object, Object> map = new HashMap<>();
+            Object[] entries = new Object[BULK_PAGE_SIZE * 2];
+            pushValue(idx);
+            pushNil();
+            int n;
+            do {
+                n = toJavaEntries(-2, entries);
+                for (int i = 0; i < n; i++) {
+                    map.put(entries[i * 2], entries[i * 2 + 1]);
+                }
+            } while (n == BULK_PAGE_SIZE);
+            pop(1);
+            return map;
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /**
+     * Returns the values 1 to the length of the table at <code>idx</code>,
+     * or null if one of them is not an integer.
+     */
+    public long[] toLongArray(int idx) {
+        return _toLongArray(luaState, idx);
+    }
+
+    /**
+     * Returns the values 1 to the length of the table at <code>idx</code>,
+     * or null if one of them is not a number.
+     */
+    public double[] toDoubleArray(int idx) {
+        return _toDoubleArray(luaState, idx);
+    }
+
+    /**
+     * Stores the values 1 to <code>array.length</code> of the table at
+     * <code>idx</code> in a primitive array, stopping at the length of the
+     * table, in one native call. Values are read without metamethods and
+     * converted as by {@link #toInteger(int)} for integral arrays, so a
+     * float is truncated, or by {@link #toNumber(int)}. A value that is not
+     * a number is stored as 0.
+     *
+     * @return the number of values stored
+     */
+    public int toArray(int idx, byte[] array) {
+        return _getByteArray(luaState, idx, array);
+    }
+
+    public int toArray(int idx, short[] array) {
+        return _getShortArray(luaState, idx, array);
+    }
+
+    public int toArray(int idx, char[] array) {
+        return _getCharArray(luaState, idx, array);
+    }
+
+    public int toArray(int idx, int[] array) {
+        return _getIntArray(luaState, idx, array);
+    }
+
+    public int toArray(int idx, long[] array) {
+        return _getLongArray(luaState, idx, array);
+    }
+
+    public int toArray(int idx, float[] array) {
+        return _getFloatArray(luaState, idx, array);
+    }
+
+    public int toArray(int idx, double[] array) {
+        return _getDoubleArray(luaState, idx, array);
+    }
+
+    /**
+     * Stores the values of the table at <code>idx</code> in an array of
+     * numbers, as the <code>toArray</code> method of its type does.
+     *
+     * @return false if <code>array</code> is not an array of a primitive
+     * number type
+     */
+    public boolean toPrimitiveArray(int idx, Object array) {
+        if (array instanceof int[])
+            toArray(idx, (int[]) array);
+        else if (array instanceof long[])
+            toArray(idx, (long[]) array);
+        else if (array instanceof double[])
+            toArray(idx, (double[]) array);
+        else if (array instanceof float[])
+            toArray(idx, (float[]) array);
+        else if (array instanceof byte[])
+            toArray(idx, (byte[]) array);
+        else if (array instanceof short[])
+            toArray(idx, (short[]) array);
+        else if (array instanceof char[])
+            toArray(idx, (char[]) array);
+        else
+            return false;
+        return true;
+    }
+
+    /**
+     * Pushes a new table holding the elements of a primitive array, made in
+     * one native call.
+     */
+    public void pushArray(byte[] array) {
+        _pushByteArray(luaState, array);
+    }
+
+    public void pushArray(short[] array) {
+        _pushShortArray(luaState, array);
+    }
+
+    public void pushArray(char[] array) {
+        _pushCharArray(luaState, array);
+    }
+
+    public void pushArray(int[] array) {
+        _pushIntArray(luaState, array);
+    }
+
+    public void pushArray(long[] array) {
+        _pushLongArray(luaState, array);
+    }
+
+    public void pushArray(float[] array) {
+        _pushFloatArray(luaState, array);
+    }
+
+    public void pushArray(double[] array) {
+        _pushDoubleArray(luaState, array);
+    }
+
+    /**
+     * Pushes a new table holding the elements of an array of numbers.
+     *
+     * @return false, pushing nothing, if <code>array</code> is not an array
+     * of a primitive number type
+     */
+    public boolean pushPrimitiveArray(Object array) {
+        if (array instanceof int[])
+            pushArray((int[]) array);
+        else if (array instanceof long[])
+            pushArray((long[]) array);
+        else if (array instanceof double[])
+            pushArray((double[]) array);
+        else if (array instanceof float[])
+            pushArray((float[]) array);
+        else if (array instanceof byte[])
+            pushArray((byte[]) array);
+        else if (array instanceof short[])
+            pushArray((short[]) array);
+        else if (array instanceof char[])
+            pushArray((char[]) array);
+        else
+            return false;
+        return true;
+    }
+
+    /**
+     * Puts the values of the table at <code>idx</code> in a buffer as bytes,
+     * from its position and until its limit or the length of the table.
+     * The position of the buffer is moved past the bytes written.
+     * Direct buffers are written in place.
+     *
+     * @return the number of bytes written
+     */
+    public int toByteBuffer(int idx, ByteBuffer buf) {
+        int n;
+        if (buf.isDirect()) {
+            n = _toByteBuffer(luaState, idx, buf, buf.position(), buf.remaining());
+        } else {
+            byte[] bytes = new byte[buf.remaining()];
+            n = toArray(idx, bytes);
+            buf.duplicate().put(bytes, 0, n);
+        }
+        buf.position(buf.position() + n);
+        return n;
+    }
+
+    /**
+     * Pushes a new table holding the bytes of a buffer from its position to
+     * its limit. The position of the buffer is not changed.
+     */
+    public void pushByteBuffer(ByteBuffer buf) {
+        if (buf.isDirect()) {
+            _pushByteBuffer(luaState, buf, buf.position(), buf.remaining());
+        } else {
+            byte[] bytes = new byte[buf.remaining()];
+            buf.duplicate().get(bytes);
+            pushArray(bytes);
+        }
+    }
+
+    /**
+     * Makes the objects of the values referenced by the bulk conversions
+     */
+    private void resolveRefs(Object[] values, int[] refs, int n) throws LuaException {
+        for (int i = 0; i < n; i++) {
+            if (refs[i] == 0)
+                continue;
+            rawGetI(LUA_REGISTRYINDEX, refs[i]);
+            LunRef(LUA_REGISTRYINDEX, refs[i]);
+            values[i] = toJavaObject(-1);
+            pop(1);
+        }
     }
 
     /**
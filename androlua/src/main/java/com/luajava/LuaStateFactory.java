@@ -29,13 +29,16 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class is responsible for instantiating new LuaStates.
- * When a new LuaState is instantiated it is put into a List
- * and an index is returned. This index is registred in Lua
- * and it is used to find the right LuaState when lua calls
- * a Java Function.
+ * When a new LuaState is instantiated it is put into a Map
+ * keyed by its pointer. Calls from lua do not go through this map:
+ * the native side keeps a reference to the LuaState of each state,
+ * and only looks up the LuaState of a lua thread the first time.
+ * The map is never locked, so states on different threads do not
+ * wait for each other.
  * 
  * @author Thiago Ponte
  */
@@ -44,7 +47,7 @@ public final class LuaStateFactory
 	/**
 	 * Array with all luaState's instances
 	 */
-	private static final Map<Long,LuaState> states = new HashMap<Long,LuaState>();
+	private static final ConcurrentHashMap<Long,LuaState> states = new ConcurrentHashMap<Long,LuaState>();
 	
 	/**
 	 * Non-public constructor. 
@@ -56,7 +59,7 @@ public final class LuaStateFactory
 	 * Method that creates a new instance of LuaState
 	 * @return LuaState
 	 */
-	public synchronized static LuaState newLuaState()
+	public static LuaState newLuaState()
 	{
 		LuaState L = new LuaState();
 		
@@ -70,13 +73,17 @@ public final class LuaStateFactory
 	 * @param index
 	 * @return LuaState
 	 */
-	public synchronized static LuaState getExistingState(long index)
+	public static LuaState getExistingState(long index)
 	{
 		LuaState l= states.get(index);
 		if(l==null)
 		{
-			l=new LuaState(index);
-			states.put(index,l);
+			// when two threads wrap the same lua thread, the first
+			// inserted is kept by both
+			LuaState state=new LuaState(index, false);
+			l=states.putIfAbsent(index, state);
+			if(l==null)
+				l=state;
 		}
 		return l;
 	}
@@ -87,7 +94,7 @@ public final class LuaStateFactory
 	 * @param L
 	 * @return int
 	 */
-	public synchronized static long insertLuaState(LuaState L)
+	public static long insertLuaState(LuaState L)
 	{
 		states.put(L.getPointer(), L);
 		
@@ -98,9 +105,24 @@ public final class LuaStateFactory
 	 * removes the luaState from the states list
 	 * @param idx
 	 */
-	public synchronized static void removeLuaState(long idx)
+	public static void removeLuaState(long idx)
 	{
-		states.put(idx, null);
+		states.remove(idx);
+	}
+
+	/**
+	 * Removes the lua threads of a main state being closed. Their
+	 * pointers may be reused by a later state, which must not get
+	 * wrappers of this one.
+	 * @param main
+	 */
+	static void removeThreads(LuaState main)
+	{
+		for (Iterator<LuaState> it = states.values().iterator(); it.hasNext();)
+		{
+			if (it.next().getMainState() == main)
+				it.remove();
+		}
 	}
 	
 
@@ -1,5 +1,7 @@
 package com.luajava;
 
+import java.util.Arrays;
+
 /**
  * Created by nirenr on 2018/12/17.
  */
@@ -32,7 +34,19 @@ public class LuaString implements CharSequence {
 
     @Override
     public CharSequence subSequence(int start, int end) {
-        return new String(mByte,start,end);
+        return new LuaString(Arrays.copyOfRange(mByte,start,end));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        return obj instanceof LuaString && Arrays.equals(mByte, ((LuaString) obj).mByte);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mByte);
     }
 
     @Override
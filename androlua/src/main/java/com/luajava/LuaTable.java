@@ -44,18 +44,10 @@ public class LuaTable <K, V>extends LuaObject implements Map <K,V>{
 
 	@Override
 	public Set<Entry<K,V>> entrySet() {
-		// TODO: Implement this method
 		HashSet<Entry<K,V>> sets=new HashSet<Entry<K,V>>();
-		push();
-		L.pushNil();
-		while (L.next(-2) != 0) {
-			try {
-				sets.add(new LuaEntry<K,V>((K)L.toJavaObject(-2), (V)L.toJavaObject(-1)));
-			}
-			catch (LuaException e) {}
-			L.pop(1);
-		}
-		L.pop(1);
+		Iterator<Entry<K,V>> it=entryIterator(LuaState.BULK_PAGE_SIZE);
+		while (it.hasNext())
+			sets.add(it.next());
 		return sets;
 	}
 
@@ -91,18 +83,10 @@ public class LuaTable <K, V>extends LuaObject implements Map <K,V>{
 
 	@Override
 	public Set<K> keySet() {
-		// TODO: Implement this method
 		HashSet<K> sets=new HashSet<K>();
-		push();
-		L.pushNil();
-		while (L.next(-2) != 0) {
-			try {
-				sets.add((K)L.toJavaObject(-2));
-			}
-			catch (LuaException e) {}
-			L.pop(1);
-		}
-		L.pop(1);
+		Iterator<Entry<K,V>> it=entryIterator(LuaState.BULK_PAGE_SIZE);
+		while (it.hasNext())
+			sets.add(it.next().getKey());
 		return sets;
 	}
 
@@ -179,20 +163,88 @@ public class LuaTable <K, V>extends LuaObject implements Map <K,V>{
 	@Override
 	public Collection<V> values() {
 		ArrayList<V> sets=new ArrayList<>();
-		push();
-		L.pushNil();
-		while (L.next(-2) != 0) {
+		Iterator<Entry<K,V>> it=entryIterator(LuaState.BULK_PAGE_SIZE);
+		while (it.hasNext())
+			sets.add(it.next().getValue());
+		return sets;
+	}
+
+	/**
+	 * Returns the entries of the table, converted in C a page at a time
+	 */
+	public HashMap<K,V> toJavaMap() throws LuaException {
+		boolean locked = L.lock();
+		try {
+			push();
 			try {
-				sets.add((V)L.toJavaObject(-1));
+				return (HashMap<K,V>) L.toJavaMap(-1);
+			}
+			finally {
+				L.pop(1);
+			}
+		} finally {
+			L.unlock(locked);
+		}
+	}
+
+	/**
+	 * Returns the values 1 to the length of the table, converted in one native call
+	 */
+	public Object[] toJavaArray() throws LuaException {
+		boolean locked = L.lock();
+		try {
+			push();
+			try {
+				return L.toJavaArray(-1);
+			}
+			finally {
+				L.pop(1);
 			}
-			catch (LuaException e) {}
+		} finally {
+			L.unlock(locked);
+		}
+	}
+
+	/**
+	 * Returns the values 1 to the length of the table, or null if one of them
+	 * is not an integer
+	 */
+	public long[] toLongArray() {
+		boolean locked = L.lock();
+		try {
+			push();
+			long[] arr=L.toLongArray(-1);
 			L.pop(1);
+			return arr;
+		} finally {
+			L.unlock(locked);
 		}
-		L.pop(1);
-		return sets;
 	}
 
+	/**
+	 * Returns the values 1 to the length of the table, or null if one of them
+	 * is not a number
+	 */
+	public double[] toDoubleArray() {
+		boolean locked = L.lock();
+		try {
+			push();
+			double[] arr=L.toDoubleArray(-1);
+			L.pop(1);
+			return arr;
+		} finally {
+			L.unlock(locked);
+		}
+	}
 
+	/**
+	 * Returns an iterator over the entries of the table, converting
+	 * <code>pageSize</code> entries at a time in one native call.
+	 * The table must not be modified while iterating.
+	 */
+	public Iterator<Entry<K,V>> entryIterator(int pageSize) {
+		return new PageIterator(pageSize);
+	}
 
 	protected LuaTable(LuaState L, String globalName) {
 		super(L, globalName);
@@ -208,6 +260,76 @@ public class LuaTable <K, V>extends LuaObject implements Map <K,V>{
 		registerValue(-1);
 	}
 
+	private class PageIterator implements Iterator<Entry<K,V>> {
+
+		private final Object[] mEntries;
+
+		private int mCount;
+
+		private int mPos;
+
+		private LuaObject mKey;
+
+		private boolean mEnd;
+
+		PageIterator(int pageSize) {
+			mEntries = new Object[Math.max(pageSize, 1) * 2];
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (mPos < mCount)
+				return true;
+			if (mEnd)
+				return false;
+			nextPage();
+			return mPos < mCount;
+		}
+
+		@Override
+		public Entry<K,V> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Entry<K,V> entry=new LuaEntry<K,V>((K)mEntries[mPos * 2], (V)mEntries[mPos * 2 + 1]);
+			mEntries[mPos * 2] = null;
+			mEntries[mPos * 2 + 1] = null;
+			mPos++;
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void nextPage() {
+			boolean locked = L.lock();
+			try {
+				int top=L.getTop();
+				push();
+				if (mKey == null)
+					L.pushNil();
+				else
+					mKey.push();
+				mKey = null;
+				mPos = 0;
+				try {
+					mCount = L.toJavaEntries(-2, mEntries);
+				}
+				catch (LuaException e) {
+					mCount = 0;
+				}
+				if (mCount == mEntries.length / 2)
+					mKey = L.getLuaObject(-1);
+				else
+					mEnd = true;
+				L.setTop(top);
+			} finally {
+				L.unlock(locked);
+			}
+		}
+	}
+
 	public class LuaEntry <K,V> implements Entry <K,V>{
 
 		private K mKey;
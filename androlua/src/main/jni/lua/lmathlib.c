@@ -10,6 +10,7 @@
 #include "lprefix.h"
 
 
+#include <float.h>
 #include <stdlib.h>
 #include <math.h>
 #include <time.h>
@@ -729,6 +729,13 @@
 */
 #define LUA_EXTRASPACE		(sizeof(void *))
 
+/*
+** luajava keeps the java LuaState of a state in its extra space. A new
+** thread must not inherit it from the main thread, as the thread has a
+** LuaState of its own.
+*/
+#define luai_userstatethread(L,L1)	(*(void **)lua_getextraspace(L1) = NULL)
+
 
 /*
 @@ LUA_IDSIZE gives the maximum size for the description of the source
@@ -46,11 +46,15 @@
 #define LUATOSTRINGMETAMETHODTAG "__tostring"
 #define LUALENMETAMETHODTAG "__len"
 
-#include <android/log.h>
 #include <memory.h>
 
+#ifdef __ANDROID__
+#include <android/log.h>
 #define LOG_TAG "lua"
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+#else
+#define LOGD(...) fprintf(stderr, __VA_ARGS__)
+#endif
 
 
 /* Constant that is used to index the JNI Environment */
@@ -70,6 +74,8 @@
 #define LUAJAVAOBJECTMETA "JavaObject"
 
 #define LUAJAVAOBJECT "__Object"
+/* Registry table of the java LuaState of each lua thread */
+#define LUAJAVATHREADSTATES "__LuaJavaThreadStates"
 
 
 static jclass throwable_class = NULL;
@@ -80,6 +86,8 @@ static jclass java_function_class = NULL;
 static jmethodID java_function_method = NULL;
 
 static jclass luajava_api_class = NULL;
+static jclass luajava_state_factory_class = NULL;
+static jmethodID get_existing_state_method = NULL;
 static jclass java_lang_class = NULL;
 static jclass java_string_class = NULL;
 
@@ -91,6 +99,7 @@ static jmethodID new_multiarray_method = NULL;
 static jmethodID get_array_method = NULL;
 static jmethodID set_array_method = NULL;
 static jmethodID bind_class_method = NULL;
+static jmethodID find_class_method = NULL;
 static jmethodID create_proxy_method = NULL;
 static jmethodID create_array_method = NULL;
 static jmethodID java_create_method = NULL;
@@ -107,6 +116,29 @@ static jmethodID string_getbytes_method = NULL;
 static jmethodID class_getname_method = NULL;
 static jmethodID object_equals_method = NULL;
 static jmethodID java_gc_method = NULL;
+static jclass java_boolean_class = NULL;
+static jclass java_long_class = NULL;
+static jclass java_double_class = NULL;
+static jmethodID boolean_valueof_method = NULL;
+static jmethodID long_valueof_method = NULL;
+static jmethodID double_valueof_method = NULL;
+static jclass java_system_class = NULL;
+static jmethodID identity_hashcode_method = NULL;
+
+/* Registry key of the table of userdata by identity hash of their object */
+static char identity_cache_key;
+
+/* Number of global references held by java object userdata */
+static int global_ref_count = 0;
+
+/* Registry key of the java strings of member names, by lua string */
+static char intern_key;
+
+/* Names longer than this are not short strings for lua, and not interned */
+#define INTERN_MAX_LENGTH 40
+
+/* Number of names interned by a state, bounding its global references */
+#define INTERN_MAX_COUNT 2048
 
 static int objectIndex(lua_State *L);
 
@@ -116,6 +148,8 @@ static int objectNewIndex(lua_State *L);
 
 static int javaBindClass(lua_State *L);
 
+static int javaFindClass(lua_State *L);
+
 static int createProxy(lua_State *L);
 
 static int newArray(lua_State *L);
@@ -146,7 +180,7 @@ int pushJavaObject(lua_State *L, jobject javaObject);
 
 JNIEnv *checkEnv(lua_State *L);
 
-jlong checkIndex(lua_State *L);
+jobject checkState(lua_State *L);
 
 jobject *checkJavaObject(lua_State *L, int idx);
 
@@ -172,8 +206,43 @@ JNIEnv *checkEnv(lua_State *L) {
     return javaEnv;
 }
 
-jlong checkIndex(lua_State *L) {
-    return (jlong) L;
+/*
+ * Returns the java LuaState of L.
+ * The main thread keeps a global reference to it in its extra space, so
+ * upcalls get their LuaState without going through LuaStateFactory. The
+ * extra space of other threads is cleared when they are made (see
+ * luai_userstatethread in luaconf.h); they look their LuaState up once
+ * and keep it in a weak table of the registry.
+ */
+jobject checkState(lua_State *L) {
+    jobject state = *(jobject *) lua_getextraspace(L);
+    JNIEnv *javaEnv;
+
+    if (state != NULL)
+        return state;
+
+    if (!luaL_getsubtable(L, LUA_REGISTRYINDEX, LUAJAVATHREADSTATES)) {
+        lua_createtable(L, 0, 1);
+        lua_pushliteral(L, "k");
+        lua_setfield(L, -2, "__mode");
+        lua_setmetatable(L, -2);
+    }
+    lua_pushthread(L);
+    if (lua_rawget(L, -2) == LUA_TNIL) {
+        lua_pop(L, 1);
+        javaEnv = checkEnv(L);
+        state = (*javaEnv)->CallStaticObjectMethod(javaEnv, luajava_state_factory_class,
+                                                   get_existing_state_method, (jlong) L);
+        checkError(javaEnv, L);
+        pushJavaObject(L, state);
+        (*javaEnv)->DeleteLocalRef(javaEnv, state);
+        lua_pushthread(L);
+        lua_pushvalue(L, -2);
+        lua_rawset(L, -4);
+    }
+    state = *(jobject *) lua_touserdata(L, -1);
+    lua_pop(L, 2);
+    return state;
 }
 
 jobject *checkJavaObject(lua_State *L, int idx) {
@@ -239,6 +308,21 @@ static void init(JNIEnv *javaEnv, lua_State *L) {
         (*javaEnv)->DeleteLocalRef(javaEnv, tempClass);
     }
 
+    if (luajava_state_factory_class == NULL) {
+        tempClass = (*javaEnv)->FindClass(javaEnv, "com/luajava/LuaStateFactory");
+
+        if (tempClass == NULL) {
+            fprintf(stderr, "Could not find LuaStateFactory class\n");
+            exit(1);
+        }
+
+        if ((luajava_state_factory_class = (*javaEnv)->NewGlobalRef(javaEnv, tempClass)) == NULL) {
+            fprintf(stderr, "Could not bind to LuaStateFactory class\n");
+            exit(1);
+        }
+        (*javaEnv)->DeleteLocalRef(javaEnv, tempClass);
+    }
+
     if (java_function_class == NULL) {
         tempClass = (*javaEnv)->FindClass(javaEnv, "com/luajava/JavaFunction");
 
@@ -323,74 +407,142 @@ static void init(JNIEnv *javaEnv, lua_State *L) {
         (*javaEnv)->DeleteLocalRef(javaEnv, tempClass);
     }
 
+    if (java_boolean_class == NULL) {
+        tempClass = (*javaEnv)->FindClass(javaEnv, "java/lang/Boolean");
+
+        if (tempClass == NULL) {
+            fprintf(stderr, "Could not find Boolean class\n");
+            exit(1);
+        }
+
+        if ((java_boolean_class = (*javaEnv)->NewGlobalRef(javaEnv, tempClass)) == NULL) {
+            fprintf(stderr, "Could not bind to Boolean class\n");
+            exit(1);
+        }
+        (*javaEnv)->DeleteLocalRef(javaEnv, tempClass);
+    }
+
+    if (java_long_class == NULL) {
+        tempClass = (*javaEnv)->FindClass(javaEnv, "java/lang/Long");
+
+        if (tempClass == NULL) {
+            fprintf(stderr, "Could not find Long class\n");
+            exit(1);
+        }
+
+        if ((java_long_class = (*javaEnv)->NewGlobalRef(javaEnv, tempClass)) == NULL) {
+            fprintf(stderr, "Could not bind to Long class\n");
+            exit(1);
+        }
+        (*javaEnv)->DeleteLocalRef(javaEnv, tempClass);
+    }
+
+    if (java_double_class == NULL) {
+        tempClass = (*javaEnv)->FindClass(javaEnv, "java/lang/Double");
+
+        if (tempClass == NULL) {
+            fprintf(stderr, "Could not find Double class\n");
+            exit(1);
+        }
+
+        if ((java_double_class = (*javaEnv)->NewGlobalRef(javaEnv, tempClass)) == NULL) {
+            fprintf(stderr, "Could not bind to Double class\n");
+            exit(1);
+        }
+        (*javaEnv)->DeleteLocalRef(javaEnv, tempClass);
+    }
+
+    if (java_system_class == NULL) {
+        tempClass = (*javaEnv)->FindClass(javaEnv, "java/lang/System");
+
+        if (tempClass == NULL) {
+            fprintf(stderr, "Could not find System class\n");
+            exit(1);
+        }
+
+        if ((java_system_class = (*javaEnv)->NewGlobalRef(javaEnv, tempClass)) == NULL) {
+            fprintf(stderr, "Could not bind to System class\n");
+            exit(1);
+        }
+        (*javaEnv)->DeleteLocalRef(javaEnv, tempClass);
+    }
+
     /* Gets method */
+    if (get_existing_state_method == NULL)
+        get_existing_state_method = (*javaEnv)->GetStaticMethodID(
+                javaEnv, luajava_state_factory_class, "getExistingState",
+                "(J)Lcom/luajava/LuaState;");
     if (call_method == NULL)
         call_method = (*javaEnv)->GetStaticMethodID(
                 javaEnv, luajava_api_class, "callMethod",
-                "(JLjava/lang/Object;Ljava/lang/String;)I");
+                "(Lcom/luajava/LuaState;Ljava/lang/Object;Ljava/lang/String;)I");
     if (object_index_method == NULL)
         object_index_method = (*javaEnv)->GetStaticMethodID(
                 javaEnv, luajava_api_class, "objectIndex",
-                "(JLjava/lang/Object;Ljava/lang/String;I)I");
+                "(Lcom/luajava/LuaState;Ljava/lang/Object;Ljava/lang/String;I)I");
     if (object_newindex_method == NULL)
         object_newindex_method = (*javaEnv)->GetStaticMethodID(
                 javaEnv, luajava_api_class, "objectNewIndex",
-                "(JLjava/lang/Object;Ljava/lang/String;I)I");
+                "(Lcom/luajava/LuaState;Ljava/lang/Object;Ljava/lang/String;I)I");
     if (new_array_method == NULL)
         new_array_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "newArray", "(JLjava/lang/Class;I)I");
+                javaEnv, luajava_api_class, "newArray", "(Lcom/luajava/LuaState;Ljava/lang/Class;I)I");
     if (new_multiarray_method == NULL)
         new_multiarray_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "newArray", "(JLjava/lang/Class;)I");
+                javaEnv, luajava_api_class, "newArray", "(Lcom/luajava/LuaState;Ljava/lang/Class;)I");
     if (get_array_method == NULL)
         get_array_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "getArrayValue", "(JLjava/lang/Object;I)I");
+                javaEnv, luajava_api_class, "getArrayValue", "(Lcom/luajava/LuaState;Ljava/lang/Object;I)I");
     if (set_array_method == NULL)
         set_array_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "setArrayValue", "(JLjava/lang/Object;I)I");
+                javaEnv, luajava_api_class, "setArrayValue", "(Lcom/luajava/LuaState;Ljava/lang/Object;I)I");
     if (bind_class_method == NULL)
         bind_class_method = (*javaEnv)->GetStaticMethodID(
                 javaEnv, luajava_api_class, "javaBindClass",
                 "(Ljava/lang/String;)Ljava/lang/Class;");
+    if (find_class_method == NULL)
+        find_class_method = (*javaEnv)->GetStaticMethodID(
+                javaEnv, luajava_api_class, "javaFindClass",
+                "(Lcom/luajava/LuaState;Ljava/lang/String;)Ljava/lang/Class;");
     if (create_proxy_method == NULL)
         create_proxy_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "createProxy", "(JLjava/lang/String;)I");
+                javaEnv, luajava_api_class, "createProxy", "(Lcom/luajava/LuaState;Ljava/lang/String;)I");
     if (create_array_method == NULL)
         create_array_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "createArray", "(JLjava/lang/String;)I");
+                javaEnv, luajava_api_class, "createArray", "(Lcom/luajava/LuaState;Ljava/lang/String;)I");
     if (java_create_method == NULL)
         java_create_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "javaCreate", "(JLjava/lang/Class;)I");
+                javaEnv, luajava_api_class, "javaCreate", "(Lcom/luajava/LuaState;Ljava/lang/Class;)I");
     if (java_new_method == NULL)
         java_new_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "javaNew", "(JLjava/lang/Class;)I");
+                javaEnv, luajava_api_class, "javaNew", "(Lcom/luajava/LuaState;Ljava/lang/Class;)I");
     if (object_call_method == NULL)
         object_call_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "objectCall", "(JLjava/lang/Object;)I");
+                javaEnv, luajava_api_class, "objectCall", "(Lcom/luajava/LuaState;Ljava/lang/Object;)I");
     if (java_newinstance_method == NULL)
         java_newinstance_method = (*javaEnv)->GetStaticMethodID(
                 javaEnv, luajava_api_class, "javaNewInstance",
-                "(JLjava/lang/String;)I");
+                "(Lcom/luajava/LuaState;Ljava/lang/String;)I");
     if (java_override_method == NULL)
         java_override_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "javaOverride", "(JLjava/lang/Class;)I");
+                javaEnv, luajava_api_class, "javaOverride", "(Lcom/luajava/LuaState;Ljava/lang/Class;)I");
     if (as_table_method == NULL)
         as_table_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "asTable", "(JLjava/lang/Object;)I");
+                javaEnv, luajava_api_class, "asTable", "(Lcom/luajava/LuaState;Ljava/lang/Object;)I");
     if (to_string_method == NULL)
         to_string_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "javaToString", "(JLjava/lang/Object;)I");
+                javaEnv, luajava_api_class, "javaToString", "(Lcom/luajava/LuaState;Ljava/lang/Object;)I");
     if (get_type_method == NULL)
         get_type_method = (*javaEnv)->GetStaticMethodID(
-                javaEnv, luajava_api_class, "javaGetType", "(JLjava/lang/Object;)I");
+                javaEnv, luajava_api_class, "javaGetType", "(Lcom/luajava/LuaState;Ljava/lang/Object;)I");
     if (object_length_method == NULL)
         object_length_method = (*javaEnv)->GetStaticMethodID(
                 javaEnv, luajava_api_class, "javaObjectLength",
-                "(JLjava/lang/Object;)I");
+                "(Lcom/luajava/LuaState;Ljava/lang/Object;)I");
     if (object_equals_method == NULL)
         object_equals_method = (*javaEnv)->GetStaticMethodID(
                 javaEnv, luajava_api_class, "javaEquals",
-                "(JLjava/lang/Object;Ljava/lang/Object;)I");
+                "(Lcom/luajava/LuaState;Ljava/lang/Object;Ljava/lang/Object;)I");
     if (java_gc_method == NULL)
         java_gc_method = (*javaEnv)->GetStaticMethodID(
                 javaEnv, luajava_api_class, "javaGc", "(Ljava/lang/Object;)V");
@@ -404,6 +556,18 @@ static void init(JNIEnv *javaEnv, lua_State *L) {
     if (class_getname_method == NULL)
         class_getname_method = (*javaEnv)->GetMethodID(
                 javaEnv, java_lang_class, "getName", "()Ljava/lang/String;");
+    if (boolean_valueof_method == NULL)
+        boolean_valueof_method = (*javaEnv)->GetStaticMethodID(
+                javaEnv, java_boolean_class, "valueOf", "(Z)Ljava/lang/Boolean;");
+    if (identity_hashcode_method == NULL)
+        identity_hashcode_method = (*javaEnv)->GetStaticMethodID(
+                javaEnv, java_system_class, "identityHashCode", "(Ljava/lang/Object;)I");
+    if (long_valueof_method == NULL)
+        long_valueof_method = (*javaEnv)->GetStaticMethodID(
+                javaEnv, java_long_class, "valueOf", "(J)Ljava/lang/Long;");
+    if (double_valueof_method == NULL)
+        double_valueof_method = (*javaEnv)->GetStaticMethodID(
+                javaEnv, java_double_class, "valueOf", "(D)Ljava/lang/Double;");
     checkError(javaEnv, L);
 }
 
@@ -451,22 +615,94 @@ static inline const char *getObjectName(lua_State *L, JNIEnv *env,
     return name;
 }
 
+/***************************************************************************
+*
+*  Function: internString
+*  ****/
+
+/* Returns the java string of the lua string at idx. Short strings, as
+   member names, are kept per state as global references and given again,
+   in which case *interned is set and the string must not be deleted. */
+static jstring internString(lua_State *L, JNIEnv *javaEnv, int idx, int *interned) {
+    size_t len;
+    const char *str = lua_tolstring(L, idx, &len);
+    jstring javaStr;
+    jobject globalRef;
+    lua_Integer count;
+
+    *interned = 0;
+    if (len > INTERN_MAX_LENGTH)
+        return (*javaEnv)->NewStringUTF(javaEnv, str);
+
+    idx = lua_absindex(L, idx);
+    if (lua_rawgetp(L, LUA_REGISTRYINDEX, &intern_key) != LUA_TTABLE) {
+        lua_pop(L, 1);
+        lua_newtable(L);
+        lua_pushvalue(L, -1);
+        lua_rawsetp(L, LUA_REGISTRYINDEX, &intern_key);
+    }
+    lua_pushvalue(L, idx);
+    if (lua_rawget(L, -2) == LUA_TLIGHTUSERDATA) {
+        javaStr = (jstring) lua_touserdata(L, -1);
+        lua_pop(L, 2);
+        *interned = 1;
+        return javaStr;
+    }
+    lua_pop(L, 1);
+
+    javaStr = (*javaEnv)->NewStringUTF(javaEnv, str);
+    lua_rawgeti(L, -1, 0);
+    count = lua_tointeger(L, -1);
+    lua_pop(L, 1);
+    if (javaStr != NULL && count < INTERN_MAX_COUNT) {
+        globalRef = (*javaEnv)->NewGlobalRef(javaEnv, javaStr);
+        if (globalRef != NULL) {
+            (*javaEnv)->DeleteLocalRef(javaEnv, javaStr);
+            javaStr = (jstring) globalRef;
+            lua_pushvalue(L, idx);
+            lua_pushlightuserdata(L, globalRef);
+            lua_rawset(L, -3);
+            lua_pushinteger(L, count + 1);
+            lua_rawseti(L, -2, 0);
+            *interned = 1;
+        }
+    }
+    lua_pop(L, 1);
+    return javaStr;
+}
+
+/* Deletes the global references of the interned strings of a state */
+static void releaseInternedStrings(lua_State *L, JNIEnv *javaEnv) {
+    if (lua_rawgetp(L, LUA_REGISTRYINDEX, &intern_key) == LUA_TTABLE) {
+        lua_pushnil(L);
+        while (lua_next(L, -2) != 0) {
+            if (lua_islightuserdata(L, -1))
+                (*javaEnv)->DeleteGlobalRef(javaEnv, (jobject) lua_touserdata(L, -1));
+            lua_pop(L, 1);
+        }
+    }
+    lua_pop(L, 1);
+    lua_pushnil(L);
+    lua_rawsetp(L, LUA_REGISTRYINDEX, &intern_key);
+}
+
 /***************************************************************************
 *
 *  Function: objectIndex
 *  ****/
 
 int objectIndex(lua_State *L) {
-    jlong stateIndex;
+    jobject luaState;
     const char *key;
     const char *tag;
     jint ret = 0;
     jobject *obj;
     jstring str;
+    int interned;
     JNIEnv *javaEnv;
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* Gets the JNI Environment */
     javaEnv = checkEnv(L);
@@ -484,7 +720,7 @@ int objectIndex(lua_State *L) {
             method = get_array_method;
 
         ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
-                                              stateIndex, *obj, (jint) akey);
+                                              luaState, *obj, (jint) akey);
         checkError(javaEnv, L);
         return 1;
     } else if (lua_type(L, 2) == LUA_TSTRING) {
@@ -532,11 +768,12 @@ int objectIndex(lua_State *L) {
         //lua_pushstring(L, tag);
 
         if (type != 2) {
-            str = (*javaEnv)->NewStringUTF(javaEnv, key);
+            str = internString(L, javaEnv, 2, &interned);
             ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class,
                                                   object_index_method,
-                                                  stateIndex, *obj, str, type);
-            (*javaEnv)->DeleteLocalRef(javaEnv, str);
+                                                  luaState, *obj, str, type);
+            if (!interned)
+                (*javaEnv)->DeleteLocalRef(javaEnv, str);
             checkError(javaEnv, L);
         }
 
@@ -548,7 +785,8 @@ int objectIndex(lua_State *L) {
         }
 
         if (ret == 2 || type == 2) {
-            //lua_pushinteger(L, (int)obj);
+            /* upvalues: method name, object */
+            lua_pushvalue(L, 2);
             lua_pushvalue(L, 1);
             lua_pushcclosure(L, &callMethod, 2);
             lua_pushvalue(L, 2);
@@ -575,15 +813,16 @@ int objectIndex(lua_State *L) {
 *  ****/
 
 int callMethod(lua_State *L) {
-    jlong stateIndex;
+    jobject luaState;
     jobject *obj;
     const char *methodName;
     jint ret;
     jstring str;
+    int interned;
     JNIEnv *javaEnv;
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* Gets the JNI Environment */
     javaEnv = checkEnv(L);
@@ -601,11 +840,12 @@ int callMethod(lua_State *L) {
         luaL_error(L, "can not call the function %s", methodName);
     }
 
-    str = (*javaEnv)->NewStringUTF(javaEnv, methodName);
+    str = internString(L, javaEnv, lua_upvalueindex(1), &interned);
 
     ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, call_method,
-                                          stateIndex, *obj, str);
-    (*javaEnv)->DeleteLocalRef(javaEnv, str);
+                                          luaState, *obj, str);
+    if (!interned)
+        (*javaEnv)->DeleteLocalRef(javaEnv, str);
     checkError(javaEnv, L);
 
     /* if no ret, return self */
@@ -627,17 +867,18 @@ int callMethod(lua_State *L) {
 *  ****/
 
 int objectNewIndex(lua_State *L) {
-    jlong stateIndex;
+    jobject luaState;
     jobject *obj;
     const char *fieldName;
     const char *tag;
     lua_Number key;
     jstring str;
+    int interned;
     jint ret;
     JNIEnv *javaEnv;
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* Gets the object reference */
     obj = checkJavaObject(L, 1);
@@ -650,7 +891,7 @@ int objectNewIndex(lua_State *L) {
     if (lua_type(L, 2) == LUA_TNUMBER) {
         key = lua_tonumber(L, 2);
         ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class,
-                                              set_array_method, stateIndex,
+                                              set_array_method, luaState,
                                               *obj, (jint) key);
         checkError(javaEnv, L);
     } else if (lua_type(L, 2) == LUA_TSTRING) {
@@ -689,11 +930,13 @@ int objectNewIndex(lua_State *L) {
         lua_pushvalue(L, 3);
         lua_remove(L, 3);
 
-        str = (*javaEnv)->NewStringUTF(javaEnv, fieldName);
+        str = internString(L, javaEnv, 2, &interned);
 
         ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class,
                                               object_newindex_method,
-                                              stateIndex, *obj, str, type);
+                                              luaState, *obj, str, type);
+        if (!interned)
+            (*javaEnv)->DeleteLocalRef(javaEnv, str);
         if (ctype == LUA_TNIL) {
             lua_pushvalue(L, 5);
             //lua_pushstring(L, tag);
@@ -702,7 +945,6 @@ int objectNewIndex(lua_State *L) {
         }
         if (ret == 0)
             luaL_error(L, "%s is not a field", fieldName);
-        (*javaEnv)->DeleteLocalRef(javaEnv, str);
         checkError(javaEnv, L);
     } else {
         lua_pushstring(L, "Invalid object index. Must be integer or string.");
@@ -738,7 +980,7 @@ int javaOverride(lua_State *L) {
     else if (lua_type(L, 2) == LUA_TTABLE) {
         ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class,
                                               java_override_method,
-                /* Gets the luaState index */ checkIndex(L),
+                /* Gets the java LuaState */ checkState(L),
                                               *classInstance);
         checkError(javaEnv, L);
     } else {
@@ -772,7 +1014,10 @@ int gc(lua_State *L) {
                                      java_gc_method,
                                      *pObj);
     checkError(javaEnv, L);*/
-    (*javaEnv)->DeleteGlobalRef(javaEnv, *pObj);
+    if (*pObj != NULL) {
+        (*javaEnv)->DeleteGlobalRef(javaEnv, *pObj);
+        __atomic_sub_fetch(&global_ref_count, 1, __ATOMIC_RELAXED);
+    }
     *pObj = NULL;
     return 0;
 }
@@ -817,13 +1062,52 @@ int javaBindClass(lua_State *L) {
     return 1;
 }
 
+/***************************************************************************
+*
+*  Function: javaFindClass
+*  ****/
+
+int javaFindClass(lua_State *L) {
+    const char *className;
+    jstring javaClassName;
+    jobject classInstance;
+    jobject luaState;
+    JNIEnv *javaEnv;
+
+    /* Gets the java LuaState */
+    luaState = checkState(L);
+
+    /* Gets the JNI Environment */
+    javaEnv = checkEnv(L);
+
+    /* get the string parameter */
+    className = luaL_checkstring(L, 1);
+
+    javaClassName = (*javaEnv)->NewStringUTF(javaEnv, className);
+
+    classInstance = (*javaEnv)->CallStaticObjectMethod(
+            javaEnv, luajava_api_class, find_class_method, luaState, javaClassName);
+
+    (*javaEnv)->DeleteLocalRef(javaEnv, javaClassName);
+    checkError(javaEnv, L);
+
+    /* pushes the class, or nil when there is none */
+    if (classInstance == NULL) {
+        lua_pushnil(L);
+        return 1;
+    }
+    pushJavaObject(L, classInstance);
+    (*javaEnv)->DeleteLocalRef(javaEnv, classInstance);
+    return 1;
+}
+
 /***************************************************************************
 *
 *  Function: createProxy
 *  ****/
 int createProxy(lua_State *L) {
     jint ret;
-    jlong stateIndex;
+    jobject luaState;
     const char *impl;
     jstring str;
     JNIEnv *javaEnv;
@@ -833,8 +1117,8 @@ int createProxy(lua_State *L) {
         lua_error(L);
     }
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     luaL_checktype(L, 2, LUA_TTABLE);
 
@@ -846,7 +1130,7 @@ int createProxy(lua_State *L) {
     str = (*javaEnv)->NewStringUTF(javaEnv, impl);
 
     ret = (*javaEnv)->CallStaticIntMethod(
-            javaEnv, luajava_api_class, create_proxy_method, stateIndex, str);
+            javaEnv, luajava_api_class, create_proxy_method, luaState, str);
 
     (*javaEnv)->DeleteLocalRef(javaEnv, str);
     checkError(javaEnv, L);
@@ -860,12 +1144,12 @@ int createProxy(lua_State *L) {
 *  ****/
 int newArray(lua_State *L) {
     jint ret;
-    jlong stateIndex;
+    jobject luaState;
     jobject *clazz;
     JNIEnv *javaEnv;
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* Gets the JNI Environment */
     javaEnv = checkEnv(L);
@@ -874,7 +1158,7 @@ int newArray(lua_State *L) {
     clazz = checkJavaObject(L, 1);
 
     ret = (*javaEnv)->CallStaticIntMethod(
-            javaEnv, luajava_api_class, new_multiarray_method, stateIndex, *clazz);
+            javaEnv, luajava_api_class, new_multiarray_method, luaState, *clazz);
 
     checkError(javaEnv, L);
 
@@ -887,7 +1171,7 @@ int newArray(lua_State *L) {
 *  ****/
 int createArray(lua_State *L) {
     jint ret;
-    jlong stateIndex;
+    jobject luaState;
     const char *className;
     jstring str;
     JNIEnv *javaEnv;
@@ -898,8 +1182,8 @@ int createArray(lua_State *L) {
     }
 
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     luaL_checktype(L, 2, LUA_TTABLE);
 
@@ -911,7 +1195,7 @@ int createArray(lua_State *L) {
     str = (*javaEnv)->NewStringUTF(javaEnv, className);
 
     ret = (*javaEnv)->CallStaticIntMethod(
-            javaEnv, luajava_api_class, create_array_method, stateIndex, str);
+            javaEnv, luajava_api_class, create_array_method, luaState, str);
 
     (*javaEnv)->DeleteLocalRef(javaEnv, str);
     checkError(javaEnv, L);
@@ -928,7 +1212,7 @@ int javaNew(lua_State *L) {
     int top;
     jint ret;
     jobject *classInstance;
-    jlong stateIndex;
+    jobject luaState;
     JNIEnv *javaEnv;
 
     top = lua_gettop(L);
@@ -938,8 +1222,8 @@ int javaNew(lua_State *L) {
         lua_error(L);
     }
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* Gets the java Class reference */
     classInstance = checkJavaObject(L, 1);
@@ -950,7 +1234,7 @@ int javaNew(lua_State *L) {
     if ((*javaEnv)->IsInstanceOf(javaEnv, *classInstance, java_lang_class) ==
         JNI_FALSE) {
         ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class,
-                                              object_call_method, stateIndex,
+                                              object_call_method, luaState,
                                               *classInstance);
         checkError(javaEnv, L);
         if (ret == 0) {
@@ -961,12 +1245,12 @@ int javaNew(lua_State *L) {
         /* if arg is table create array or interface, else create calss instance. */
     else if (lua_type(L, 2) == LUA_TTABLE && top == 2) {
         ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class,
-                                              java_create_method, stateIndex,
+                                              java_create_method, luaState,
                                               *classInstance);
         checkError(javaEnv, L);
     } else {
         ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class,
-                                              java_new_method, stateIndex,
+                                              java_new_method, luaState,
                                               *classInstance);
         checkError(javaEnv, L);
     }
@@ -982,11 +1266,11 @@ int javaNewInstance(lua_State *L) {
     jint ret;
     const char *className;
     jstring javaClassName;
-    jlong stateIndex;
+    jobject luaState;
     JNIEnv *javaEnv;
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* get the string parameter */
     className = luaL_checkstring(L, 1);
@@ -998,7 +1282,7 @@ int javaNewInstance(lua_State *L) {
 
     ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class,
                                           java_newinstance_method,
-                                          stateIndex, javaClassName);
+                                          luaState, javaClassName);
 
     (*javaEnv)->DeleteLocalRef(javaEnv, javaClassName);
     checkError(javaEnv, L);
@@ -1015,7 +1299,7 @@ int javaLoadLib(lua_State *L) {
     jint ret;
     int top;
     const char *className, *methodName;
-    jlong stateIndex;
+    jobject luaState;
     jmethodID method;
     jstring javaClassName, javaMethodName;
     JNIEnv *javaEnv;
@@ -1027,8 +1311,8 @@ int javaLoadLib(lua_State *L) {
         lua_error(L);
     }
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     className = luaL_checkstring(L, 1);
     methodName = luaL_checkstring(L, 2);
@@ -1038,13 +1322,13 @@ int javaLoadLib(lua_State *L) {
 
     method =
             (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class, "javaLoadLib",
-                                          "(JLjava/lang/String;Ljava/lang/String;)I");
+                                          "(Lcom/luajava/LuaState;Ljava/lang/String;Ljava/lang/String;)I");
 
     javaClassName = (*javaEnv)->NewStringUTF(javaEnv, className);
     javaMethodName = (*javaEnv)->NewStringUTF(javaEnv, methodName);
 
     ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
-                                          stateIndex, javaClassName,
+                                          luaState, javaClassName,
                                           javaMethodName);
 
     (*javaEnv)->DeleteLocalRef(javaEnv, javaClassName);
@@ -1057,11 +1341,11 @@ int javaLoadLib(lua_State *L) {
 int asTable(lua_State *L) {
     jint ret;
     jobject *obj;
-    jlong stateIndex;
+    jobject luaState;
     JNIEnv *javaEnv;
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* Gets the java Object reference */
     obj = checkJavaObject(L, 1);
@@ -1070,7 +1354,7 @@ int asTable(lua_State *L) {
     javaEnv = checkEnv(L);
 
     ret = (*javaEnv)->CallStaticIntMethod(
-            javaEnv, luajava_api_class, as_table_method, stateIndex, *obj);
+            javaEnv, luajava_api_class, as_table_method, luaState, *obj);
 
     checkError(javaEnv, L);
 
@@ -1085,11 +1369,11 @@ int asTable(lua_State *L) {
 int javaToString(lua_State *L) {
     jint ret;
     jobject *obj;
-    jlong stateIndex;
+    jobject luaState;
     JNIEnv *javaEnv;
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* Gets the java Object reference */
     //obj = checkJavaObject(L, 1);
@@ -1104,7 +1388,7 @@ int javaToString(lua_State *L) {
     javaEnv = checkEnv(L);
 
     ret = (*javaEnv)->CallStaticIntMethod(
-            javaEnv, luajava_api_class, to_string_method, stateIndex, *obj);
+            javaEnv, luajava_api_class, to_string_method, luaState, *obj);
 
     checkError(javaEnv, L);
 
@@ -1119,11 +1403,11 @@ int javaToString(lua_State *L) {
 int javaGetType(lua_State *L) {
     jint ret;
     jobject *obj;
-    jlong stateIndex;
+    jobject luaState;
     JNIEnv *javaEnv;
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* Gets the java Object reference */
     //obj = checkJavaObject(L, 1);
@@ -1138,7 +1422,7 @@ int javaGetType(lua_State *L) {
     javaEnv = checkEnv(L);
 
     ret = (*javaEnv)->CallStaticIntMethod(
-            javaEnv, luajava_api_class, get_type_method, stateIndex, *obj);
+            javaEnv, luajava_api_class, get_type_method, luaState, *obj);
 
     checkError(javaEnv, L);
 
@@ -1155,7 +1439,7 @@ int javaEquals(lua_State *L) {
     jint ret;
     jobject *obj;
     jobject *obj2;
-    jlong stateIndex;
+    jobject luaState;
     JNIEnv *javaEnv;
 
     if (!isJavaObject(L, 1) || !isJavaObject(L, 2)) {
@@ -1163,8 +1447,8 @@ int javaEquals(lua_State *L) {
         return 1;
     }
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* Gets the java Object reference */
     obj = (jobject *) lua_touserdata(L, 1);
@@ -1174,7 +1458,7 @@ int javaEquals(lua_State *L) {
     javaEnv = checkEnv(L);
 
     ret = (*javaEnv)->CallStaticIntMethod(
-            javaEnv, luajava_api_class, object_equals_method, stateIndex, *obj, *obj2);
+            javaEnv, luajava_api_class, object_equals_method, luaState, *obj, *obj2);
 
     checkError(javaEnv, L);
 
@@ -1189,11 +1473,11 @@ int javaEquals(lua_State *L) {
 int javaObjectLength(lua_State *L) {
     jint ret;
     jobject *obj;
-    jlong stateIndex;
+    jobject luaState;
     JNIEnv *javaEnv;
 
-    /* Gets the luaState index */
-    stateIndex = checkIndex(L);
+    /* Gets the java LuaState */
+    luaState = checkState(L);
 
     /* Gets the java Class reference */
     obj = checkJavaObject(L, 1);
@@ -1202,7 +1486,7 @@ int javaObjectLength(lua_State *L) {
     javaEnv = checkEnv(L);
 
     ret = (*javaEnv)->CallStaticIntMethod(
-            javaEnv, luajava_api_class, object_length_method, stateIndex, *obj);
+            javaEnv, luajava_api_class, object_length_method, luaState, *obj);
 
     checkError(javaEnv, L);
 
@@ -1304,10 +1588,33 @@ static const luaL_Reg ljobjectmeta[] = {{"__index",    objectIndex},
 
 int pushJavaObject(lua_State *L, jobject javaObject) {
     jobject *userData, globalRef;
+    jint hash = 0;
+    int cached;
 
     /* Gets the JNI Environment */
     JNIEnv *javaEnv = checkEnv(L);
 
+    /* With the identity cache on, pushes the userdata of the object if it
+       is still alive. Colliding hashes only replace each other. */
+    cached = 0;
+    if (javaObject != NULL) {
+        cached = lua_rawgetp(L, LUA_REGISTRYINDEX, &identity_cache_key) == LUA_TTABLE;
+        if (!cached)
+            lua_pop(L, 1);
+    }
+    if (cached) {
+        hash = (*javaEnv)->CallStaticIntMethod(javaEnv, java_system_class,
+                                               identity_hashcode_method, javaObject);
+        if (lua_rawgeti(L, -1, hash) == LUA_TUSERDATA) {
+            userData = (jobject *) lua_touserdata(L, -1);
+            if (*userData != NULL && (*javaEnv)->IsSameObject(javaEnv, *userData, javaObject)) {
+                lua_remove(L, -2);
+                return 1;
+            }
+        }
+        lua_pop(L, 1);
+    }
+
     globalRef = (*javaEnv)->NewGlobalRef(javaEnv, javaObject);
     checkError(javaEnv, L);
 //LOGD("Java object %d %d",&javaObject,&globalRef);
@@ -1315,6 +1622,14 @@ int pushJavaObject(lua_State *L, jobject javaObject) {
     userData = (jobject *) lua_newuserdata(L, sizeof(jobject));
     *userData = globalRef;
     luaL_setmetatable(L, LUAJAVAOBJECTMETA);
+    if (globalRef != NULL)
+        __atomic_add_fetch(&global_ref_count, 1, __ATOMIC_RELAXED);
+
+    if (cached) {
+        lua_pushvalue(L, -1);
+        lua_rawseti(L, -3, hash);
+        lua_remove(L, -2);
+    }
     return 1;
     /*
     lua_newtable(L);
@@ -1472,6 +1787,7 @@ static void set_info(lua_State *L) {
 }
 
 static const luaL_Reg ljlib[] = {{"bindClass",   javaBindClass},
+                                 {"findClass",   javaFindClass},
                                  {"new",         javaNew},
                                  {"newInstance", javaNewInstance},
                                  {"loadLib",     javaLoadLib},
@@ -1592,6 +1908,8 @@ Java_com_luajava_LuaState__1pushJavaFunction(JNIEnv *env, jobject jobj,
     jobject *userData, globalRef;
 
     globalRef = (*env)->NewGlobalRef(env, obj);
+    if (globalRef != NULL)
+        __atomic_add_fetch(&global_ref_count, 1, __ATOMIC_RELAXED);
 
     userData = (jobject *) lua_newuserdata(L, sizeof(jobject));
     *userData = globalRef;
@@ -1645,6 +1963,189 @@ Java_com_luajava_LuaState__1isJavaFunction(JNIEnv *env, jobject jobj,
     return (*env)->IsInstanceOf(env, *obj, java_function_class);
 }
 
+/***************************************************************************
+*
+*  Allocator of the states: blocks up to ALLOC_SMALL_MAX bytes are carved
+*  from chunks and kept in free lists by size class, larger ones come from
+*  malloc, with room for a chunk header. The chunks are only given back
+*  when the state is closed.
+*  Every state counts the bytes it uses and may have a limit, past which
+*  allocations fail and lua raises a memory error.
+*  ****/
+
+#define ALLOC_ALIGN 16
+#define ALLOC_CLASSES 16
+#define ALLOC_SMALL_MAX (ALLOC_ALIGN * ALLOC_CLASSES)
+#define ALLOC_CHUNK_SIZE 8192
+
+typedef struct AllocChunk {
+    struct AllocChunk *next;
+} AllocChunk;
+
+typedef struct LuaAllocator {
+    size_t allocated;
+    size_t limit;
+    void *free_lists[ALLOC_CLASSES];
+    AllocChunk *chunks;
+    char *bump;
+    char *bump_end;
+} LuaAllocator;
+
+/* header of a chunk, rounded up to keep the blocks aligned */
+#define ALLOC_CHUNK_HEADER ((sizeof(AllocChunk) + ALLOC_ALIGN - 1) & ~(size_t) (ALLOC_ALIGN - 1))
+
+/* least size malloc'd for a large block, so it can become a chunk */
+#define ALLOC_LARGE_MIN (ALLOC_CHUNK_HEADER + ALLOC_SMALL_MAX)
+
+static int allocClass(size_t size) {
+    return (int) ((size + ALLOC_ALIGN - 1) / ALLOC_ALIGN) - 1;
+}
+
+static size_t largeSize(size_t size) {
+    return size < ALLOC_LARGE_MIN ? ALLOC_LARGE_MIN : size;
+}
+
+static void *allocBlock(LuaAllocator *a, size_t size) {
+    int c;
+    size_t blockSize;
+    void *block;
+    AllocChunk *chunk;
+
+    if (size > ALLOC_SMALL_MAX)
+        return malloc(largeSize(size));
+
+    c = allocClass(size);
+    block = a->free_lists[c];
+    if (block != NULL) {
+        a->free_lists[c] = *(void **) block;
+        return block;
+    }
+
+    blockSize = (size_t) (c + 1) * ALLOC_ALIGN;
+    if (a->bump == NULL || a->bump + blockSize > a->bump_end) {
+        chunk = (AllocChunk *) malloc(ALLOC_CHUNK_SIZE);
+        if (chunk == NULL)
+            return NULL;
+        chunk->next = a->chunks;
+        a->chunks = chunk;
+        a->bump = (char *) chunk + ALLOC_CHUNK_HEADER;
+        a->bump_end = (char *) chunk + ALLOC_CHUNK_SIZE;
+    }
+    block = a->bump;
+    a->bump += blockSize;
+    return block;
+}
+
+static void freeBlock(LuaAllocator *a, void *block, size_t size) {
+    int c;
+
+    if (size > ALLOC_SMALL_MAX) {
+        free(block);
+        return;
+    }
+    c = allocClass(size);
+    *(void **) block = a->free_lists[c];
+    a->free_lists[c] = block;
+}
+
+/*
+ * Turns the large block ptr of size bytes into a chunk holding its first
+ * nsize bytes as a small block, which is returned. The rest of the chunk
+ * is carved from next if it is larger than what is left of the current one.
+ */
+static void *adoptChunk(LuaAllocator *a, void *ptr, size_t size, size_t nsize) {
+    AllocChunk *chunk = (AllocChunk *) ptr;
+    char *block = (char *) ptr + ALLOC_CHUNK_HEADER;
+    char *end = block + (size_t) (allocClass(nsize) + 1) * ALLOC_ALIGN;
+    char *chunkEnd = (char *) ptr + largeSize(size);
+
+    memmove(block, ptr, nsize);
+    chunk->next = a->chunks;
+    a->chunks = chunk;
+    if (a->bump == NULL || chunkEnd - end > a->bump_end - a->bump) {
+        a->bump = end;
+        a->bump_end = chunkEnd;
+    }
+    return block;
+}
+
+static void *luajavaAlloc(void *ud, void *ptr, size_t osize, size_t nsize) {
+    LuaAllocator *a = (LuaAllocator *) ud;
+    size_t old = ptr == NULL ? 0 : osize;
+    void *block;
+
+    if (nsize == 0) {
+        if (ptr != NULL) {
+            freeBlock(a, ptr, old);
+            a->allocated -= old;
+        }
+        return NULL;
+    }
+
+    if (nsize > old && a->limit != 0 && a->allocated - old + nsize > a->limit)
+        return NULL;
+
+    if (ptr == NULL) {
+        block = allocBlock(a, nsize);
+    } else if (old > ALLOC_SMALL_MAX && nsize > ALLOC_SMALL_MAX) {
+        block = realloc(ptr, largeSize(nsize));
+    } else if (old <= ALLOC_SMALL_MAX && nsize <= ALLOC_SMALL_MAX
+               && allocClass(old) == allocClass(nsize)) {
+        block = ptr;
+    } else {
+        block = allocBlock(a, nsize);
+        if (block != NULL) {
+            memcpy(block, ptr, old < nsize ? old : nsize);
+            freeBlock(a, ptr, old);
+        }
+    }
+
+    /* lua takes a shrink for granted: keep the block, now seen as nsize
+     * bytes. A large block shrunk to a small one would end in a free list
+     * when freed, and never be given back, so it becomes a chunk. */
+    if (block == NULL && nsize <= old) {
+        if (old > ALLOC_SMALL_MAX && nsize <= ALLOC_SMALL_MAX)
+            block = adoptChunk(a, ptr, old, nsize);
+        else
+            block = ptr;
+    }
+    if (block != NULL)
+        a->allocated = a->allocated - old + nsize;
+    return block;
+}
+
+static int luajavaPanic(lua_State *L) {
+    LOGD("PANIC: unprotected error in call to Lua API (%s)\n", lua_tostring(L, -1));
+    return 0;
+}
+
+static void closeState(lua_State *L) {
+    void *ud;
+    LuaAllocator *a;
+    AllocChunk *chunk;
+
+    if (lua_getallocf(L, &ud) != luajavaAlloc) {
+        lua_close(L);
+        return;
+    }
+    lua_close(L);
+    a = (LuaAllocator *) ud;
+    while (a->chunks != NULL) {
+        chunk = a->chunks;
+        a->chunks = chunk->next;
+        free(chunk);
+    }
+    free(a);
+}
+
+static LuaAllocator *getAllocator(lua_State *L) {
+    void *ud;
+
+    if (lua_getallocf(L, &ud) != luajavaAlloc)
+        return NULL;
+    return (LuaAllocator *) ud;
+}
+
 /*********************** LUA API FUNCTIONS ******************************/
 
 /************************************************************************
@@ -1654,7 +2155,19 @@ Java_com_luajava_LuaState__1isJavaFunction(JNIEnv *env, jobject jobj,
 
 JNIEXPORT jlong JNICALL
 Java_com_luajava_LuaState__1newstate(JNIEnv *env, jobject jobj) {
-    lua_State *L = luaL_newstate();
+    LuaAllocator *a = (LuaAllocator *) calloc(1, sizeof(LuaAllocator));
+    lua_State *L;
+
+    if (a == NULL)
+        return 0;
+    L = lua_newstate(luajavaAlloc, a);
+    if (L == NULL) {
+        free(a);
+        return 0;
+    }
+    lua_atpanic(L, &luajavaPanic);
+    /* the java LuaState, used by every upcall from this state */
+    *(jobject *) lua_getextraspace(L) = (*env)->NewGlobalRef(env, jobj);
     return (jlong) L;
 }
 
@@ -1784,8 +2297,12 @@ Java_com_luajava_LuaState__1openLibs(JNIEnv *env, jobject jobj, jlong cptr) {
 JNIEXPORT void JNICALL
 Java_com_luajava_LuaState__1close(JNIEnv *env, jobject jobj, jlong cptr) {
     lua_State *L = getStateFromCPtr(env, cptr);
+    jobject state = *(jobject *) lua_getextraspace(L);
 
-    lua_close(L);
+    releaseInternedStrings(L, env);
+    closeState(L);
+    if (state != NULL)
+        (*env)->DeleteGlobalRef(env, state);
 }
 
 /************************************************************************
@@ -2235,6 +2752,70 @@ Java_com_luajava_LuaState__1rawlen(JNIEnv *env, jobject jobj, jlong cptr,
     return (jint) lua_rawlen(L, idx);
 }
 
+JNIEXPORT jlong JNICALL
+Java_com_luajava_LuaState__1toPointer(JNIEnv *env, jobject jobj, jlong cptr,
+                                      jint idx) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+
+    return (jlong) (intptr_t) lua_topointer(L, idx);
+}
+
+JNIEXPORT void JNICALL
+Java_com_luajava_LuaState__1setIdentityCache(JNIEnv *env, jobject jobj, jlong cptr,
+                                             jboolean enabled) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+
+    if (!enabled) {
+        lua_pushnil(L);
+        lua_rawsetp(L, LUA_REGISTRYINDEX, &identity_cache_key);
+        return;
+    }
+    if (lua_rawgetp(L, LUA_REGISTRYINDEX, &identity_cache_key) == LUA_TTABLE) {
+        lua_pop(L, 1);
+        return;
+    }
+    lua_pop(L, 1);
+
+    /* values are weak, an entry goes away with its userdata */
+    lua_newtable(L);
+    lua_newtable(L);
+    lua_pushliteral(L, "v");
+    lua_setfield(L, -2, "__mode");
+    lua_setmetatable(L, -2);
+    lua_rawsetp(L, LUA_REGISTRYINDEX, &identity_cache_key);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_luajava_LuaState__1getAllocatedBytes(JNIEnv *env, jobject jobj, jlong cptr) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+    LuaAllocator *a = getAllocator(L);
+
+    return a == NULL ? -1 : (jlong) a->allocated;
+}
+
+JNIEXPORT void JNICALL
+Java_com_luajava_LuaState__1setMemoryLimit(JNIEnv *env, jobject jobj, jlong cptr,
+                                           jlong limit) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+    LuaAllocator *a = getAllocator(L);
+
+    if (a != NULL)
+        a->limit = limit <= 0 ? 0 : (size_t) limit;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_luajava_LuaState__1getMemoryLimit(JNIEnv *env, jobject jobj, jlong cptr) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+    LuaAllocator *a = getAllocator(L);
+
+    return a == NULL ? 0 : (jlong) a->limit;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_luajava_LuaState__1getGlobalRefCount(JNIEnv *env, jclass clazz) {
+    return (jint) __atomic_load_n(&global_ref_count, __ATOMIC_RELAXED);
+}
+
 /************************************************************************
 *   JNI Called function
 *      Lua Exported Function
@@ -2255,6 +2836,23 @@ Java_com_luajava_LuaState__1toThread(JNIEnv *env, jobject jobj, jlong cptr,
 *      Lua Exported Function
 ************************************************************************/
 
+JNIEXPORT jobject JNICALL
+Java_com_luajava_LuaState__1getMainState(JNIEnv *env, jobject jobj, jlong cptr) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+    lua_State *main;
+
+    lua_rawgeti(L, LUA_REGISTRYINDEX, LUA_RIDX_MAINTHREAD);
+    main = lua_tothread(L, -1);
+    lua_pop(L, 1);
+    /* set by _newstate, null for a state made elsewhere */
+    return (*env)->NewLocalRef(env, *(jobject *) lua_getextraspace(main));
+}
+
+/************************************************************************
+*   JNI Called function
+*      Lua Exported Function
+************************************************************************/
+
 JNIEXPORT void JNICALL
 Java_com_luajava_LuaState__1pushNil(JNIEnv *env, jobject jobj, jlong cptr) {
     lua_State *L = getStateFromCPtr(env, cptr);
@@ -3201,9 +3799,257 @@ Java_com_luajava_LuaState__1toBuffer(JNIEnv *env, jobject instance, jlong cptr,
     lua_State *L = getStateFromCPtr(env, cptr);
     size_t size = 0;
     const char *str = lua_tolstring(L, idx, &size);
-    jbyteArray arr = (*env)->NewByteArray(env, size);
-    jbyte *data = (*env)->GetByteArrayElements(env, arr, 0);
-    memcpy(data, str, size);
-    (*env)->ReleaseByteArrayElements(env, arr, data, 0);
+    jbyteArray arr;
+    if (str == NULL)
+        return NULL;
+    /* one copy into the new array, rather than pinning it */
+    arr = (*env)->NewByteArray(env, size);
+    if (arr != NULL)
+        (*env)->SetByteArrayRegion(env, arr, 0, size, (const jbyte *) str);
     return arr;
-}
\ No newline at end of file
+}
+/************************************************************************
+*   Bulk table conversions
+*      Tables are walked in C and their values stored in java arrays in
+*      one call. Values needing a LuaObject (tables, functions and
+*      userdata that are not java objects) are referenced in the registry,
+*      the reference is stored in refs and the java side makes the object.
+************************************************************************/
+
+static jobject toBulkValue(JNIEnv *env, lua_State *L, int idx, jint *ref) {
+    *ref = 0;
+    switch (lua_type(L, idx)) {
+        case LUA_TNIL:
+            return NULL;
+        case LUA_TBOOLEAN:
+            return (*env)->CallStaticObjectMethod(env, java_boolean_class, boolean_valueof_method,
+                                                  (jboolean) lua_toboolean(L, idx));
+        case LUA_TNUMBER:
+            if (lua_isinteger(L, idx))
+                return (*env)->CallStaticObjectMethod(env, java_long_class, long_valueof_method,
+                                                      (jlong) lua_tointeger(L, idx));
+            return (*env)->CallStaticObjectMethod(env, java_double_class, double_valueof_method,
+                                                  (jdouble) lua_tonumber(L, idx));
+        case LUA_TSTRING:
+            return (*env)->NewStringUTF(env, lua_tostring(L, idx));
+        case LUA_TUSERDATA:
+            if (isJavaObject(L, idx))
+                return (*env)->NewLocalRef(env, *(jobject *) lua_touserdata(L, idx));
+            /* fall through */
+        default:
+            lua_pushvalue(L, idx);
+            *ref = (jint) luaL_ref(L, LUA_REGISTRYINDEX);
+            return NULL;
+    }
+}
+
+static inline void setBulkValue(JNIEnv *env, lua_State *L, int idx,
+                                jobjectArray values, jint *refs, jsize i) {
+    jobject value = toBulkValue(env, L, idx, &refs[i]);
+    (*env)->SetObjectArrayElement(env, values, i, value);
+    if (value != NULL)
+        (*env)->DeleteLocalRef(env, value);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_luajava_LuaState__1toJavaArray(JNIEnv *env, jobject jobj, jlong cptr,
+                                        jint idx, jobjectArray values, jintArray refs) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+    int t = lua_absindex(L, idx);
+    jsize n = (*env)->GetArrayLength(env, values);
+    size_t len = lua_rawlen(L, t);
+    if (len < (size_t) n)
+        n = (jsize) len;
+
+    jint *r = (*env)->GetIntArrayElements(env, refs, NULL);
+    for (jsize i = 0; i < n; i++) {
+        lua_rawgeti(L, t, i + 1);
+        setBulkValue(env, L, -1, values, r, i);
+        lua_pop(L, 1);
+    }
+    (*env)->ReleaseIntArrayElements(env, refs, r, 0);
+    return (jint) n;
+}
+
+/*
+ * Stores the keys and values following the key on the top of the stack,
+ * alternately, until the end of the table or until values is full.
+ * When values is full the last key is left on the stack, as lua_next does.
+ */
+JNIEXPORT jint JNICALL
+Java_com_luajava_LuaState__1toJavaEntries(JNIEnv *env, jobject jobj, jlong cptr,
+                                          jint idx, jobjectArray values, jintArray refs) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+    int t = lua_absindex(L, idx);
+    jsize max = (*env)->GetArrayLength(env, values) / 2;
+    jsize n = 0;
+
+    jint *r = (*env)->GetIntArrayElements(env, refs, NULL);
+    while (n < max && lua_next(L, t) != 0) {
+        setBulkValue(env, L, -2, values, r, n * 2);
+        setBulkValue(env, L, -1, values, r, n * 2 + 1);
+        lua_pop(L, 1);
+        n++;
+    }
+    (*env)->ReleaseIntArrayElements(env, refs, r, 0);
+    return (jint) n;
+}
+
+JNIEXPORT jlongArray JNICALL
+Java_com_luajava_LuaState__1toLongArray(JNIEnv *env, jobject jobj, jlong cptr, jint idx) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+    int t = lua_absindex(L, idx);
+    jsize n = (jsize) lua_rawlen(L, t);
+    jlongArray arr = (*env)->NewLongArray(env, n);
+    if (arr == NULL)
+        return NULL;
+
+    jlong *data = (*env)->GetLongArrayElements(env, arr, NULL);
+    for (jsize i = 0; i < n; i++) {
+        int isnum = 0;
+        if (lua_rawgeti(L, t, i + 1) == LUA_TNUMBER)
+            data[i] = (jlong) lua_tointegerx(L, -1, &isnum);
+        lua_pop(L, 1);
+        if (!isnum) {
+            (*env)->ReleaseLongArrayElements(env, arr, data, JNI_ABORT);
+            (*env)->DeleteLocalRef(env, arr);
+            return NULL;
+        }
+    }
+    (*env)->ReleaseLongArrayElements(env, arr, data, 0);
+    return arr;
+}
+
+JNIEXPORT jdoubleArray JNICALL
+Java_com_luajava_LuaState__1toDoubleArray(JNIEnv *env, jobject jobj, jlong cptr, jint idx) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+    int t = lua_absindex(L, idx);
+    jsize n = (jsize) lua_rawlen(L, t);
+    jdoubleArray arr = (*env)->NewDoubleArray(env, n);
+    if (arr == NULL)
+        return NULL;
+
+    jdouble *data = (*env)->GetDoubleArrayElements(env, arr, NULL);
+    for (jsize i = 0; i < n; i++) {
+        if (lua_rawgeti(L, t, i + 1) != LUA_TNUMBER) {
+            lua_pop(L, 1);
+            (*env)->ReleaseDoubleArrayElements(env, arr, data, JNI_ABORT);
+            (*env)->DeleteLocalRef(env, arr);
+            return NULL;
+        }
+        data[i] = (jdouble) lua_tonumber(L, -1);
+        lua_pop(L, 1);
+    }
+    (*env)->ReleaseDoubleArrayElements(env, arr, data, 0);
+    return arr;
+}
+
+/************************************************************************
+*   Primitive array transfer
+*      The elements of a java primitive array are read from or written to
+*      a table in one call, holding the array with
+*      GetPrimitiveArrayCritical. Only raw table accesses and pushes of
+*      numbers run in the critical region: the table is created with its
+*      full size before, so nothing in it allocates or can run a
+*      collection (and so a __gc calling back into java).
+************************************************************************/
+
+/*
+ * Reads a number as _toInteger does: a float is truncated, not turned
+ * into 0 when it has a fraction as by lua_tointeger.
+ */
+static lua_Integer tointeger(lua_State *L, int idx) {
+    if (lua_isinteger(L, idx))
+        return lua_tointeger(L, idx);
+    return (lua_Integer) lua_tonumber(L, idx);
+}
+
+#define PRIMITIVE_ARRAY(Name, jtype, push, to)                                  \
+JNIEXPORT jint JNICALL                                                          \
+Java_com_luajava_LuaState__1get##Name##Array(JNIEnv *env, jobject jobj,         \
+                                              jlong cptr, jint idx,             \
+                                              jtype##Array arr) {               \
+    lua_State *L = getStateFromCPtr(env, cptr);                                 \
+    int t = lua_absindex(L, idx);                                               \
+    jsize n = (*env)->GetArrayLength(env, arr);                                 \
+    size_t len = lua_rawlen(L, t);                                              \
+    if (len < (size_t) n)                                                       \
+        n = (jsize) len;                                                        \
+    jtype *data = (*env)->GetPrimitiveArrayCritical(env, arr, NULL);            \
+    if (data == NULL)                                                           \
+        return 0;                                                               \
+    for (jsize i = 0; i < n; i++) {                                             \
+        lua_rawgeti(L, t, i + 1);                                               \
+        data[i] = (jtype) to(L, -1);                                            \
+        lua_pop(L, 1);                                                          \
+    }                                                                           \
+    (*env)->ReleasePrimitiveArrayCritical(env, arr, data, 0);                   \
+    return (jint) n;                                                            \
+}                                                                               \
+                                                                                \
+JNIEXPORT void JNICALL                                                          \
+Java_com_luajava_LuaState__1push##Name##Array(JNIEnv *env, jobject jobj,        \
+                                               jlong cptr, jtype##Array arr) {  \
+    lua_State *L = getStateFromCPtr(env, cptr);                                 \
+    jsize n = (*env)->GetArrayLength(env, arr);                                 \
+    lua_createtable(L, n, 0);                                                   \
+    jtype *data = (*env)->GetPrimitiveArrayCritical(env, arr, NULL);            \
+    if (data == NULL)                                                           \
+        return;                                                                 \
+    for (jsize i = 0; i < n; i++) {                                             \
+        push(L, data[i]);                                                       \
+        lua_rawseti(L, -2, i + 1);                                              \
+    }                                                                           \
+    (*env)->ReleasePrimitiveArrayCritical(env, arr, data, JNI_ABORT);           \
+}
+
+PRIMITIVE_ARRAY(Byte, jbyte, lua_pushinteger, tointeger)
+PRIMITIVE_ARRAY(Short, jshort, lua_pushinteger, tointeger)
+PRIMITIVE_ARRAY(Char, jchar, lua_pushinteger, tointeger)
+PRIMITIVE_ARRAY(Int, jint, lua_pushinteger, tointeger)
+PRIMITIVE_ARRAY(Long, jlong, lua_pushinteger, tointeger)
+PRIMITIVE_ARRAY(Float, jfloat, lua_pushnumber, lua_tonumber)
+PRIMITIVE_ARRAY(Double, jdouble, lua_pushnumber, lua_tonumber)
+
+/*
+ * Direct ByteBuffers are accessed through their address, from offset, the
+ * position of the buffer, for length bytes.
+ */
+JNIEXPORT jint JNICALL
+Java_com_luajava_LuaState__1toByteBuffer(JNIEnv *env, jobject jobj, jlong cptr,
+                                         jint idx, jobject buf, jint offset, jint length) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+    jbyte *data = (*env)->GetDirectBufferAddress(env, buf);
+    if (data == NULL)
+        return 0;
+
+    int t = lua_absindex(L, idx);
+    jint n = length;
+    size_t len = lua_rawlen(L, t);
+    if (len < (size_t) n)
+        n = (jint) len;
+    data += offset;
+    for (jint i = 0; i < n; i++) {
+        lua_rawgeti(L, t, i + 1);
+        data[i] = (jbyte) tointeger(L, -1);
+        lua_pop(L, 1);
+    }
+    return n;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_luajava_LuaState__1pushByteBuffer(JNIEnv *env, jobject jobj, jlong cptr,
+                                           jobject buf, jint offset, jint length) {
+    lua_State *L = getStateFromCPtr(env, cptr);
+    jbyte *data = (*env)->GetDirectBufferAddress(env, buf);
+    if (data == NULL)
+        return 0;
+
+    data += offset;
+    lua_createtable(L, length, 0);
+    for (jint i = 0; i < length; i++) {
+        lua_pushinteger(L, data[i]);
+        lua_rawseti(L, -2, i + 1);
+    }
+    return 1;
+}
@@ -14,7 +14,7 @@
 
  void pushJNIEnv(JNIEnv *env, lua_State *L);
 
- jlong checkIndex(lua_State *L);
+ jobject checkState(lua_State *L);
 
  jobject *checkJavaObject(lua_State *L, int idx);
 
@@ -8,6 +8,7 @@ local _G = _G
 local insert = table.insert
 local new = luajava.new
 local bindClass = luajava.bindClass
+local findClass = luajava.findClass
 local dexes = {}
 local _M = {}
 local luacontext = activity or service
@@ -33,8 +34,8 @@ local function massage_classname(classname)
 end
 
 local function bind_class(packagename)
-    local res, class = pcall(bindClass, packagename)
-    if res then
+    local class = findClass(packagename)
+    if class then
         loaded[packagename] = class
         return class
     end
@@ -48,12 +49,11 @@ end
 
 local function bind_dex_class(packagename)
     packagename = massage_classname(packagename)
-    for _, dex in ipairs(dexes) do
-        local res, class = pcall(dex.loadClass, packagename)
-        if res then
-            loaded[packagename] = class
-            return class
-        end
+    -- findClass searches the class loaders of the context, dexes included
+    local class = findClass(packagename)
+    if class then
+        loaded[packagename] = class
+        return class
     end
 end
 
@@ -65,8 +65,8 @@ end
 
 local pkgMT = {
     __index = function(T, classname)
-        local ret, class = pcall(luajava.bindClass, rawget(T, "__name") .. classname)
-        if ret then
+        local class = findClass(rawget(T, "__name") .. classname)
+        if class then
             rawset(T, classname, class)
             return class
         else
@@ -483,15 +483,12 @@ env_import(_G)
 
 local luajava_mt = {}
 luajava_mt.__index = function(t, k)
-    local b, ret = xpcall(function()
-        return luajava.bindClass((rawget(t, "__name") or "") .. k)
-    end,
-        function()
-            local p = {}
-            p.__name = (rawget(t, "__name") or "") .. k .. "."
-            setmetatable(p, luajava_mt)
-            return p
-        end)
+    local ret = findClass((rawget(t, "__name") or "") .. k)
+    if not ret then
+        ret = {}
+        ret.__name = (rawget(t, "__name") or "") .. k .. "."
+        setmetatable(ret, luajava_mt)
+    end
     rawset(t, k, ret)
     return ret
 end
@@ -0,0 +1,144 @@
+package com.android.cglib.dx;
+
+import com.android.cglib.dx.dex.DexFormat;
+import com.android.cglib.dx.dex.DexOptions;
+import com.android.cglib.dx.dex.code.DalvCode;
+import com.android.cglib.dx.dex.code.PositionList;
+import com.android.cglib.dx.dex.code.RopTranslator;
+import com.android.cglib.dx.dex.file.ClassDefItem;
+import com.android.cglib.dx.dex.file.DexFile;
+import com.android.cglib.dx.rop.code.RopMethod;
+import com.android.cglib.dx.rop.cst.Constant;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the steps of {@link DexMaker#generate()} one at a time, for the
+ * benchmarks to time each of them. Each step needs the one before.
+ * <p>
+ * DexMaker keeps its declarations private, so they are read by
+ * reflection when the steps are made. The steps themselves call the dx
+ * classes directly.
+ */
+public final class DexSteps {
+
+    private final List<Object> typeDeclarations = new ArrayList<Object>();
+
+    private final List<Code> codes = new ArrayList<Code>();
+
+    private final DexOptions options = new DexOptions();
+
+    private RopMethod[] ropMethods;
+
+    private DalvCode[] dalvCodes;
+
+    public DexSteps(DexMaker dexMaker) {
+        options.targetApiLevel = DexFormat.API_NO_EXTENDED_OPCODES;
+        try {
+            Field code = field(DexMaker.MethodDeclaration.class, "code");
+            for (Object type : ((Map<?, ?>) field(DexMaker.class, "types").get(dexMaker)).values()) {
+                typeDeclarations.add(type);
+                for (Object method : ((Map<?, ?>) field(type.getClass(), "methods").get(type)).values()) {
+                    codes.add((Code) code.get(method));
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Field field(Class<?> cls, String name) throws NoSuchFieldException {
+        Field field = cls.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    /**
+     * Returns the number of methods declared, each with code
+     */
+    public int getMethodCount() {
+        return codes.size();
+    }
+
+    /**
+     * Makes the rop form of the code of each method
+     */
+    public RopMethod[] buildRop() {
+        ropMethods = new RopMethod[codes.size()];
+        for (int i = 0; i < ropMethods.length; i++) {
+            ropMethods[i] = new RopMethod(codes.get(i).toBasicBlocks(), 0);
+        }
+        return ropMethods;
+    }
+
+    /**
+     * Translates the rop form of each method with RopTranslator
+     */
+    public DalvCode[] translate() {
+        dalvCodes = new DalvCode[ropMethods.length];
+        for (int i = 0; i < dalvCodes.length; i++) {
+            dalvCodes[i] = RopTranslator.translate(ropMethods[i], PositionList.NONE, null,
+                    codes.get(i).paramSize(), options);
+        }
+        return dalvCodes;
+    }
+
+    /**
+     * Numbers the constants of the translated methods, as the dex file does
+     * before finishing them. The numbers are of these methods only, so
+     * smaller than in the dex file, which only matters past 65535.
+     */
+    public void assignIndices() {
+        final HashMap<Constant, Integer> indices = new HashMap<Constant, Integer>();
+        DalvCode.AssignIndicesCallback callback = new DalvCode.AssignIndicesCallback() {
+            public int getIndex(Constant cst) {
+                Integer index = indices.get(cst);
+                if (index == null) {
+                    index = indices.size();
+                    indices.put(cst, index);
+                }
+                return index;
+            }
+        };
+        for (DalvCode dalvCode : dalvCodes) {
+            dalvCode.assignIndices(callback);
+        }
+    }
+
+    /**
+     * Runs the OutputFinisher of each translated method, as writing the
+     * dex does, once the indices are assigned, and returns the number of
+     * instructions
+     */
+    public int finish() {
+        int size = 0;
+        for (DalvCode dalvCode : dalvCodes) {
+            size += dalvCode.getInsns().size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the dex file of the declared types, as generate() makes it,
+     * with each method built and translated again. Writing it finishes
+     * the methods.
+     */
+    public DexFile toDexFile() {
+        DexFile dexFile = new DexFile(options);
+        try {
+            for (Object type : typeDeclarations) {
+                Method toClassDefItem = type.getClass().getDeclaredMethod("toClassDefItem");
+                toClassDefItem.setAccessible(true);
+                dexFile.add((ClassDefItem) toClassDefItem.invoke(type));
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return dexFile;
+    }
+}
@@ -0,0 +1,175 @@
+package com.android.cglib.dx;
+
+import com.android.cglib.dx.dex.DexFormat;
+import com.android.cglib.dx.io.CodeReader;
+import com.android.cglib.dx.io.instructions.DecodedInstruction;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+
+/**
+ * Reads back a dex file made by {@link DexMaker}: the header, its checksum
+ * and signature, and the instructions of each code item, decoded with
+ * {@link com.android.cglib.dx.io} and checked to refer to existing
+ * strings, types, fields and methods.
+ */
+public final class DexValidator {
+
+    private static final int HEADER_SIZE = 0x70;
+
+    private static final int TYPE_CODE_ITEM = 0x2001;
+
+    private DexValidator() {
+    }
+
+    /**
+     * Checks a dex file holding <code>classes</code> classes and
+     * <code>codeItems</code> methods with code
+     *
+     * @throws IllegalStateException when it is not valid
+     */
+    public static void validate(byte[] dex, int classes, int codeItems) {
+        ByteBuffer buf = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN);
+        String magic = new String(dex, 0, 8, Charset.forName("ISO-8859-1"));
+        check(magic.equals(DexFormat.MAGIC_PREFIX + DexFormat.VERSION_FOR_API_13 + DexFormat.MAGIC_SUFFIX),
+                "bad magic");
+        check(buf.getInt(0x20) == dex.length, "bad file size");
+        check(buf.getInt(0x24) == HEADER_SIZE, "bad header size");
+        check(buf.getInt(0x28) == DexFormat.ENDIAN_TAG, "bad endian tag");
+
+        Adler32 adler = new Adler32();
+        adler.update(dex, 12, dex.length - 12);
+        check(buf.getInt(0x08) == (int) adler.getValue(), "bad checksum");
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(dex, 32, dex.length - 32);
+            byte[] signature = sha1.digest();
+            for (int i = 0; i < signature.length; i++) {
+                check(dex[12 + i] == signature[i], "bad signature");
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final int strings = buf.getInt(0x38);
+        final int types = buf.getInt(0x40);
+        final int fields = buf.getInt(0x50);
+        final int methods = buf.getInt(0x58);
+        check(buf.getInt(0x60) == classes, "bad class count " + buf.getInt(0x60));
+
+        CodeReader reader = new CodeReader();
+        reader.setStringVisitor(new IndexVisitor("string", strings));
+        reader.setTypeVisitor(new IndexVisitor("type", types));
+        reader.setFieldVisitor(new IndexVisitor("field", fields));
+        reader.setMethodVisitor(new IndexVisitor("method", methods));
+
+        int mapOff = buf.getInt(0x34);
+        int mapSize = buf.getInt(mapOff);
+        int found = 0;
+        for (int i = 0; i < mapSize; i++) {
+            int item = mapOff + 4 + i * 12;
+            if ((buf.getShort(item) & 0xffff) != TYPE_CODE_ITEM)
+                continue;
+            int count = buf.getInt(item + 4);
+            int off = buf.getInt(item + 8);
+            for (int j = 0; j < count; j++) {
+                off = readCodeItem(buf, (off + 3) & ~3, reader);
+            }
+            found += count;
+        }
+        check(found == codeItems, "found " + found + " code items, expected " + codeItems);
+    }
+
+    /**
+     * Decodes the code item at off and returns the offset after it
+     */
+    private static int readCodeItem(ByteBuffer buf, int off, CodeReader reader) {
+        int registers = buf.getShort(off) & 0xffff;
+        int ins = buf.getShort(off + 2) & 0xffff;
+        int tries = buf.getShort(off + 6) & 0xffff;
+        int size = buf.getInt(off + 12);
+        check(ins <= registers, "more ins than registers");
+        check(size > 0, "empty code item");
+
+        short[] insns = new short[size];
+        for (int i = 0; i < size; i++) {
+            insns[i] = buf.getShort(off + 16 + i * 2);
+        }
+        // throws on an unknown opcode or an instruction cut short
+        DecodedInstruction[] decoded = DecodedInstruction.decodeAll(insns);
+        check(decoded[0] != null, "no instruction at 0");
+        reader.visitAll(decoded);
+
+        int end = off + 16 + size * 2;
+        if (tries == 0)
+            return end;
+        if ((size & 1) != 0)
+            end += 2;
+        end += tries * 8;
+        int[] pos = {end};
+        int handlers = readUleb128(buf, pos);
+        for (int i = 0; i < handlers; i++) {
+            int catches = readSleb128(buf, pos);
+            for (int j = 0; j < Math.abs(catches); j++) {
+                readUleb128(buf, pos);
+                readUleb128(buf, pos);
+            }
+            if (catches <= 0)
+                readUleb128(buf, pos);
+        }
+        return pos[0];
+    }
+
+    private static int readUleb128(ByteBuffer buf, int[] pos) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buf.get(pos[0]++) & 0xff;
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+    private static int readSleb128(ByteBuffer buf, int[] pos) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buf.get(pos[0]++) & 0xff;
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (shift < 32 && (b & 0x40) != 0)
+            result |= -1 << shift;
+        return result;
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok)
+            throw new IllegalStateException(message);
+    }
+
+    private static final class IndexVisitor implements CodeReader.Visitor {
+
+        private final String kind;
+
+        private final int size;
+
+        IndexVisitor(String kind, int size) {
+            this.kind = kind;
+            this.size = size;
+        }
+
+        @Override
+        public void visit(DecodedInstruction[] all, DecodedInstruction one) {
+            check(one.getIndex() >= 0 && one.getIndex() < size,
+                    kind + " index " + one.getIndex() + " out of " + size);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.android.cglib.proxy;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.android.cglib.dx.DexMaker;
+import com.android.cglib.dx.DexSteps;
+import com.android.cglib.dx.DexValidator;
+import com.android.cglib.dx.dex.file.DexFile;
+import com.android.cglib.dx.rop.code.RopMethod;
+
+/**
+ * Makes the subclass of the Enhancer, one step of DexMaker.generate() at a
+ * time: the rop form of the methods, RopTranslator, the OutputFinisher and
+ * the writing of the dex. Writing the dex finishes the methods again, so
+ * toDex includes the finish step. Run with <code>-Pprofilers=gc</code> for
+ * the allocations of each step.
+ * <p>
+ * The superclasses are of about 60, 200 and 300 methods the subclass
+ * overrides, as the views of an app are; android.view.View itself is not
+ * on the host. The dex made for each is read back before the runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnhancerBenchmark {
+
+	private static final Method GET_CONSTRUCTORS = method("getConstructors");
+
+	private static final Method GET_METHODS = method("getMethods");
+
+	private static final Method DECLARE = method("declare", DexMaker.class, String.class, List.class, List.class);
+
+	@Param({"java.util.concurrent.ConcurrentHashMap", "java.awt.Component", "javax.swing.JComponent"})
+	public String superclass;
+
+	private Class<?> cls;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		cls = Class.forName(superclass, false, EnhancerBenchmark.class.getClassLoader());
+		DexMaker dexMaker = new DexMaker();
+		declare(cls, dexMaker);
+		int methods = new DexSteps(dexMaker).getMethodCount();
+		DexValidator.validate(dexMaker.generate(), 1, methods);
+	}
+
+	private static Method method(String name, Class<?>... parameterTypes) {
+		try {
+			Method method = Enhancer.class.getDeclaredMethod(name, parameterTypes);
+			method.setAccessible(true);
+			return method;
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Declares the subclass in dexMaker as create() does, through the
+	 * private methods of the Enhancer, and returns its name
+	 */
+	@SuppressWarnings("unchecked")
+	static String declare(Class<?> cls, DexMaker dexMaker) {
+		Enhancer enhancer = new Enhancer(null);
+		enhancer.setSuperclass(cls);
+		try {
+			List<Constructor<?>> constructors = (List<Constructor<?>>) GET_CONSTRUCTORS.invoke(enhancer);
+			List<Method> methods = (List<Method>) GET_METHODS.invoke(enhancer);
+			String subClsName = cls.getName().replace(".", "/") + Const.SUBCLASS_SUFFIX + "_"
+					+ EnhancerCache.key(cls, constructors, methods);
+			DECLARE.invoke(enhancer, dexMaker, subClsName, constructors, methods);
+			return subClsName;
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	static DexSteps steps(Class<?> cls) {
+		DexMaker dexMaker = new DexMaker();
+		declare(cls, dexMaker);
+		return new DexSteps(dexMaker);
+	}
+
+	/**
+	 * Steps declared, for the rop form to be made
+	 */
+	@State(Scope.Thread)
+	public static class Declared {
+
+		DexSteps steps;
+
+		@Setup(Level.Invocation)
+		public void setUp(EnhancerBenchmark benchmark) {
+			steps = steps(benchmark.cls);
+		}
+	}
+
+	/**
+	 * Steps with the rop form made, to be translated
+	 */
+	@State(Scope.Thread)
+	public static class Built {
+
+		DexSteps steps;
+
+		@Setup(Level.Invocation)
+		public void setUp(EnhancerBenchmark benchmark) {
+			steps = steps(benchmark.cls);
+			steps.buildRop();
+		}
+	}
+
+	/**
+	 * Steps translated and their constants numbered, to be finished
+	 */
+	@State(Scope.Thread)
+	public static class Translated {
+
+		DexSteps steps;
+
+		@Setup(Level.Invocation)
+		public void setUp(EnhancerBenchmark benchmark) {
+			steps = steps(benchmark.cls);
+			steps.buildRop();
+			steps.translate();
+			steps.assignIndices();
+		}
+	}
+
+	/**
+	 * Dex file of the methods translated, to be written
+	 */
+	@State(Scope.Thread)
+	public static class Unwritten {
+
+		DexFile dexFile;
+
+		@Setup(Level.Invocation)
+		public void setUp(EnhancerBenchmark benchmark) {
+			dexFile = steps(benchmark.cls).toDexFile();
+		}
+	}
+
+	/**
+	 * Declares the subclass, as create() does before generating it
+	 */
+	@Benchmark
+	public String declare() {
+		return declare(cls, new DexMaker());
+	}
+
+	@Benchmark
+	public RopMethod[] buildRop(Declared declared) {
+		return declared.steps.buildRop();
+	}
+
+	@Benchmark
+	public Object translate(Built built) {
+		return built.steps.translate();
+	}
+
+	@Benchmark
+	public int finish(Translated translated) {
+		return translated.steps.finish();
+	}
+
+	@Benchmark
+	public byte[] toDex(Unwritten unwritten) throws IOException {
+		return unwritten.dexFile.toDex(null, false);
+	}
+
+	/**
+	 * All the steps, as create() makes a subclass not cached
+	 */
+	@Benchmark
+	public byte[] generate() {
+		DexMaker dexMaker = new DexMaker();
+		declare(cls, dexMaker);
+		return dexMaker.generate();
+	}
+}
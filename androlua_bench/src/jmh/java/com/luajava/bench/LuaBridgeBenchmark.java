@@ -0,0 +1,189 @@
+package com.luajava.bench;
+
+import com.luajava.LuaException;
+import com.luajava.LuaJavaAPI;
+import com.luajava.LuaObject;
+import com.luajava.LuaState;
+import com.luajava.LuaStateFactory;
+import com.luajava.LuaTable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls between lua and java through the bridge. The lua loops run
+ * {@link #LOOP} calls each, so the scores are for one call. Run with
+ * <code>-Pprofilers=gc</code> for the allocations of each call.
+ * <p>
+ * callMethod and objectIndex are called from java, without the native
+ * side: the closure of a method looked up from lua can only be called
+ * once. luaMethodCall and luaFieldGet go through both sides.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LuaBridgeBenchmark {
+
+    static final int LOOP = 1000;
+
+    static final int TABLE_SIZE = 100;
+
+    /**
+     * Java object used from lua
+     */
+    public static class Target {
+
+        public int count;
+
+        private String text;
+
+        public void add(int i) {
+            count += i;
+        }
+
+        public void setText(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private LuaState L;
+
+    private int methodCall;
+
+    private int fieldGet;
+
+    private LuaObject function;
+
+    private LuaTable<Object, Object> table;
+
+    private final Target target = new Target();
+
+    /**
+     * Values pushed from java. No java object: LuaJavaAPI allows 50000 of
+     * them to be pushed from java in a process.
+     */
+    private final Object[] values = {1, 1.5, "text", true};
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() throws LuaException {
+        L = LuaStateFactory.newLuaState();
+        L.openLibs();
+        L.pushJavaObject(target);
+        L.setGlobal("target");
+
+        // the name is passed to objectIndex, then callMethod, on each call
+        methodCall = load("for i = 1, " + LOOP + " do target.setText(\"text\") end");
+        fieldGet = load("local n = 0\n"
+                + "for i = 1, " + LOOP + " do n = n + target.count end");
+
+        L.LdoString("return function(a, b) return a + b end");
+        function = L.getLuaObject(-1);
+        L.setTop(0);
+
+        StringBuilder buf = new StringBuilder("return {");
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            buf.append("k").append(i).append(" = ").append(i).append(", ");
+        }
+        L.LdoString(buf.append('}').toString());
+        table = (LuaTable<Object, Object>) L.toJavaObject(-1);
+        L.setTop(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        L.close();
+    }
+
+    private int load(String chunk) throws LuaException {
+        if (L.LloadString(chunk) != 0)
+            throw new LuaException(L.toString(-1));
+        return L.Lref(LuaState.LUA_REGISTRYINDEX);
+    }
+
+    private void run(int ref) throws LuaException {
+        L.rawGetI(LuaState.LUA_REGISTRYINDEX, ref);
+        if (L.pcall(0, 0, 0) != 0)
+            throw new LuaException(L.toString(-1));
+    }
+
+    @Benchmark
+    public int callMethod() throws LuaException {
+        L.pushInteger(1);
+        int ret = LuaJavaAPI.callMethod(L, target, "add");
+        L.setTop(0);
+        return ret;
+    }
+
+    @Benchmark
+    public int objectIndex() throws LuaException {
+        return LuaJavaAPI.objectIndex(L, target, "setText", 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP)
+    public void luaMethodCall() throws LuaException {
+        run(methodCall);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOP)
+    public void luaFieldGet() throws LuaException {
+        run(fieldGet);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public void pushObjectValueToJavaObject(Blackhole bh) throws LuaException {
+        for (Object value : values) {
+            L.pushObjectValue(value);
+            bh.consume(L.toJavaObject(-1));
+            L.pop(1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TABLE_SIZE)
+    public void tableEntryIterator(Blackhole bh) {
+        Iterator<Map.Entry<Object, Object>> it = table.entryIterator(LuaState.BULK_PAGE_SIZE);
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TABLE_SIZE)
+    public void tableEntrySet(Blackhole bh) {
+        for (Map.Entry<Object, Object> entry : table.entrySet()) {
+            bh.consume(entry);
+        }
+    }
+
+    @Benchmark
+    public Object luaObjectCall() throws LuaException {
+        return function.call(1, 2);
+    }
+}
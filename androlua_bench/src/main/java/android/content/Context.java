@@ -0,0 +1,13 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * Stub of the android class, for the bridge to compile on the host
+ */
+public class Context {
+
+    public File getExternalFilesDir(String type) {
+        return null;
+    }
+}
@@ -0,0 +1,10 @@
+package android.graphics;
+
+/**
+ * Stub of the android class, for the bridge to compile on the host
+ */
+public class Bitmap {
+
+    public void recycle() {
+    }
+}
@@ -0,0 +1,13 @@
+package android.graphics.drawable;
+
+import android.graphics.Bitmap;
+
+/**
+ * Stub of the android class, for the bridge to compile on the host
+ */
+public class BitmapDrawable {
+
+    public Bitmap getBitmap() {
+        return null;
+    }
+}
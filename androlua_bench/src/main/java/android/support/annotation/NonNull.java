@@ -0,0 +1,7 @@
+package android.support.annotation;
+
+/**
+ * Stub of the support annotation, for the bridge to compile on the host
+ */
+public @interface NonNull {
+}
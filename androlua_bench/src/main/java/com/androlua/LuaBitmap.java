@@ -0,0 +1,12 @@
+package com.androlua;
+
+import android.graphics.Bitmap;
+
+/**
+ * Stub of the androlua class, for the bridge to compile on the host
+ */
+public class LuaBitmap {
+
+    public static void removeBitmap(Bitmap bitmap) {
+    }
+}
@@ -0,0 +1,12 @@
+package dalvik.system;
+
+/**
+ * Stub of the android class, for the bridge to compile on the host. The
+ * host JVM can not load dex, so no class is found.
+ */
+public class DexClassLoader extends ClassLoader {
+
+    public DexClassLoader(String dexPath, String optimizedDirectory, String librarySearchPath, ClassLoader parent) {
+        super(parent);
+    }
+}